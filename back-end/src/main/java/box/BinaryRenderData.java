@@ -0,0 +1,200 @@
+package box;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import main.TypedRows;
+import project.Canvas;
+import project.Layer;
+
+/**
+ * Compact binary encoding of render data, decoded by front-end/js/binaryRenderData.js.
+ *
+ * <p>All numbers are little-endian and every column starts at a multiple of 8 bytes, so that the
+ * front-end can read columns through typed arrays without copying. Layout:
+ *
+ * <pre>
+ * header: magic "KYRB" (u32), version (u16), number of layers (u16),
+ *         length (u32) and utf-8 bytes of a JSON object with the other response fields
+ * layer:  number of rows (u32), number of fields (u32),
+ *         per field: type (u8), name length (u16), utf-8 name,
+ *         then one column per field:
+ *         STRING:  code width in bytes (u8), dictionary size (u32),
+ *                  per entry: length (i32, -1 for null) and utf-8 bytes,
+ *                  then one code (u8/u16/u32) per row
+ *         FLOAT32: one f32 per row (used when every value of the column is exactly a float)
+ *         FLOAT64: one f64 per row
+ * </pre>
+ */
+public class BinaryRenderData {
+
+    public static final String CONTENT_TYPE = "application/x-kyrix-render-data";
+
+    private static final int MAGIC = 0x4259524b; // "KYRB" read as little-endian
+    private static final int VERSION = 1;
+    private static final byte STRING = 0, FLOAT32 = 1, FLOAT64 = 2;
+    private static final String[] BBOX_FIELDS = BoxandData.BBOX_FIELDS;
+
+    // meta is the JSON encoded object of other response fields (minx, miny, canvasId, ...)
+    public static byte[] encode(ArrayList<TypedRows> data, Canvas c, String meta) {
+
+        Output out = new Output(1024);
+        out.putInt(MAGIC);
+        out.putShort(VERSION);
+        out.putShort(data.size());
+        byte[] metaBytes = meta.getBytes(StandardCharsets.UTF_8);
+        out.putInt(metaBytes.length);
+        out.putBytes(metaBytes);
+        out.align(8);
+
+        for (int i = 0; i < data.size(); i++) {
+            TypedRows rows = data.get(i);
+            int numRows = rows.size();
+            Layer curLayer = c.getLayers().get(i);
+
+            // raw data fields, cluster number field for ssv layer, then bounding box fields
+            ArrayList<String> fields = new ArrayList<>(curLayer.getTransform().getColumnNames());
+            if (curLayer.getIndexerType().contains("SSV")) fields.add("clusterAgg");
+            int numStringFields = fields.size();
+            fields.addAll(Arrays.asList(BBOX_FIELDS));
+
+            // bounding box columns are numbers, check whether float32 is enough for them
+            double[][] bboxColumns = new double[BBOX_FIELDS.length][numRows];
+            byte[] types = new byte[fields.size()];
+            for (int k = 0; k < BBOX_FIELDS.length; k++) {
+                boolean isFloat = true;
+                for (int j = 0; j < numRows; j++) {
+                    double v = rows.getBbox(j, k);
+                    bboxColumns[k][j] = v;
+                    if ((double) (float) v != v && !Double.isNaN(v)) isFloat = false;
+                }
+                types[numStringFields + k] = (isFloat ? FLOAT32 : FLOAT64);
+            }
+
+            // schema
+            out.putInt(numRows);
+            out.putInt(fields.size());
+            for (int k = 0; k < fields.size(); k++) {
+                byte[] name = fields.get(k).getBytes(StandardCharsets.UTF_8);
+                out.putByte(types[k]);
+                out.putShort(name.length);
+                out.putBytes(name);
+            }
+            out.align(8);
+
+            // columns
+            for (int k = 0; k < numStringFields; k++) writeStringColumn(out, rows, k);
+            for (int k = 0; k < BBOX_FIELDS.length; k++) {
+                if (types[numStringFields + k] == FLOAT32)
+                    for (int j = 0; j < numRows; j++) out.putFloat((float) bboxColumns[k][j]);
+                else for (int j = 0; j < numRows; j++) out.putDouble(bboxColumns[k][j]);
+                out.align(8);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // dictionary-encode a string column
+    private static void writeStringColumn(Output out, TypedRows rows, int k) {
+
+        int numRows = rows.size();
+        HashMap<String, Integer> dict = new HashMap<>();
+        ArrayList<String> entries = new ArrayList<>();
+        int[] codes = new int[numRows];
+        int nullCode = -1;
+        for (int j = 0; j < numRows; j++) {
+            String v = rows.get(j).get(k);
+            Integer code;
+            if (v == null) {
+                if (nullCode < 0) {
+                    nullCode = entries.size();
+                    entries.add(null);
+                }
+                code = nullCode;
+            } else if ((code = dict.get(v)) == null) {
+                code = entries.size();
+                dict.put(v, code);
+                entries.add(v);
+            }
+            codes[j] = code;
+        }
+
+        int width = (entries.size() <= 0x100 ? 1 : entries.size() <= 0x10000 ? 2 : 4);
+        out.putByte(width);
+        out.putInt(entries.size());
+        for (String entry : entries)
+            if (entry == null) out.putInt(-1);
+            else {
+                byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+                out.putInt(bytes.length);
+                out.putBytes(bytes);
+            }
+        out.align(8);
+        for (int j = 0; j < numRows; j++)
+            if (width == 1) out.putByte(codes[j]);
+            else if (width == 2) out.putShort(codes[j]);
+            else out.putInt(codes[j]);
+        out.align(8);
+    }
+
+    // a growable little-endian byte buffer
+    private static final class Output {
+        private byte[] buf;
+        private int pos = 0;
+
+        Output(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        void putByte(int v) {
+            ensure(1);
+            buf[pos++] = (byte) v;
+        }
+
+        void putShort(int v) {
+            ensure(2);
+            buf[pos++] = (byte) v;
+            buf[pos++] = (byte) (v >>> 8);
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            buf[pos++] = (byte) v;
+            buf[pos++] = (byte) (v >>> 8);
+            buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 24);
+        }
+
+        void putLong(long v) {
+            putInt((int) v);
+            putInt((int) (v >>> 32));
+        }
+
+        void putFloat(float v) {
+            putInt(Float.floatToRawIntBits(v));
+        }
+
+        void putDouble(double v) {
+            putLong(Double.doubleToRawLongBits(v));
+        }
+
+        void putBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void align(int n) {
+            while (pos % n != 0) putByte(0);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+}
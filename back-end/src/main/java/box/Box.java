@@ -1,5 +1,7 @@
 package box;
 
+import java.util.ArrayList;
+
 public class Box {
     private double minx, miny, maxx, maxy;
 
@@ -35,6 +37,28 @@ public class Box {
         return miny;
     }
 
+    // the part of this box outside of other as at most four disjoint boxes: the full-width bands
+    // below and above other, then the parts left and right of other between the bands
+    // boxes are closed, so neighboring results share their edges with each other and with other
+    public ArrayList<Box> subtract(Box other) {
+
+        ArrayList<Box> ret = new ArrayList<>(4);
+        double ix0 = Math.max(minx, other.minx), ix1 = Math.min(maxx, other.maxx);
+        double iy0 = Math.max(miny, other.miny), iy1 = Math.min(maxy, other.maxy);
+        // nothing to cut off: no overlap (e.g. with the dummy old box), or an overlap without
+        // area, which for a box with an area leaves the whole box as the closure of the rest
+        boolean hasArea = getWidth() > 0 && getHeight() > 0;
+        if (ix0 > ix1 || iy0 > iy1 || (hasArea && (ix0 == ix1 || iy0 == iy1))) {
+            ret.add(this);
+            return ret;
+        }
+        if (miny < iy0) ret.add(new Box(minx, miny, maxx, iy0));
+        if (iy1 < maxy) ret.add(new Box(minx, iy1, maxx, maxy));
+        if (minx < ix0) ret.add(new Box(minx, iy0, ix0, iy1));
+        if (ix1 < maxx) ret.add(new Box(ix1, iy0, maxx, iy1));
+        return ret;
+    }
+
     public String getCSV() {
         return minx + "," + miny + "," + maxx + "," + maxy;
     }
@@ -1,10 +1,10 @@
 package box;
 
 import java.util.ArrayList;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.io.WKTReader;
-import org.locationtech.jts.io.WKTWriter;
+import java.util.concurrent.Callable;
+import main.FetchExecutor;
+import main.Metrics;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.View;
@@ -13,42 +13,45 @@ public abstract class BoxGetter {
 
     public final Box DUMMY_OLD_BOX = new Box(-1e5, -1e5, -1e5, -1e5);
 
-    public ArrayList<ArrayList<ArrayList<String>>> fetchData(
+    public ArrayList<TypedRows> fetchData(
             Canvas c, Box newBox, Box oldBox, ArrayList<String> predicates) throws Exception {
 
-        ArrayList<ArrayList<ArrayList<String>>> data = new ArrayList<>();
+        ArrayList<Callable<TypedRows>> fetches = new ArrayList<>();
 
-        // WKT stuff for all layers
-        GeometryFactory fact = new GeometryFactory();
-        WKTReader wktRdr = new WKTReader(fact);
-        WKTWriter wktWtr = new WKTWriter();
-        String wktNew = newBox.getWKT();
-        Geometry newBoxGeom = wktRdr.read(wktNew);
-
-        // loop through each layer
+        // loop through each layer, layers are then fetched concurrently
         for (int i = 0; i < c.getLayers().size(); i++) {
             Layer curLayer = c.getLayers().get(i);
             // if this layer is static, add an empty placeholder
             if (curLayer.isStatic() || !curLayer.getFetchingScheme().equals("dbox")) {
-                data.add(new ArrayList<>());
+                fetches.add(TypedRows::new);
                 continue;
             }
-            // calculate delta area
+            // the indexer fetches the delta area, newBox minus the old box
             Box curOldBox;
             if (curLayer.isDeltaBox()) curOldBox = oldBox;
             else curOldBox = DUMMY_OLD_BOX;
-            String wktOld = curOldBox.getWKT();
-            Geometry oldBoxGeom = wktRdr.read(wktOld);
-            Geometry deltaGeom = newBoxGeom.difference(oldBoxGeom);
-            String deltaWkt = wktWtr.write(deltaGeom);
-            data.add(
-                    curLayer.getIndexer()
-                            .getDataFromRegion(
-                                    c, i, deltaWkt, predicates.get(i), newBox, curOldBox));
+            int layerId = i;
+            fetches.add(
+                    () -> {
+                        long st = System.nanoTime();
+                        TypedRows rows =
+                                curLayer.getIndexer()
+                                        .getDataFromRegion(
+                                                c,
+                                                layerId,
+                                                predicates.get(layerId),
+                                                newBox,
+                                                curOldBox);
+                        Metrics.layer(c, layerId).record(System.nanoTime() - st, rows.size());
+                        return rows;
+                    });
         }
-        return data;
+        return FetchExecutor.invokeInOrder(fetches);
     }
 
+    // the box that getBox fetches data for
+    public abstract Box getNewBox(Canvas c, View v, double mx, double my);
+
     public abstract BoxandData getBox(
             Canvas c, View v, double mx, double my, Box oldBox, ArrayList<String> predicates)
             throws Exception;
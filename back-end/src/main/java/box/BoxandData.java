@@ -2,14 +2,19 @@ package box;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 
 public class BoxandData {
+
+    // the bounding box columns that end every row, in this order
+    public static final String[] BBOX_FIELDS = {"cx", "cy", "minx", "miny", "maxx", "maxy"};
+
     public Box box;
-    public ArrayList<ArrayList<ArrayList<String>>> data;
+    public ArrayList<TypedRows> data;
 
-    public BoxandData(Box box, ArrayList<ArrayList<ArrayList<String>>> data) {
+    public BoxandData(Box box, ArrayList<TypedRows> data) {
 
         this.box = box;
         this.data = data;
@@ -19,39 +24,99 @@ public class BoxandData {
     // To enable writing rendering functions using field names,
     // we convert it to an array of arrays of dictionaries (hashMap in Java)
     public static ArrayList<ArrayList<HashMap<String, String>>> getDictionaryFromData(
-            ArrayList<ArrayList<ArrayList<String>>> data, Canvas c) {
+            ArrayList<TypedRows> data, Canvas c) {
 
         ArrayList<ArrayList<HashMap<String, String>>> ret = new ArrayList<>();
         int numLayers = data.size();
         for (int i = 0; i < numLayers; i++) {
             ret.add(new ArrayList<>());
-            int numRows = data.get(i).size();
+            TypedRows rows = data.get(i);
+            int numRows = rows.size();
             Layer curLayer = c.getLayers().get(i);
             ArrayList<String> fields = curLayer.getTransform().getColumnNames();
 
             for (int j = 0; j < numRows; j++) {
                 int numFields = fields.size();
                 // raw data fields
-                ArrayList<String> rowArray = data.get(i).get(j);
+                ArrayList<String> rowArray = rows.get(j);
                 HashMap<String, String> rowDict = new HashMap<>();
                 for (int k = 0; k < numFields; k++) rowDict.put(fields.get(k), rowArray.get(k));
 
                 // cluster number field for ssv layer
-                if (curLayer.getIndexerType().contains("SSV")) {
+                if (curLayer.getIndexerType().contains("SSV"))
                     rowDict.put("clusterAgg", rowArray.get(numFields));
-                    numFields++;
-                }
 
                 // bounding box fields
-                rowDict.put("cx", rowArray.get(numFields));
-                rowDict.put("cy", rowArray.get(numFields + 1));
-                rowDict.put("minx", rowArray.get(numFields + 2));
-                rowDict.put("miny", rowArray.get(numFields + 3));
-                rowDict.put("maxx", rowArray.get(numFields + 4));
-                rowDict.put("maxy", rowArray.get(numFields + 5));
+                for (int k = 0; k < BBOX_FIELDS.length; k++)
+                    rowDict.put(BBOX_FIELDS[k], rows.getBboxString(j, k));
                 ret.get(i).add(rowDict);
             }
         }
         return ret;
     }
+
+    // Columnar alternative to getDictionaryFromData, much smaller and cheaper to encode.
+    // For each layer, field names are sent once ("fields") along with one array of values per
+    // field ("columns"). Bounding box columns are sent as numbers (null for nulls), raw fields
+    // as strings.
+    public static ArrayList<HashMap<String, Object>> getColumnarFromData(
+            ArrayList<TypedRows> data, Canvas c) {
+
+        ArrayList<HashMap<String, Object>> ret = new ArrayList<>();
+        int numLayers = data.size();
+        for (int i = 0; i < numLayers; i++) {
+            TypedRows rows = data.get(i);
+            int numRows = rows.size();
+            Layer curLayer = c.getLayers().get(i);
+
+            // raw data fields, cluster number field for ssv layer
+            ArrayList<String> fields = new ArrayList<>(curLayer.getTransform().getColumnNames());
+            if (curLayer.getIndexerType().contains("SSV")) fields.add("clusterAgg");
+            int numStringFields = fields.size();
+            ArrayList<Object> columns = new ArrayList<>();
+            for (int k = 0; k < numStringFields; k++) {
+                String[] column = new String[numRows];
+                for (int j = 0; j < numRows; j++) column[j] = rows.get(j).get(k);
+                columns.add(column);
+            }
+
+            // bounding box fields
+            for (int k = 0; k < BBOX_FIELDS.length; k++) {
+                fields.add(BBOX_FIELDS[k]);
+                columns.add(getBboxColumn(rows, k));
+            }
+
+            HashMap<String, Object> layerMap = new HashMap<>();
+            layerMap.put("fields", fields);
+            layerMap.put("columns", columns);
+            layerMap.put("numRows", numRows);
+            ret.add(layerMap);
+        }
+        return ret;
+    }
+
+    // bounding box column k as a double[], or as a Double[] if it has nulls
+    // (json has no NaN, gson refuses to write one)
+    private static Object getBboxColumn(TypedRows rows, int k) {
+
+        int numRows = rows.size();
+        double[] column = new double[numRows];
+        boolean hasNull = false;
+        for (int j = 0; j < numRows; j++) {
+            column[j] = rows.getBbox(j, k);
+            if (Double.isNaN(column[j])) hasNull = true;
+        }
+        if (!hasNull) return column;
+
+        Double[] boxed = new Double[numRows];
+        for (int j = 0; j < numRows; j++) boxed[j] = (Double.isNaN(column[j]) ? null : column[j]);
+        return boxed;
+    }
+
+    // render data in the requested format, see above
+    public static Object getRenderData(ArrayList<TypedRows> data, Canvas c, String format) {
+
+        if ("columnar".equals(format)) return getColumnarFromData(data, c);
+        return getDictionaryFromData(data, c);
+    }
 }
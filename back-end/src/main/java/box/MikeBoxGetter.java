@@ -1,6 +1,7 @@
 package box;
 
 import java.util.ArrayList;
+import main.TypedRows;
 import project.Canvas;
 import project.View;
 
@@ -11,7 +12,17 @@ public class MikeBoxGetter extends BoxGetter {
             Canvas c, View v, double mx, double my, Box oldBox, ArrayList<String> predicates)
             throws Exception {
 
-        ArrayList<ArrayList<ArrayList<String>>> data;
+        ArrayList<TypedRows> data;
+
+        Box newBox = getNewBox(c, v, mx, my);
+        data = fetchData(c, newBox, oldBox, predicates);
+
+        Box box = new Box(newBox.getMinx(), newBox.getMiny(), newBox.getMaxx(), newBox.getMaxy());
+        return new BoxandData(box, data);
+    }
+
+    @Override
+    public Box getNewBox(Canvas c, View v, double mx, double my) {
 
         int vpW = v.getWidth();
         int vpH = v.getHeight();
@@ -20,10 +31,6 @@ public class MikeBoxGetter extends BoxGetter {
         double miny = Math.max(-10, my - wrapLength * vpH);
         double maxx = Math.min(c.getW() + 10, minx + (1 + 2 * wrapLength) * vpW);
         double maxy = Math.min(c.getH() + 10, miny + (1 + 2 * wrapLength) * vpH);
-        Box newBox = new Box(minx, miny, maxx, maxy);
-        data = fetchData(c, newBox, oldBox, predicates);
-
-        Box box = new Box(minx, miny, maxx, maxy);
-        return new BoxandData(box, data);
+        return new Box(minx, miny, maxx, maxy);
     }
 }
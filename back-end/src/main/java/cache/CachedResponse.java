@@ -0,0 +1,123 @@
+package cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import main.Config;
+
+/**
+ * The final encoded body of a tile response, as kept by the tile cache. The body is either in
+ * memory or a region of a file, in which case the response must be closed after use.
+ */
+public class CachedResponse {
+
+    private final byte[] body;
+    private final boolean gzipped;
+    private final int numRows;
+
+    // file region holding the body if it isn't in memory
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+
+    public CachedResponse(byte[] body, boolean gzipped, int numRows) {
+        this.body = body;
+        this.gzipped = gzipped;
+        this.numRows = numRows;
+        this.channel = null;
+        this.position = 0;
+        this.length = body.length;
+    }
+
+    public CachedResponse(
+            FileChannel channel, long position, int length, boolean gzipped, int numRows) {
+        this.body = null;
+        this.gzipped = gzipped;
+        this.numRows = numRows;
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    // encode once, optionally compressing the body so that hot tiles are compressed only once
+    // bodies below the compression threshold are not worth compressing
+    public static CachedResponse create(byte[] body, boolean compress, int numRows)
+            throws IOException {
+
+        if (!compress || body.length < Config.compressionThreshold)
+            return new CachedResponse(body, false, numRows);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream gos =
+                new GZIPOutputStream(bos) {
+                    {
+                        def.setLevel(Config.compressionLevel);
+                    }
+                };
+        gos.write(body);
+        gos.close();
+        return new CachedResponse(bos.toByteArray(), true, numRows);
+    }
+
+    // reads file-backed bodies into memory
+    public byte[] getBody() throws IOException {
+
+        if (channel == null) return body;
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining())
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of tile store segment.");
+        return buf.array();
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // write the body as is, file-backed bodies are transferred without reading them into the heap
+    public void writeTo(OutputStream os) throws IOException {
+
+        if (channel == null) {
+            os.write(body);
+            return;
+        }
+        long written = 0;
+        WritableByteChannel target = Channels.newChannel(os);
+        while (written < length)
+            written += channel.transferTo(position + written, length - written, target);
+    }
+
+    // release the file of a file-backed body
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    // number of data rows encoded in the body, used for stats
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // the uncompressed body, for clients that don't accept gzip
+    public byte[] getUncompressedBody() throws IOException {
+
+        byte[] body = getBody();
+        if (!gzipped) return body;
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length * 4);
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = gis.read(buf)) > 0) bos.write(buf, 0, len);
+        gis.close();
+        return bos.toByteArray();
+    }
+}
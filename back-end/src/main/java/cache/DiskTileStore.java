@@ -0,0 +1,308 @@
+package cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import main.Log;
+import project.Canvas;
+import project.Project;
+
+/**
+ * Encoded tile responses persisted on disk, so that they survive project reloads and restarts.
+ *
+ * <p>Responses are appended to segment files (segment-N.dat). An in-memory index maps each key
+ * to the position of its body and is rebuilt by scanning the record headers of all segments on
+ * startup. Keys contain a hash of the canvas definition, so a changed canvas never reads old
+ * tiles. Reindexing a canvas appends an invalidation record that drops all its tiles. When the
+ * store grows beyond its budget, the oldest segment is deleted.
+ *
+ * <p>Record layout: magic (int), type (byte), key length (int), key (utf-8); tile records are
+ * followed by gzipped (byte), number of rows (int), body length (int) and the body.
+ */
+public class DiskTileStore {
+
+    private static final int MAGIC = 0x4b595254;
+    private static final byte TILE = 0, INVALIDATION = 1;
+    private static final String SEP = "|";
+
+    private static final class Location {
+        final int segment;
+        final long position;
+        final int length, numRows;
+        final boolean gzipped;
+
+        Location(int segment, long position, int length, boolean gzipped, int numRows) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.gzipped = gzipped;
+            this.numRows = numRows;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes, segmentBytes;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    // segment id -> size in bytes, ordered from the oldest segment
+    private final TreeMap<Integer, Long> segments = new TreeMap<>();
+    private FileChannel activeChannel;
+    private int activeSegment;
+
+    // canvas id -> hash of the canvas definition, recomputed after project switches
+    private final Map<String, String> canvasVersions = new ConcurrentHashMap<>();
+
+    // appends run in the background, pending ones are dropped when the queue is full
+    private final ThreadPoolExecutor writer;
+    // bumped on every invalidation so that appends of stale tiles still queued are dropped
+    private volatile long generation = 0;
+
+    public DiskTileStore(String dirName, long maxBytes, long segmentBytes) throws IOException {
+
+        this.dir = new File(dirName);
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create tile store directory " + dir);
+
+        // rebuild the index from existing segments
+        File[] files = dir.listFiles();
+        ArrayList<Integer> ids = new ArrayList<>();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().matches("segment-\\d+\\.dat"))
+                    ids.add(Integer.valueOf(f.getName().replaceAll("\\D", "")));
+        ids.sort(null);
+        for (int id : ids) segments.put(id, scanSegment(id));
+        activeSegment = (segments.isEmpty() ? 0 : segments.lastKey());
+        openActiveSegment();
+        Log.info("Tile store {}: {} tiles in {} segments.", dir, index.size(), segments.size());
+
+        writer =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(1024),
+                        r -> {
+                            Thread t = new Thread(r, "kyrix-tile-store-writer");
+                            t.setDaemon(true);
+                            return t;
+                        },
+                        new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    // key of a tile, the variant distinguishes different encodings of the same tile
+    public String getKey(
+            Project project,
+            Canvas c,
+            int minx,
+            int miny,
+            ArrayList<String> predicates,
+            String variant) {
+
+        String version =
+                canvasVersions.computeIfAbsent(
+                        c.getId(), id -> hash(project.getRenderingParams() + c.toString()));
+        return getCanvasPrefix(project.getName(), c.getId())
+                + version
+                + SEP
+                + minx
+                + SEP
+                + miny
+                + SEP
+                + predicates
+                + SEP
+                + variant;
+    }
+
+    private static String getCanvasPrefix(String projectName, String canvasId) {
+        return projectName + SEP + canvasId + SEP;
+    }
+
+    // canvas definitions may have changed, keys are computed with fresh hashes from now on
+    public void resetVersions() {
+        canvasVersions.clear();
+    }
+
+    // the returned response reads its body from the segment file and must be closed
+    public CachedResponse get(String key) {
+
+        Location loc = index.get(key);
+        if (loc == null) return null;
+        try {
+            FileChannel channel =
+                    FileChannel.open(segmentFile(loc.segment).toPath(), StandardOpenOption.READ);
+            return new CachedResponse(channel, loc.position, loc.length, loc.gzipped, loc.numRows);
+        } catch (IOException e) {
+            // the segment has just been deleted
+            index.remove(key, loc);
+            return null;
+        }
+    }
+
+    public void put(String key, CachedResponse resp) {
+
+        long gen = generation;
+        writer.execute(
+                () -> {
+                    synchronized (this) {
+                        if (gen != generation || index.containsKey(key)) return;
+                        try {
+                            append(TILE, key, resp);
+                        } catch (IOException e) {
+                            Log.error("Could not write tile {} to the tile store.", key, e);
+                        }
+                    }
+                });
+    }
+
+    // drop all tiles of a canvas, e.g. when one of its layers is reindexed
+    public synchronized void invalidateCanvas(String projectName, String canvasId)
+            throws IOException {
+
+        generation++;
+        String prefix = getCanvasPrefix(projectName, canvasId);
+        append(INVALIDATION, prefix, null);
+        removeByPrefix(prefix);
+        canvasVersions.remove(canvasId);
+    }
+
+    public long getSize() {
+        return index.size();
+    }
+
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (long b : segments.values()) bytes += b;
+        return bytes;
+    }
+
+    private void removeByPrefix(String prefix) {
+        Iterator<String> it = index.keySet().iterator();
+        while (it.hasNext()) if (it.next().startsWith(prefix)) it.remove();
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, "segment-" + id + ".dat");
+    }
+
+    private void openActiveSegment() throws IOException {
+
+        activeChannel =
+                FileChannel.open(
+                        segmentFile(activeSegment).toPath(),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+        activeChannel.position(activeChannel.size());
+        segments.put(activeSegment, activeChannel.size());
+    }
+
+    private void append(byte type, String key, CachedResponse resp) throws IOException {
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] body = (resp == null ? new byte[0] : resp.getBody());
+        ByteBuffer buf =
+                ByteBuffer.allocate(9 + keyBytes.length + (resp == null ? 0 : 9) + body.length);
+        buf.putInt(MAGIC).put(type).putInt(keyBytes.length).put(keyBytes);
+        if (resp != null) {
+            buf.put((byte) (resp.isGzipped() ? 1 : 0));
+            buf.putInt(resp.getNumRows());
+            buf.putInt(body.length);
+        }
+        long bodyPosition = activeChannel.position() + buf.position();
+        buf.put(body);
+        buf.flip();
+        while (buf.hasRemaining()) activeChannel.write(buf);
+        segments.put(activeSegment, activeChannel.position());
+        if (resp != null)
+            index.put(
+                    key,
+                    new Location(
+                            activeSegment,
+                            bodyPosition,
+                            body.length,
+                            resp.isGzipped(),
+                            resp.getNumRows()));
+
+        // roll over to a new segment, and delete the oldest ones beyond the budget
+        if (activeChannel.position() >= segmentBytes) {
+            activeChannel.close();
+            activeSegment++;
+            openActiveSegment();
+        }
+        while (segments.size() > 1 && getDiskBytes() > maxBytes) dropSegment(segments.firstKey());
+    }
+
+    private void dropSegment(int id) {
+
+        segments.remove(id);
+        index.values().removeIf(loc -> loc.segment == id);
+        if (!segmentFile(id).delete())
+            Log.warn("Failed to delete tile store segment {}", segmentFile(id));
+    }
+
+    // add the records of a segment to the index, truncating a partially written tail
+    private long scanSegment(int id) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(id), "rw");
+        try {
+            long pos = 0, size = raf.length();
+            while (pos < size) {
+                raf.seek(pos);
+                if (size - pos < 9 || raf.readInt() != MAGIC) break;
+                byte type = raf.readByte();
+                int keyLength = raf.readInt();
+                if (keyLength < 0 || pos + 9 + keyLength > size) break;
+                byte[] keyBytes = new byte[keyLength];
+                raf.readFully(keyBytes);
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                if (type == INVALIDATION) {
+                    removeByPrefix(key);
+                    pos = raf.getFilePointer();
+                    continue;
+                }
+                if (size - raf.getFilePointer() < 9) break;
+                boolean gzipped = raf.readByte() == 1;
+                int numRows = raf.readInt();
+                int length = raf.readInt();
+                long bodyPosition = raf.getFilePointer();
+                if (length < 0 || bodyPosition + length > size) break;
+                index.put(key, new Location(id, bodyPosition, length, gzipped, numRows));
+                pos = bodyPosition + length;
+            }
+            if (pos < size) {
+                Log.warn("Truncating tile store segment {} at byte {}", id, pos);
+                raf.setLength(pos);
+            }
+            return pos;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String hash(String s) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(s.hashCode());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded tile responses kept outside of the Java heap.
+ *
+ * <p>Memory is allocated from direct byte buffers in fixed-size pages, up to a byte budget. Like
+ * a slab allocator, every page is assigned to one size class and cut into equally sized chunks,
+ * so storing and evicting entries never fragments memory. Each size class evicts its least
+ * recently used entries when it runs out of chunks and no new page can be allocated. Pages are
+ * never freed, only handed back to the free page list when the store is cleared.
+ */
+public class OffHeapTileStore {
+
+    // chunk sizes grow by this factor from one size class to the next
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int MIN_CHUNK_BYTES = 1024;
+
+    private static final class Entry {
+        final int page, offset, length, numRows;
+        final boolean gzipped;
+
+        Entry(int page, int offset, int length, boolean gzipped, int numRows) {
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+            this.gzipped = gzipped;
+            this.numRows = numRows;
+        }
+    }
+
+    private static final class SizeClass {
+        final int chunkBytes;
+        // free chunks, encoded as page index (high bits) and offset (low bits)
+        final ArrayDeque<Long> freeChunks = new ArrayDeque<>();
+        // access order is the LRU order, the eldest entry comes first
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        SizeClass(int chunkBytes) {
+            this.chunkBytes = chunkBytes;
+        }
+    }
+
+    private final int pageBytes;
+    private final int maxPages;
+    private final ArrayList<ByteBuffer> pages = new ArrayList<>();
+    private final ArrayDeque<Integer> freePages = new ArrayDeque<>();
+    private final ArrayList<SizeClass> sizeClasses = new ArrayList<>();
+    private final HashMap<String, SizeClass> classOfKey = new HashMap<>();
+    private long storedBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public OffHeapTileStore(long maxBytes, int pageBytes) {
+
+        this.pageBytes = pageBytes;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, maxBytes / pageBytes);
+        for (double size = MIN_CHUNK_BYTES; size < pageBytes; size *= GROWTH_FACTOR)
+            sizeClasses.add(new SizeClass((int) size));
+        sizeClasses.add(new SizeClass(pageBytes));
+    }
+
+    public synchronized CachedResponse get(String key) {
+
+        SizeClass sc = classOfKey.get(key);
+        Entry e = (sc == null ? null : sc.entries.get(key));
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        byte[] body = new byte[e.length];
+        ByteBuffer buf = pages.get(e.page).duplicate();
+        buf.position(e.offset);
+        buf.get(body);
+        return new CachedResponse(body, e.gzipped, e.numRows);
+    }
+
+    public synchronized void put(String key, CachedResponse resp) {
+
+        byte[] body;
+        try {
+            body = resp.getBody();
+        } catch (IOException e) {
+            rejections.increment();
+            return;
+        }
+        SizeClass sc = sizeClassFor(body.length);
+        if (sc == null) {
+            rejections.increment();
+            return;
+        }
+        remove(key);
+
+        Long chunk = takeChunk(sc);
+        if (chunk == null) {
+            rejections.increment();
+            return;
+        }
+        int page = (int) (chunk >>> 32), offset = (int) (long) chunk;
+        ByteBuffer buf = pages.get(page).duplicate();
+        buf.position(offset);
+        buf.put(body);
+        sc.entries.put(
+                key, new Entry(page, offset, body.length, resp.isGzipped(), resp.getNumRows()));
+        classOfKey.put(key, sc);
+        storedBytes += body.length;
+    }
+
+    public synchronized void remove(String key) {
+
+        SizeClass sc = classOfKey.remove(key);
+        if (sc == null) return;
+        Entry e = sc.entries.remove(key);
+        sc.freeChunks.add(((long) e.page << 32) | e.offset);
+        storedBytes -= e.length;
+    }
+
+    public synchronized void clear() {
+
+        for (SizeClass sc : sizeClasses) {
+            sc.entries.clear();
+            sc.freeChunks.clear();
+        }
+        classOfKey.clear();
+        freePages.clear();
+        for (int i = 0; i < pages.size(); i++) freePages.add(i);
+        storedBytes = 0;
+    }
+
+    private SizeClass sizeClassFor(int length) {
+
+        for (SizeClass sc : sizeClasses) if (length <= sc.chunkBytes) return sc;
+        return null;
+    }
+
+    private Long takeChunk(SizeClass sc) {
+
+        if (sc.freeChunks.isEmpty()) {
+            // carve a free or new page into chunks of this class
+            Integer page = freePages.poll();
+            if (page == null && pages.size() < maxPages) {
+                page = pages.size();
+                pages.add(ByteBuffer.allocateDirect(pageBytes));
+            }
+            if (page != null)
+                for (int offset = 0; offset + sc.chunkBytes <= pageBytes; offset += sc.chunkBytes)
+                    sc.freeChunks.add(((long) page << 32) | offset);
+        }
+
+        // out of memory, evict the least recently used entry of this class
+        if (sc.freeChunks.isEmpty()) {
+            Iterator<String> it = sc.entries.keySet().iterator();
+            if (!it.hasNext()) return null;
+            remove(it.next());
+            evictions.increment();
+        }
+        return sc.freeChunks.poll();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    // bytes of off-heap memory allocated so far
+    public synchronized long getAllocatedBytes() {
+        return (long) pages.size() * pageBytes;
+    }
+
+    // bytes of payload stored, the rest of the allocated memory is chunk slack
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public synchronized long getSize() {
+        return classOfKey.size();
+    }
+}
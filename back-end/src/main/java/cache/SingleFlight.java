@@ -0,0 +1,87 @@
+package cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import main.Config;
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller loads the value while later
+ * callers wait for its result, instead of running the same queries again. Nothing is kept once a
+ * load has finished, caching the result is up to the loader.
+ */
+public class SingleFlight<K, V> {
+
+    public interface Loader<V> {
+        V load() throws Exception;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    // load the value of the key, or wait for the load already in flight
+    public V run(K key, Loader<V> loader) throws Exception {
+
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = join(key, flight);
+        if (existing != null) return await(existing);
+        try {
+            V value = loader.load();
+            complete(key, flight, value);
+            return value;
+        } catch (Throwable e) {
+            // errors too, or the waiting callers would never be released
+            fail(key, flight, e);
+            throw e;
+        }
+    }
+
+    // register a flight for the key, returns the flight in progress instead if there is one
+    // whoever registered a flight has to complete or fail it
+    public CompletableFuture<V> join(K key, CompletableFuture<V> flight) {
+
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) coalesced.increment();
+        return existing;
+    }
+
+    public void complete(K key, CompletableFuture<V> flight, V value) {
+        inFlight.remove(key, flight);
+        flight.complete(value);
+    }
+
+    public void fail(K key, CompletableFuture<V> flight, Throwable t) {
+        inFlight.remove(key, flight);
+        flight.completeExceptionally(t);
+    }
+
+    // wait for the result of another caller's load, rethrowing its exception
+    // gives up after Config.singleFlightWaitTimeoutMs, the load itself goes on
+    public static <V> V await(CompletableFuture<V> flight) throws Exception {
+
+        try {
+            return flight.get(Config.singleFlightWaitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        } catch (TimeoutException e) {
+            throw new Exception(
+                    "Gave up waiting for a load in flight after "
+                            + Config.singleFlightWaitTimeoutMs
+                            + "ms.",
+                    e);
+        }
+    }
+
+    // number of loads saved by waiting for another caller
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -1,57 +1,466 @@
 package cache;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import main.Config;
+import main.FetchExecutor;
+import main.Log;
 import main.Main;
+import main.Metrics;
+import main.PhaseTimer;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 
 public class TileCache {
-    private static LinkedHashMap tileCache;
+
+    // turns the rows of a tile into the response body
+    public interface TileEncoder {
+        byte[] encode(ArrayList<TypedRows> data, int minx, int miny) throws Exception;
+    }
+
+    // receives the response of a tile {minx, miny} of a batch
+    public interface TileResponseConsumer {
+        void accept(int[] tile, CachedResponse resp) throws Exception;
+    }
+
+    // only one of the two is used, depending on Config.tileCacheMode
+    private static TinyLfuCache<String, ArrayList<TypedRows>> tileCache;
+    private static TinyLfuCache<String, CachedResponse> responseCache;
+
+    // optional second tier of the response cache, holding responses evicted from the first
+    private static OffHeapTileStore offHeapStore;
+
+    // optional persistent tier, not cleared on project switches
+    private static DiskTileStore diskStore;
+
+    // fetches in progress, keyed like the cache they fill
+    private static final SingleFlight<String, ArrayList<TypedRows>> tileFlights =
+            new SingleFlight<>();
+    private static final SingleFlight<String, CachedResponse> responseFlights =
+            new SingleFlight<>();
 
     public static void create() {
-        tileCache =
-                new LinkedHashMap<String, ArrayList<ArrayList<ArrayList<String>>>>(
-                        Config.cacheSize + 1, 0.75f, true) {
-                    @Override
-                    protected boolean removeEldestEntry(
-                            Map.Entry<String, ArrayList<ArrayList<ArrayList<String>>>> eldest) {
-                        return size() > Config.cacheSize;
-                    }
-                };
+        if (Config.tileCacheMode == Config.TileCacheMode.RESPONSE) {
+            if (!Config.diskTileStoreDir.isEmpty())
+                try {
+                    diskStore =
+                            new DiskTileStore(
+                                    Config.diskTileStoreDir,
+                                    Config.diskTileStoreMaxBytes,
+                                    Config.diskTileStoreSegmentBytes);
+                } catch (IOException e) {
+                    Log.warn("Tile store disabled: {}", e.getMessage(), e);
+                }
+            if (Config.offHeapTileCacheMaxBytes > 0)
+                offHeapStore =
+                        new OffHeapTileStore(
+                                Config.offHeapTileCacheMaxBytes, Config.offHeapTileCachePageBytes);
+            responseCache =
+                    new TinyLfuCache<>(
+                            Config.tileCacheMaxBytes,
+                            Config.tileCacheNumSegments,
+                            (key, resp) -> 64 + 2L * key.length() + 16 + resp.getLength(),
+                            (offHeapStore == null
+                                    ? null
+                                    : (key, resp) -> offHeapStore.put(key, resp)));
+        } else
+            tileCache =
+                    new TinyLfuCache<>(
+                            Config.tileCacheMaxBytes,
+                            Config.tileCacheNumSegments,
+                            (key, data) -> estimateBytes(key, data));
     }
 
     public static void clear() {
-        tileCache.clear();
+        if (tileCache != null) tileCache.clear();
+        if (responseCache != null) responseCache.clear();
+        if (offHeapStore != null) offHeapStore.clear();
+        if (diskStore != null) diskStore.resetVersions();
+    }
+
+    // drop persisted tiles of a canvas whose layers are being reindexed
+    public static void invalidateCanvas(Canvas c) throws IOException {
+        if (diskStore != null) diskStore.invalidateCanvas(Main.getProject().getName(), c.getId());
     }
 
-    public static ArrayList<ArrayList<ArrayList<String>>> getTile(
+    public static TinyLfuCache<String, ?> getCache() {
+        return (responseCache != null ? responseCache : tileCache);
+    }
+
+    // null if the off-heap tier is disabled
+    public static OffHeapTileStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
+    // null if the disk tier is disabled
+    public static DiskTileStore getDiskStore() {
+        return diskStore;
+    }
+
+    // number of fetches saved by waiting for a concurrent fetch of the same tile
+    public static long getCoalescedCount() {
+        return tileFlights.getCoalescedCount() + responseFlights.getCoalescedCount();
+    }
+
+    public static ArrayList<TypedRows> getTile(
             Canvas c, int minx, int miny, ArrayList<String> predicates) throws Exception {
-        String projectName = Main.getProject().getName();
-        String key = projectName + '-' + c.getId() + "-" + minx + "-" + miny + "-" + predicates;
-        ArrayList<ArrayList<ArrayList<String>>> data = new ArrayList<>();
+        String key = getKey(c, minx, miny, predicates);
+        long st = PhaseTimer.begin();
+        ArrayList<TypedRows> data = tileCache.get(key);
+        PhaseTimer.end(PhaseTimer.Phase.CACHE, st);
 
         // cache hit
-        if (tileCache.containsKey(key)) {
-            System.out.println("cache hit!");
-            return (ArrayList<ArrayList<ArrayList<String>>>) tileCache.get(key);
+        if (data != null) {
+            Log.trace("cache hit!");
+            Metrics.cacheLookup(c.getId(), Metrics.CacheTier.HEAP);
+            return data;
         }
 
         // cache miss, loop over each layer
-        System.out.println("cache miss!");
+        // concurrent misses of the same tile wait for one fetch
+        Log.trace("cache miss!");
+        Metrics.cacheLookup(c.getId(), Metrics.CacheTier.MISS);
+        return tileFlights.run(
+                key,
+                () -> {
+                    ArrayList<TypedRows> fetched = fetchTile(c, minx, miny, predicates);
+                    tileCache.put(key, fetched);
+                    return fetched;
+                });
+    }
+
+    // rows of several tiles, in the order of the tiles
+    // tiles missing from the cache are fetched together, with one query per layer
+    public static ArrayList<ArrayList<TypedRows>> getTiles(
+            Canvas c, ArrayList<int[]> tiles, ArrayList<String> predicates) throws Exception {
+        ArrayList<ArrayList<TypedRows>> result = new ArrayList<>();
+        ArrayList<int[]> misses = new ArrayList<>();
+        ArrayList<Integer> missIndexes = new ArrayList<>();
+        long st = PhaseTimer.begin();
+        for (int[] tile : tiles) {
+            ArrayList<TypedRows> data = tileCache.get(getKey(c, tile[0], tile[1], predicates));
+            if (data == null) {
+                misses.add(tile);
+                missIndexes.add(result.size());
+            }
+            Metrics.cacheLookup(
+                    c.getId(), data == null ? Metrics.CacheTier.MISS : Metrics.CacheTier.HEAP);
+            result.add(data);
+        }
+        PhaseTimer.end(PhaseTimer.Phase.CACHE, st);
+        Log.debug("{} cache hits, {} misses!", tiles.size() - misses.size(), misses.size());
+        if (misses.isEmpty()) return result;
+
+        // tiles that other requests are fetching already are waited for, the rest fetched here
+        ArrayList<int[]> fetches = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<Integer> fetchIndexes = new ArrayList<>();
+        ArrayList<CompletableFuture<ArrayList<TypedRows>>> flights = new ArrayList<>();
+        Map<Integer, CompletableFuture<ArrayList<TypedRows>>> waits = new HashMap<>();
+        for (int i = 0; i < misses.size(); i++) {
+            int[] tile = misses.get(i);
+            String key = getKey(c, tile[0], tile[1], predicates);
+            CompletableFuture<ArrayList<TypedRows>> flight = new CompletableFuture<>();
+            CompletableFuture<ArrayList<TypedRows>> existing = tileFlights.join(key, flight);
+            if (existing != null) waits.put(missIndexes.get(i), existing);
+            else {
+                fetches.add(tile);
+                keys.add(key);
+                fetchIndexes.add(missIndexes.get(i));
+                flights.add(flight);
+            }
+        }
+
+        if (!fetches.isEmpty()) {
+            ArrayList<ArrayList<TypedRows>> fetched;
+            try {
+                fetched = fetchTiles(c, fetches, predicates);
+            } catch (Throwable e) {
+                for (int i = 0; i < fetches.size(); i++)
+                    tileFlights.fail(keys.get(i), flights.get(i), e);
+                throw e;
+            }
+            for (int i = 0; i < fetches.size(); i++) {
+                tileCache.put(keys.get(i), fetched.get(i));
+                tileFlights.complete(keys.get(i), flights.get(i), fetched.get(i));
+                result.set(fetchIndexes.get(i), fetched.get(i));
+            }
+        }
+        for (Map.Entry<Integer, CompletableFuture<ArrayList<TypedRows>>> wait : waits.entrySet())
+            result.set(wait.getKey(), SingleFlight.await(wait.getValue()));
+        return result;
+    }
+
+    // get the encoded response of a tile, the encoder only runs on a cache miss
+    // variant distinguishes different encodings of the same tile
+    public static CachedResponse getTileResponse(
+            Canvas c,
+            int minx,
+            int miny,
+            ArrayList<String> predicates,
+            String variant,
+            TileEncoder encoder)
+            throws Exception {
+        String key = getKey(c, minx, miny, predicates) + "-" + variant;
+        String diskKey = getDiskKey(c, minx, miny, predicates, variant);
+        CachedResponse resp = lookupResponse(c, key, diskKey);
+        if (resp != null) return resp;
+
+        // cache miss, fetch and encode once
+        // concurrent misses of the same response wait for one fetch
+        Log.trace("cache miss!");
+        return responseFlights.run(
+                key,
+                () -> {
+                    ArrayList<TypedRows> data = fetchTile(c, minx, miny, predicates);
+                    return storeResponse(key, diskKey, data, encoder.encode(data, minx, miny));
+                });
+    }
+
+    // get the encoded responses of several tiles, handing each to the consumer once available
+    // cached tiles come first, the others are fetched together with one query per layer
+    public static void getTileResponses(
+            Canvas c,
+            ArrayList<int[]> tiles,
+            ArrayList<String> predicates,
+            String variant,
+            TileEncoder encoder,
+            TileResponseConsumer consumer)
+            throws Exception {
+        ArrayList<int[]> misses = new ArrayList<>();
+        for (int[] tile : tiles) {
+            String key = getKey(c, tile[0], tile[1], predicates) + "-" + variant;
+            CachedResponse resp =
+                    lookupResponse(
+                            c, key, getDiskKey(c, tile[0], tile[1], predicates, variant));
+            if (resp != null) consumer.accept(tile, resp);
+            else misses.add(tile);
+        }
+        if (misses.isEmpty()) return;
+
+        // responses that other requests are fetching already are waited for after the others
+        ArrayList<int[]> fetches = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<CompletableFuture<CachedResponse>> flights = new ArrayList<>();
+        Map<int[], CompletableFuture<CachedResponse>> waits = new LinkedHashMap<>();
+        for (int[] tile : misses) {
+            String key = getKey(c, tile[0], tile[1], predicates) + "-" + variant;
+            CompletableFuture<CachedResponse> flight = new CompletableFuture<>();
+            CompletableFuture<CachedResponse> existing = responseFlights.join(key, flight);
+            if (existing != null) waits.put(tile, existing);
+            else {
+                fetches.add(tile);
+                keys.add(key);
+                flights.add(flight);
+            }
+        }
+
+        // cache misses, fetch and encode once
+        // every flight is finished before responses are handed out, so that a failing
+        // consumer doesn't leave other requests waiting
+        Log.debug("{} cache misses!", fetches.size());
+        ArrayList<CachedResponse> resps = new ArrayList<>();
+        try {
+            if (!fetches.isEmpty()) {
+                ArrayList<ArrayList<TypedRows>> fetched = fetchTiles(c, fetches, predicates);
+                for (int i = 0; i < fetches.size(); i++) {
+                    int[] tile = fetches.get(i);
+                    ArrayList<TypedRows> data = fetched.get(i);
+                    CachedResponse resp =
+                            storeResponse(
+                                    keys.get(i),
+                                    getDiskKey(c, tile[0], tile[1], predicates, variant),
+                                    data,
+                                    encoder.encode(data, tile[0], tile[1]));
+                    responseFlights.complete(keys.get(i), flights.get(i), resp);
+                    resps.add(resp);
+                }
+            }
+        } catch (Throwable e) {
+            for (int i = resps.size(); i < fetches.size(); i++)
+                responseFlights.fail(keys.get(i), flights.get(i), e);
+            throw e;
+        }
+        for (int i = 0; i < fetches.size(); i++) consumer.accept(fetches.get(i), resps.get(i));
+        for (Map.Entry<int[], CompletableFuture<CachedResponse>> wait : waits.entrySet())
+            consumer.accept(wait.getKey(), SingleFlight.await(wait.getValue()));
+    }
+
+    // look a response up in the heap cache, then the off-heap and disk tiers
+    private static CachedResponse lookupResponse(Canvas c, String key, String diskKey) {
+        long st = PhaseTimer.begin();
+        try {
+            return lookupTiers(c, key, diskKey);
+        } finally {
+            PhaseTimer.end(PhaseTimer.Phase.CACHE, st);
+        }
+    }
+
+    private static CachedResponse lookupTiers(Canvas c, String key, String diskKey) {
+        CachedResponse resp = responseCache.get(key);
+
+        // cache hit
+        if (resp != null) {
+            Log.trace("cache hit!");
+            Metrics.cacheLookup(c.getId(), Metrics.CacheTier.HEAP);
+            return resp;
+        }
+
+        // off-heap hit, promote the response back to the heap cache
+        if (offHeapStore != null && (resp = offHeapStore.get(key)) != null) {
+            Log.trace("off-heap cache hit!");
+            Metrics.cacheLookup(c.getId(), Metrics.CacheTier.OFF_HEAP);
+            offHeapStore.remove(key);
+            responseCache.put(key, resp);
+            return resp;
+        }
+
+        // disk hit, promoted to the heap cache like off-heap hits, so that repeat hits of a
+        // restored tile don't go to the segment file again
+        if (diskKey != null && (resp = diskStore.get(diskKey)) != null) {
+            Log.trace("tile store hit!");
+            Metrics.cacheLookup(c.getId(), Metrics.CacheTier.DISK);
+            return promote(key, resp);
+        }
+        Metrics.cacheLookup(c.getId(), Metrics.CacheTier.MISS);
+        return null;
+    }
+
+    // read a file-backed response into memory and put it into the heap cache
+    // if the file can't be read, the response is served from the file without promoting it
+    private static CachedResponse promote(String key, CachedResponse fileResp) {
+        CachedResponse resp;
+        try {
+            resp =
+                    new CachedResponse(
+                            fileResp.getBody(), fileResp.isGzipped(), fileResp.getNumRows());
+        } catch (IOException e) {
+            Log.error("Could not read tile {} from the tile store.", key, e);
+            return fileResp;
+        }
+        try {
+            fileResp.close();
+        } catch (IOException e) {
+            Log.error("Could not close tile {} of the tile store.", key, e);
+        }
+        responseCache.put(key, resp);
+        return resp;
+    }
+
+    private static CachedResponse storeResponse(
+            String key, String diskKey, ArrayList<TypedRows> data, byte[] body)
+            throws Exception {
+        int numRows = 0;
+        for (TypedRows layer : data) numRows += layer.size();
+        long st = PhaseTimer.begin();
+        CachedResponse resp =
+                CachedResponse.create(body, Config.tileCacheCompressResponses, numRows);
+        PhaseTimer.end(PhaseTimer.Phase.ENCODE, st);
+        responseCache.put(key, resp);
+        if (diskKey != null) diskStore.put(diskKey, resp);
+        return resp;
+    }
+
+    private static String getKey(Canvas c, int minx, int miny, ArrayList<String> predicates) {
+        String projectName = Main.getProject().getName();
+        return projectName + '-' + c.getId() + "-" + minx + "-" + miny + "-" + predicates;
+    }
+
+    // null if the disk tier is disabled
+    private static String getDiskKey(
+            Canvas c, int minx, int miny, ArrayList<String> predicates, String variant) {
+        if (diskStore == null) return null;
+        return diskStore.getKey(Main.getProject(), c, minx, miny, predicates, variant);
+    }
+
+    // fetch all layers concurrently
+    private static ArrayList<TypedRows> fetchTile(
+            Canvas c, int minx, int miny, ArrayList<String> predicates) throws Exception {
+        ArrayList<Callable<TypedRows>> fetches = new ArrayList<>();
         for (int i = 0; i < c.getLayers().size(); i++) {
             Layer curLayer = c.getLayers().get(i);
+            int layerId = i;
             // add an empty placeholder for static layers
             if (curLayer.isStatic() || !curLayer.getFetchingScheme().equals("tiling"))
-                data.add(new ArrayList<>());
+                fetches.add(TypedRows::new);
+            else
+                fetches.add(
+                        () -> {
+                            long st = System.nanoTime();
+                            TypedRows rows =
+                                    curLayer.getIndexer()
+                                            .getDataFromTile(
+                                                    c,
+                                                    layerId,
+                                                    minx,
+                                                    miny,
+                                                    predicates.get(layerId));
+                            Metrics.layer(c, layerId).record(System.nanoTime() - st, rows.size());
+                            return rows;
+                        });
+        }
+        return FetchExecutor.invokeInOrder(fetches);
+    }
+
+    // fetch several tiles, all layers concurrently and all tiles of a layer at once
+    // the result is indexed by tile, then by layer
+    private static ArrayList<ArrayList<TypedRows>> fetchTiles(
+            Canvas c, ArrayList<int[]> tiles, ArrayList<String> predicates) throws Exception {
+        ArrayList<Callable<ArrayList<TypedRows>>> fetches = new ArrayList<>();
+        for (int i = 0; i < c.getLayers().size(); i++) {
+            Layer curLayer = c.getLayers().get(i);
+            int layerId = i;
+            // add empty placeholders for static layers
+            if (curLayer.isStatic() || !curLayer.getFetchingScheme().equals("tiling"))
+                fetches.add(
+                        () -> {
+                            ArrayList<TypedRows> empty = new ArrayList<>();
+                            for (int j = 0; j < tiles.size(); j++) empty.add(new TypedRows());
+                            return empty;
+                        });
             else
-                data.add(
-                        curLayer.getIndexer().getDataFromTile(c, i, minx, miny, predicates.get(i)));
+                fetches.add(
+                        () -> {
+                            long st = System.nanoTime();
+                            ArrayList<TypedRows> tileRows =
+                                    curLayer.getIndexer()
+                                            .getDataFromTiles(
+                                                    c, layerId, tiles, predicates.get(layerId));
+                            int numRows = 0;
+                            for (TypedRows rows : tileRows) numRows += rows.size();
+                            Metrics.layer(c, layerId).record(System.nanoTime() - st, numRows);
+                            return tileRows;
+                        });
         }
-        tileCache.put(key, data);
+        ArrayList<ArrayList<TypedRows>> layers = FetchExecutor.invokeInOrder(fetches);
 
+        ArrayList<ArrayList<TypedRows>> data = new ArrayList<>();
+        for (int j = 0; j < tiles.size(); j++) {
+            ArrayList<TypedRows> tileData = new ArrayList<>();
+            for (ArrayList<TypedRows> layer : layers) tileData.add(layer.get(j));
+            data.add(tileData);
+        }
         return data;
     }
+
+    // rough heap footprint of a tile: object headers, references and string contents
+    private static long estimateBytes(String key, ArrayList<TypedRows> data) {
+
+        long bytes = 64 + 2L * key.length();
+        for (TypedRows layer : data) {
+            bytes += 40 + 8L * layer.size();
+            if (!layer.isPlain()) bytes += 8L * TypedRows.NUM_BBOX_COLUMNS * layer.size();
+            for (ArrayList<String> row : layer) {
+                bytes += 40 + 8L * row.size();
+                for (String field : row) if (field != null) bytes += 40 + 2L * field.length();
+            }
+        }
+        return bytes;
+    }
 }
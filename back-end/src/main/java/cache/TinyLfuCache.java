@@ -0,0 +1,340 @@
+package cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache bounded by the estimated size of its values in bytes.
+ *
+ * <p>Keys are spread over independently locked segments. Each segment follows the W-TinyLFU
+ * policy: new entries land in a small LRU window, entries evicted from the window are only
+ * admitted to the main space if they have been requested more often than the entry they would
+ * replace, and the main space is a segmented LRU (probation + protected). A burst of one-off
+ * requests therefore churns the window but leaves frequently requested entries alone.
+ */
+public class TinyLfuCache<K, V> {
+
+    // estimates how many bytes a value occupies
+    public interface Weigher<K, V> {
+        long weigh(K key, V value);
+    }
+
+    // notified of entries removed to make room, e.g. to demote them to a lower cache tier
+    public interface RemovalListener<K, V> {
+        void onRemoval(K key, V value);
+    }
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2, REMOVED = -1;
+    private static final double WINDOW_RATIO = 0.01, PROTECTED_RATIO = 0.8;
+
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        long weight;
+        int queue;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.queue = WINDOW;
+        }
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final HashMap<K, Node<K, V>> nodes = new HashMap<>();
+        // insertion order of these maps is the LRU order, the eldest entry comes first
+        final ArrayList<LinkedHashMap<K, Node<K, V>>> queues = new ArrayList<>();
+        final long[] queueBytes = new long[3];
+        final long maxBytes, maxWindowBytes, maxProtectedBytes;
+        final FrequencySketch sketch = new FrequencySketch();
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxWindowBytes = Math.max(1, (long) (maxBytes * WINDOW_RATIO));
+            this.maxProtectedBytes = (long) ((maxBytes - maxWindowBytes) * PROTECTED_RATIO);
+            for (int i = 0; i < 3; i++) queues.add(new LinkedHashMap<>());
+        }
+
+        long totalBytes() {
+            return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED];
+        }
+
+        void moveTo(Node<K, V> node, int queue) {
+            queues.get(node.queue).remove(node.key);
+            queueBytes[node.queue] -= node.weight;
+            node.queue = queue;
+            queues.get(queue).put(node.key, node);
+            queueBytes[queue] += node.weight;
+        }
+
+        void remove(Node<K, V> node) {
+            nodes.remove(node.key);
+            queues.get(node.queue).remove(node.key);
+            queueBytes[node.queue] -= node.weight;
+            node.queue = REMOVED;
+        }
+
+        Node<K, V> eldest(int queue) {
+            Iterator<Node<K, V>> it = queues.get(queue).values().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+
+        void onHit(Node<K, V> node) {
+            if (node.queue == PROBATION) {
+                moveTo(node, PROTECTED);
+                // keep the protected space within its share, demoting its eldest entries
+                while (queueBytes[PROTECTED] > maxProtectedBytes) {
+                    Node<K, V> demoted = eldest(PROTECTED);
+                    if (demoted == node) break;
+                    moveTo(demoted, PROBATION);
+                }
+            } else moveTo(node, node.queue);
+        }
+
+        // returns the removed nodes if there is a removal listener
+        ArrayList<Node<K, V>> evict() {
+            // entries leaving the window become candidates for the main space
+            ArrayDeque<Node<K, V>> candidates = new ArrayDeque<>();
+            ArrayList<Node<K, V>> removed = (removalListener != null ? new ArrayList<>() : null);
+            while (queueBytes[WINDOW] > maxWindowBytes) {
+                Node<K, V> node = eldest(WINDOW);
+                moveTo(node, PROBATION);
+                candidates.add(node);
+            }
+
+            while (totalBytes() > maxBytes) {
+                Node<K, V> victim = eldest(PROBATION);
+                if (victim == null) victim = eldest(PROTECTED);
+                if (victim == null) victim = eldest(WINDOW);
+                Node<K, V> candidate = candidates.peekLast();
+                if (candidate != null && candidate.queue == REMOVED) {
+                    candidates.pollLast();
+                    continue;
+                }
+
+                // admit the candidate only if it is more popular than the victim
+                if (candidate != null
+                        && candidate != victim
+                        && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    remove(candidate);
+                    rejections.increment();
+                    if (removed != null) removed.add(candidate);
+                } else {
+                    remove(victim);
+                    evictions.increment();
+                    if (removed != null) removed.add(victim);
+                }
+            }
+            return removed;
+        }
+    }
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final Weigher<K, V> weigher;
+    private final RemovalListener<K, V> removalListener;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public TinyLfuCache(long maxBytes, int numSegments, Weigher<K, V> weigher) {
+        this(maxBytes, numSegments, weigher, null);
+    }
+
+    public TinyLfuCache(
+            long maxBytes,
+            int numSegments,
+            Weigher<K, V> weigher,
+            RemovalListener<K, V> removalListener) {
+
+        // round the number of segments up to a power of two
+        int n = 1;
+        while (n < numSegments) n <<= 1;
+        for (int i = 0; i < n; i++) segments.add(new Segment(maxBytes / n));
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments.get(h & (segments.size() - 1));
+    }
+
+    public V get(K key) {
+
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            s.sketch.increment(key);
+            Node<K, V> node = s.nodes.get(key);
+            if (node == null) {
+                misses.increment();
+                return null;
+            }
+            s.onHit(node);
+            hits.increment();
+            return node.value;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public void put(K key, V value) {
+
+        long weight = weigher.weigh(key, value);
+        Segment s = segmentFor(key);
+
+        // values that could never fit are not cached at all
+        if (weight > s.maxBytes) {
+            rejections.increment();
+            if (removalListener != null) removalListener.onRemoval(key, value);
+            return;
+        }
+
+        ArrayList<Node<K, V>> removed;
+        s.lock.lock();
+        try {
+            Node<K, V> node = s.nodes.get(key);
+            if (node != null) {
+                s.queueBytes[node.queue] += weight - node.weight;
+                node.value = value;
+                node.weight = weight;
+                s.moveTo(node, node.queue);
+            } else {
+                node = new Node<>(key, value, weight);
+                s.nodes.put(key, node);
+                s.queues.get(WINDOW).put(key, node);
+                s.queueBytes[WINDOW] += weight;
+            }
+            removed = s.evict();
+        } finally {
+            s.lock.unlock();
+        }
+
+        // notify outside of the lock, the listener may be slow
+        if (removed != null) for (Node<K, V> n : removed) removalListener.onRemoval(n.key, n.value);
+    }
+
+    public void invalidate(K key) {
+
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            Node<K, V> node = s.nodes.get(key);
+            if (node != null) s.remove(node);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public void clear() {
+
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                s.nodes.clear();
+                for (int i = 0; i < 3; i++) {
+                    s.queues.get(i).clear();
+                    s.queueBytes[i] = 0;
+                }
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // entries that were not admitted because they were less popular than the eviction victim
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    public long getEstimatedBytes() {
+
+        long bytes = 0;
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                bytes += s.totalBytes();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    public long getSize() {
+
+        long size = 0;
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                size += s.nodes.size();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often keys were requested recently.
+     * All counters are halved periodically so that old popularity fades away.
+     */
+    private static final class FrequencySketch {
+
+        private static final int WIDTH = 1 << 12;
+        private static final int RESET_SIZE = WIDTH * 10;
+        private static final int[] SEEDS = {0x97cb3127, 0xb7a13a51, 0x31848bab, 0x7b4d5c1f};
+        private final byte[] table = new byte[WIDTH];
+        private int additions = 0;
+
+        private static int indexOf(int hash, int i) {
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            h ^= (h >>> 17);
+            return h & (WIDTH - 1);
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int idx = indexOf(hash, i);
+                if (table[idx] < 15) {
+                    table[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= RESET_SIZE) {
+                for (int i = 0; i < WIDTH; i++) table[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int freq = 15;
+            for (int i = 0; i < SEEDS.length; i++) freq = Math.min(freq, table[indexOf(hash, i)]);
+            return freq;
+        }
+    }
+}
@@ -1,20 +1,27 @@
 package index;
 
 import box.Box;
-import com.coveo.nashorn_modules.FilesystemFolder;
-import com.coveo.nashorn_modules.Require;
-import java.io.File;
+import cache.TileCache;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import javax.script.ScriptEngineManager;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.script.ScriptException;
-import jdk.nashorn.api.scripting.JSObject;
 import jdk.nashorn.api.scripting.NashornScriptEngine;
 import main.Config;
+import main.DbConnector;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Placement;
@@ -25,15 +32,38 @@ public abstract class Indexer implements Serializable {
     // abstract methods
     public abstract void createMV(Canvas c, int layerId) throws Exception;
 
-    public abstract ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception;
+    // rows intersecting newBox but not oldBox
+    public abstract TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception;
 
-    public abstract ArrayList<ArrayList<String>> getDataFromTile(
+    public abstract TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception;
 
     public abstract String getStaticDataQuery(Canvas c, int layerId, String predicate);
 
+    // rows of several tiles, one list per tile in the order of the tiles
+    // tiles are given by their top-left corners {minx, miny}
+    // indexers override this to fetch all the tiles with one query
+    public ArrayList<TypedRows> getDataFromTiles(
+            Canvas c, int layerId, ArrayList<int[]> tiles, String predicate) throws Exception {
+
+        ArrayList<TypedRows> data = new ArrayList<>();
+        for (int[] tile : tiles) data.add(getDataFromTile(c, layerId, tile[0], tile[1], predicate));
+        return data;
+    }
+
+    // layers returning the same key share state (tables, fields of the indexer instance) and are
+    // indexed one after the other in project order, null if the layer can be indexed concurrently
+    protected String getSerialKey(Canvas c, int layerId) {
+        return null;
+    }
+
+    // database extensions the indexer needs, precompute() creates them before any layer is
+    // indexed because creating the same extension from two threads fails
+    protected String[] getExtensions() {
+        return new String[0];
+    }
+
     // associate each layer with a proper indexer
     public static void associateIndexer() throws Exception {
         for (Canvas c : Main.getProject().getCanvases())
@@ -108,51 +138,166 @@ public abstract class Indexer implements Serializable {
 
         associateIndexer();
         long indexingStartTime = System.currentTimeMillis();
+
+        // load d3 into the script engines of the transform workers before any layer needs them
+        boolean hasTransformFunc = false;
+        for (Canvas c : Main.getProject().getCanvases())
+            for (Layer l : c.getLayers())
+                if (!l.getTransform().getTransformFunc().equals("")) hasTransformFunc = true;
+        if (hasTransformFunc) TransformEnginePool.prewarm(Config.numTransformThread);
+
+        // group layers into chains, a chain per serial key and one for every other layer
+        ArrayList<LayerTask> layers = new ArrayList<>();
+        Map<String, ArrayList<LayerTask>> serialChains = new LinkedHashMap<>();
+        ArrayList<ArrayList<LayerTask>> chains = new ArrayList<>();
+        LinkedHashSet<String> extensions = new LinkedHashSet<>();
         for (Canvas c : Main.getProject().getCanvases()) {
+            // persisted tiles of this canvas are stale once its layers are reindexed
+            TileCache.invalidateCanvas(c);
             for (int layerId = 0; layerId < c.getLayers().size(); layerId++) {
-                c.getLayers().get(layerId).getIndexer().createMV(c, layerId);
+                LayerTask task = new LayerTask(c, layerId);
+                layers.add(task);
+                extensions.addAll(Arrays.asList(task.indexer.getExtensions()));
+                String key = task.indexer.getSerialKey(c, layerId);
+                if (key != null) {
+                    if (!serialChains.containsKey(key)) serialChains.put(key, new ArrayList<>());
+                    serialChains.get(key).add(task);
+                } else {
+                    ArrayList<LayerTask> chain = new ArrayList<>();
+                    chain.add(task);
+                    chains.add(chain);
+                }
             }
         }
+        // serial chains are likely the longest, so they start first
+        chains.addAll(0, serialChains.values());
+
+        for (String extension : extensions) {
+            System.out.println("running create extension for " + extension);
+            DbConnector.executeUpdate(
+                    Config.databaseName, "CREATE EXTENSION if not exists " + extension + ";");
+        }
 
+        int numThreads = Math.max(1, Math.min(Config.numIndexingThread, chains.size()));
+        if (numThreads == 1) for (LayerTask task : layers) task.run();
+        else indexConcurrently(chains, numThreads);
+
+        // per-layer timings, in project order
+        double layerSecs = 0;
+        for (LayerTask task : layers) {
+            System.out.println(
+                    "Indexing canvas "
+                            + task.c.getId()
+                            + " layer "
+                            + task.layerId
+                            + " ("
+                            + task.indexer.getClass().getSimpleName()
+                            + ") took: "
+                            + task.nanos / 1e9
+                            + "s.");
+            layerSecs += task.nanos / 1e9;
+        }
         System.out.println(
-                "Indexing took: " + (System.currentTimeMillis() - indexingStartTime) / 1000 + "s.");
+                "Indexing took: "
+                        + (System.currentTimeMillis() - indexingStartTime) / 1000
+                        + "s ("
+                        + Math.round(layerSecs)
+                        + "s summed over layers, "
+                        + numThreads
+                        + " thread(s)).");
         System.out.println("Done precomputing!");
     }
 
-    // common static methods used by child classes
-    protected static NashornScriptEngine setupNashorn(String transformFunc) throws ScriptException {
-
-        NashornScriptEngine engine =
-                (NashornScriptEngine) new ScriptEngineManager().getEngineByName("nashorn");
-        FilesystemFolder rootFolder = FilesystemFolder.create(new File(Config.d3Dir), "UTF-8");
-        Require.enable(engine, rootFolder);
-
-        // register the data transform function with nashorn
-        String script =
-                "var d3 = require('d3');\n"; // TODO: let users specify all required d3 libraries.
-        script += "var trans = " + transformFunc + ";\n";
-        engine.eval(script);
+    // index chains of layers on a pool of threads, layers of a chain one after the other
+    // once a layer fails, layers not started yet are skipped and the first failure is rethrown
+    private static void indexConcurrently(ArrayList<ArrayList<LayerTask>> chains, int numThreads)
+            throws Exception {
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        numThreads,
+                        r -> {
+                            Thread t =
+                                    new Thread(r, "kyrix-indexer-" + threadCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        });
+        AtomicBoolean failed = new AtomicBoolean(false);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for (ArrayList<LayerTask> chain : chains)
+            futures.add(
+                    executor.submit(
+                            () -> {
+                                for (LayerTask task : chain) {
+                                    if (failed.get()) break;
+                                    try {
+                                        task.run();
+                                    } catch (Throwable e) {
+                                        failed.set(true);
+                                        throw e;
+                                    }
+                                }
+                                return null;
+                            }));
+        executor.shutdown();
+
+        Exception firstFailure = null;
+        for (Future<Void> f : futures)
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (firstFailure != null) continue;
+                firstFailure =
+                        (e.getCause() instanceof Exception
+                                ? (Exception) e.getCause()
+                                : new Exception(e.getCause()));
+            }
+        if (firstFailure != null) throw firstFailure;
+    }
 
-        // get rendering parameters
-        engine.put("renderingParams", Main.getProject().getRenderingParams());
+    // indexing of one layer and how long it took
+    private static final class LayerTask {
+        final Canvas c;
+        final int layerId;
+        final Indexer indexer;
+        volatile long nanos = 0;
+
+        LayerTask(Canvas c, int layerId) {
+            this.c = c;
+            this.layerId = layerId;
+            this.indexer = c.getLayers().get(layerId).getIndexer();
+        }
 
-        return engine;
+        void run() throws Exception {
+
+            long st = System.nanoTime();
+            try {
+                indexer.createMV(c, layerId);
+            } catch (Exception e) {
+                System.out.println(
+                        "Indexing canvas " + c.getId() + " layer " + layerId + " failed.");
+                throw e;
+            } finally {
+                nanos = System.nanoTime() - st;
+            }
+        }
     }
 
-    // run the transformed function on a row to get a transformed row
-    protected static ArrayList<String> getTransformedRow(
-            Canvas c, ArrayList<String> row, NashornScriptEngine engine)
+    // common static methods used by child classes
+    // run the transform function on a batch of rows to get the transformed rows
+    // the rows are handed to the script engine in one call
+    protected static ArrayList<ArrayList<String>> getTransformedRows(
+            Canvas c, ArrayList<ArrayList<String>> rows, NashornScriptEngine engine)
             throws ScriptException, NoSuchMethodException {
 
         // TODO: figure out why row.slice does not work. learn more about nashorn types
-        ArrayList<String> transRow = new ArrayList<>();
-        JSObject renderingParamsObj = (JSObject) engine.eval("JSON.parse(renderingParams)");
-        String[] strArray =
-                (String[])
-                        engine.invokeFunction("trans", row, c.getW(), c.getH(), renderingParamsObj);
-        for (int i = 0; i < strArray.length; i++) transRow.add(strArray[i]);
-
-        return transRow;
+        String[][] strArrays =
+                (String[][]) engine.invokeFunction("transBatch", rows, c.getW(), c.getH());
+        ArrayList<ArrayList<String>> transRows = new ArrayList<>(strArrays.length);
+        for (String[] strArray : strArrays) transRows.add(new ArrayList<>(Arrays.asList(strArray)));
+
+        return transRows;
     }
 
     // calculate bounding box indexes for a given row in a given layer
@@ -229,6 +374,65 @@ public abstract class Indexer implements Serializable {
         return bbox;
     }
 
+    // range condition for the rows of newBox that don't intersect oldBox: one index-friendly
+    // box scan per box of newBox minus oldBox, then the exclusion of the old box (null if there
+    // is none), which drops the rows straddling the edge of the old box the client already has
+    // e.g. "(geom && box(point(?, ?), point(?, ?)) or ...) and not (geom && box(...))",
+    // the corners are bound with getDeltaParams
+    protected static String getDeltaCondition(
+            String column, String operator, ArrayList<Box> deltaBoxes, Box excludedBox) {
+
+        String boxCondition = column + " " + operator + " box(point(?, ?), point(?, ?))";
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < deltaBoxes.size(); i++)
+            sb.append(i > 0 ? " or " : "").append(boxCondition);
+        // an empty delta matches nothing
+        if (deltaBoxes.isEmpty()) sb.append("false");
+        sb.append(")");
+        if (excludedBox != null) sb.append(" and not (").append(boxCondition).append(")");
+        return sb.toString();
+    }
+
+    // condition for the rows intersecting any of deltaBoxes, one geometry test per box
+    // e.g. "(ST_Intersects(st_GeomFromText(?), geom) or ...)", the WKT of the boxes are bound
+    // with getWKTParams. The boxes share their edges, so they can't be sent as one multipolygon,
+    // which would be an invalid geometry.
+    protected static String getWKTCondition(String test, ArrayList<Box> deltaBoxes) {
+
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < deltaBoxes.size(); i++) sb.append(i > 0 ? " or " : "").append(test);
+        // an empty delta matches nothing
+        if (deltaBoxes.isEmpty()) sb.append("false");
+        return sb.append(")").toString();
+    }
+
+    protected static Object[] getWKTParams(ArrayList<Box> deltaBoxes) {
+
+        Object[] params = new Object[deltaBoxes.size()];
+        for (int i = 0; i < params.length; i++) params[i] = deltaBoxes.get(i).getWKT();
+        return params;
+    }
+
+    // the old box to exclude from a range query, null if there is none
+    protected static Box getExcludedBox(Box oldBox) {
+        // when there is not an old box, oldBox is set to -1e5, -1e5,...
+        return oldBox.getWidth() > 0 ? oldBox : null;
+    }
+
+    protected static Object[] getDeltaParams(ArrayList<Box> deltaBoxes, Box excludedBox) {
+
+        int numBoxes = deltaBoxes.size() + (excludedBox != null ? 1 : 0);
+        Object[] params = new Object[numBoxes * 4];
+        for (int i = 0; i < numBoxes; i++) {
+            Box b = (i < deltaBoxes.size() ? deltaBoxes.get(i) : excludedBox);
+            params[i * 4] = b.getMinx();
+            params[i * 4 + 1] = b.getMiny();
+            params[i * 4 + 2] = b.getMaxx();
+            params[i * 4 + 3] = b.getMaxy();
+        }
+        return params;
+    }
+
     protected static String getPolygonText(double minx, double miny, double maxx, double maxy) {
 
         String polygonText = "Polygon((";
@@ -4,10 +4,12 @@ import box.Box;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
+import java.util.Arrays;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Transform;
@@ -61,63 +63,52 @@ public class MysqlSpatialIndexer extends BoundingBoxIndexer {
         bboxStmt.executeUpdate(sql);
 
         // if this is an empty layer, return
-        if (trans.getDb().isEmpty()) return;
-
-        // step 1: set up nashorn environment, prepared statement, column name to id mapping
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().isEmpty()) engine = setupNashorn(trans.getTransformFunc());
+        if (trans.getDb().isEmpty()) {
+            bboxStmt.close();
+            return;
+        }
 
-        // step 2: looping through query results
+        // step 1-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
         // TODO: distinguish between separable and non-separable cases
         StringBuilder bboxInsSqlBuilder =
                 new StringBuilder("insert into " + bboxTableName + " values");
 
-        int rowCount = 0;
-        int numColumn = rs.getMetaData().getColumnCount();
-        while (rs.next()) {
-
-            // count log
-            rowCount++;
-            if (rowCount % 1000000 == 0) System.out.println(rowCount);
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow;
-            if (!trans.getTransformFunc().isEmpty())
-                transformedRow = getTransformedRow(c, curRawRow, engine);
-            else transformedRow = curRawRow;
-
-            // step 4: get bounding boxes coordinates
-            ArrayList<Double> curBbox = Indexer.getBboxCoordinates(l, transformedRow);
-
-            // insert into bbox table
-            if (bboxInsSqlBuilder.charAt(bboxInsSqlBuilder.length() - 1) == ')')
-                bboxInsSqlBuilder.append(",(");
-            else bboxInsSqlBuilder.append(" (");
-            for (int i = 0; i < transformedRow.size(); i++)
-                bboxInsSqlBuilder.append(
-                        "'" + transformedRow.get(i).replaceAll("\'", "\\\\'") + "', ");
-            for (int i = 0; i < 6; i++)
-                bboxInsSqlBuilder.append(String.valueOf(curBbox.get(i)) + ", ");
-
-            double minx, miny, maxx, maxy;
-            minx = curBbox.get(2);
-            miny = curBbox.get(3);
-            maxx = curBbox.get(4);
-            maxy = curBbox.get(5);
-            bboxInsSqlBuilder.append("ST_GeomFromText('");
-            bboxInsSqlBuilder.append(getPolygonText(minx, miny, maxx, maxy));
-            bboxInsSqlBuilder.append("'))");
-
-            if (rowCount % Config.bboxBatchSize == 0) {
-                bboxInsSqlBuilder.append(";");
-                bboxStmt.executeUpdate(bboxInsSqlBuilder.toString());
-                bboxInsSqlBuilder = new StringBuilder("insert into " + bboxTableName + " values");
-            }
-        }
+        int rowCount =
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, curBbox) -> {
+                            // insert into bbox table
+                            if (bboxInsSqlBuilder.charAt(bboxInsSqlBuilder.length() - 1) == ')')
+                                bboxInsSqlBuilder.append(",(");
+                            else bboxInsSqlBuilder.append(" (");
+                            for (int i = 0; i < transformedRow.size(); i++)
+                                bboxInsSqlBuilder.append(
+                                        "'"
+                                                + transformedRow.get(i).replaceAll("\'", "\\\\'")
+                                                + "', ");
+                            for (int i = 0; i < 6; i++)
+                                bboxInsSqlBuilder.append(String.valueOf(curBbox.get(i)) + ", ");
+
+                            double minx, miny, maxx, maxy;
+                            minx = curBbox.get(2);
+                            miny = curBbox.get(3);
+                            maxx = curBbox.get(4);
+                            maxy = curBbox.get(5);
+                            bboxInsSqlBuilder.append("ST_GeomFromText('");
+                            bboxInsSqlBuilder.append(getPolygonText(minx, miny, maxx, maxy));
+                            bboxInsSqlBuilder.append("'))");
+
+                            if (rowId % Config.bboxBatchSize == 0) {
+                                bboxInsSqlBuilder.append(";");
+                                bboxStmt.executeUpdate(bboxInsSqlBuilder.toString());
+                                bboxInsSqlBuilder.setLength(0);
+                                bboxInsSqlBuilder.append(
+                                        "insert into " + bboxTableName + " values");
+                            }
+                        });
         rs.close();
         rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
@@ -133,9 +124,12 @@ public class MysqlSpatialIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
+
+        // the area of the new box the client doesn't have yet
+        ArrayList<Box> deltaBoxes = newBox.subtract(oldBox);
+        Object[] params = getWKTParams(deltaBoxes);
 
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
@@ -150,17 +144,17 @@ public class MysqlSpatialIndexer extends BoundingBoxIndexer {
                         + c.getId()
                         + "layer"
                         + layerId
-                        + " where MBRIntersects(GeomFromText";
-        sql += "('" + regionWKT + "'), geom)";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(sql);
+                        + " where "
+                        + getWKTCondition("MBRIntersects(GeomFromText(?), geom)", deltaBoxes);
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} : {}", sql, Arrays.toString(params));
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(Config.databaseName, sql, params);
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
 
         // get column list string
@@ -176,34 +170,14 @@ public class MysqlSpatialIndexer extends BoundingBoxIndexer {
                         + c.getId()
                         + "layer"
                         + layerId
-                        + " where ";
-        sql +=
-                "MBRIntersects(st_GeomFromText('Polygon(("
-                        + minx
-                        + " "
-                        + miny
-                        + ","
-                        + (minx + Config.tileW)
-                        + " "
-                        + miny;
-        sql +=
-                ","
-                        + (minx + Config.tileW)
-                        + " "
-                        + (miny + Config.tileH)
-                        + ","
-                        + minx
-                        + " "
-                        + (miny + Config.tileH)
-                        + ","
-                        + minx
-                        + " "
-                        + miny
-                        + "))'),geom)";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(minx + " " + miny + " : " + sql);
+                        + " where MBRIntersects(st_GeomFromText(?), geom)";
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} {} : {}", minx, miny, sql);
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(
+                Config.databaseName,
+                sql,
+                getPolygonText(minx, miny, minx + Config.tileW, miny + Config.tileH));
     }
 }
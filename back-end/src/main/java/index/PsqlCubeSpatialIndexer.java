@@ -1,15 +1,18 @@
 package index;
 
 import box.Box;
-import java.sql.PreparedStatement;
+import box.BoxandData;
+import index.util.BulkLoader;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Project;
@@ -19,6 +22,9 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
 
     private static PsqlCubeSpatialIndexer instance = null;
     private static final double zIntervalLen = 1e18;
+    // the cube of a range query, bound as minx, miny, minz, maxx, maxy, maxz
+    private static final String CUBE_PARAMS =
+            "cube(array[?, ?, ?]::float8[], array[?, ?, ?]::float8[])";
 
     private PsqlCubeSpatialIndexer() {}
 
@@ -31,12 +37,18 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
         System.out.println("[DEBUG]:  " + msg);
     }
 
+    // all layers share one table, created with the top canvas and indexed with the bottom one
+    @Override
+    protected String getSerialKey(Canvas c, int layerId) {
+        return "bbox_" + Main.getProject().getName();
+    }
+
     @Override
     public void createMV(Canvas c, int layerId) throws Exception {
         Statement bboxStmt = DbConnector.getStmtByDbName(Config.databaseName);
         Layer l = c.getLayers().get(layerId);
         Transform trans = l.getTransform();
-        ArrayList colNames = trans.getColumnNames();
+        ArrayList<String> colNames = trans.getColumnNames();
         Project proj = Main.getProject();
         ArrayList<Canvas> canvases = proj.getCanvases();
         Canvas topCanvas = canvases.get(0);
@@ -68,74 +80,56 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
         }
 
         // if this is an empty layer, return
-        if (trans.getDb().equals("")) return;
-
-        // step 1: set up nashorn environment
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().equals("")) engine = setupNashorn(trans.getTransformFunc());
+        if (trans.getDb().equals("")) {
+            bboxStmt.close();
+            return;
+        }
 
-        // step 2: looping through query results
+        // step 1-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
         Statement rawDBStmt = DbConnector.getStmtByDbName(trans.getDb(), true);
-        ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, trans.getQuery());
-        int numColumn = rs.getMetaData().getColumnCount();
-        int rowCount = 0;
-        String insertSql = "insert into " + bboxTableName + " values (";
-        for (int i = 0; i < colNames.size() + 6; i++) {
-            insertSql += "?, ";
-        }
-        insertSql += "?::cube);";
-        PreparedStatement preparedStmt =
-                DbConnector.getPreparedStatement(Config.databaseName, insertSql);
-        while (rs.next()) {
-
-            // count log
-            rowCount++;
-            if (rowCount % 1000000 == 0) System.out.println(rowCount);
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow;
-            if (!trans.getTransformFunc().equals(""))
-                transformedRow = getTransformedRow(c, curRawRow, engine);
-            else transformedRow = curRawRow;
-
-            // step 4: calculate bounding boxes
-            ArrayList<Double> curBbox = getBboxCoordinates(l, transformedRow);
-
-            // insert into bbox table
-            for (int i = 0; i < transformedRow.size(); i++)
-                preparedStmt.setString(i + 1, transformedRow.get(i).replaceAll("\'", "\'\'"));
-            // preparedStmt.setString(i + 1, transformedRow.get(i));
-            for (int i = 0; i < 6; i++)
-                preparedStmt.setDouble(transformedRow.size() + i + 1, curBbox.get(i));
-
-            double minx, miny, maxx, maxy;
-            minx = curBbox.get(2);
-            miny = curBbox.get(3);
-            maxx = curBbox.get(4);
-            maxy = curBbox.get(5);
-
-            preparedStmt.setString(
-                    transformedRow.size() + 7, getCubeText(minx, miny, maxx, maxy, c));
-            preparedStmt.addBatch();
-
-            if (rowCount % Config.bboxBatchSize == 0) {
-                preparedStmt.executeBatch();
+        try {
+            ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, trans.getQuery());
+            ArrayList<String> columns = new ArrayList<>(colNames);
+            columns.addAll(Arrays.asList(BoxandData.BBOX_FIELDS));
+            columns.add("v");
+            // cube has no binary input function, cubes are sent as text
+            Config.BulkLoadMode mode = BulkLoader.getMode(this);
+            if (mode == Config.BulkLoadMode.COPY_BINARY) mode = Config.BulkLoadMode.COPY_TEXT;
+            BulkLoader loader = new BulkLoader(Config.databaseName, bboxTableName, columns, mode);
+            try {
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, curBbox) -> {
+                            // insert into bbox table
+                            for (int i = 0; i < transformedRow.size(); i++)
+                                loader.putString(transformedRow.get(i));
+                            for (int i = 0; i < 6; i++) loader.putDouble(curBbox.get(i));
+
+                            double minx, miny, maxx, maxy;
+                            minx = curBbox.get(2);
+                            miny = curBbox.get(3);
+                            maxx = curBbox.get(4);
+                            maxy = curBbox.get(5);
+
+                            loader.putLiteral(getCubeText(minx, miny, maxx, maxy, c));
+                            loader.endRow();
+                        });
+
+                // insert tail stuff
+                loader.close();
+            } finally {
+                // stops the load if a row failed, does nothing after close()
+                loader.abort();
             }
+            rs.close();
+        } finally {
+            rawDBStmt.close();
         }
-        rs.close();
-        rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
 
-        // insert tail stuff
-        if (rowCount % Config.bboxBatchSize != 0) {
-            preparedStmt.executeBatch();
-        }
-        preparedStmt.close();
-
         // index on inserted data if the canvas is the bottom-most canvas
         if (c.getId().equals(bottomCanvas.getId())) {
             /*
@@ -153,43 +147,38 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
 
         double minx = newBox.getMinx(), miny = newBox.getMiny();
         double maxx = newBox.getMaxx(), maxy = newBox.getMaxy();
         double minz = getMinZ(c);
         double maxz = minz + zIntervalLen - 100;
 
-        String cubeNew =
-                "cube (" + "array[" + minx + ", " + miny + ", " + minz + "], " + "array[" + maxx
-                        + ", " + maxy + ", " + maxz + "])";
-
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
 
-        System.out.println("in psql cube spatial indexer");
+        Log.trace("in psql cube spatial indexer");
         // construct range query
         String sql =
                 "select "
                         + colListStr
                         + " from bbox_"
                         + Main.getProject().getName()
-                        + " where v && ";
-        sql += cubeNew;
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        else sql += ";";
-        System.out.println(sql);
+                        + " where v && "
+                        + CUBE_PARAMS;
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} : {}", sql, newBox.getCSV());
 
-        ArrayList<ArrayList<String>> queryResult =
-                DbConnector.getQueryResult(Config.databaseName, sql);
+        TypedRows queryResult =
+                DbConnector.getTypedQueryResult(
+                        Config.databaseName, sql, minx, miny, minz, maxx, maxy, maxz);
 
         return queryResult;
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
 
         // get column list string
@@ -198,22 +187,6 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
         // make bounding box cube to intersect with
         double minz = getMinZ(c);
         double maxz = minz + zIntervalLen - 100;
-        String tileCube =
-                "cube ("
-                        + "("
-                        + minx
-                        + ", "
-                        + miny
-                        + ", "
-                        + minz
-                        + "), "
-                        + "("
-                        + (minx + Config.tileW)
-                        + ", "
-                        + (miny + Config.tileH)
-                        + ", "
-                        + maxz
-                        + "))";
 
         // construct range query
         String sql =
@@ -222,13 +195,19 @@ public class PsqlCubeSpatialIndexer extends BoundingBoxIndexer {
                         + " from bbox_"
                         + Main.getProject().getName()
                         + " where v && "
-                        + tileCube;
-
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        else sql += ";";
+                        + CUBE_PARAMS;
+        if (predicate.length() > 0) sql += " and " + predicate;
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(
+                Config.databaseName,
+                sql,
+                (double) minx,
+                (double) miny,
+                minz,
+                (double) (minx + Config.tileW),
+                (double) (miny + Config.tileH),
+                maxz);
     }
 
     private static String getCubeText(
@@ -3,14 +3,16 @@ package index;
 import box.Box;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Transform;
@@ -34,17 +36,16 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
         return instance;
     }
 
+    @Override
+    protected String[] getExtensions() {
+        return new String[] {"postgis", "postgis_topology"};
+    }
+
     @Override
     public void createMV(Canvas c, int layerId) throws Exception {
 
         Statement bboxStmt = DbConnector.getStmtByDbName(Config.databaseName);
 
-        // create postgis extension if not existed
-        String psql = "CREATE EXTENSION if not exists postgis;";
-        bboxStmt.executeUpdate(psql);
-        psql = "CREATE EXTENSION if not exists postgis_topology;";
-        bboxStmt.executeUpdate(psql);
-
         // set up query iterator
         Layer l = c.getLayers().get(layerId);
         Transform trans = l.getTransform();
@@ -76,123 +77,42 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
         bboxStmt.executeUpdate(sql);
 
         // if this is an empty layer, return
-        if (trans.getDb().equals("")) return;
-
-        // step 1: set up nashorn environment, prepared statement, column name to id mapping
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().equals("")) engine = setupNashorn(trans.getTransformFunc());
-
-        // step 2: looping through query results
-        // TODO: distinguish between separable and non-separable cases
+        if (trans.getDb().equals("")) {
+            bboxStmt.close();
+            return;
+        }
 
-        // prepared statements
+        // step 1: prepared statement
         String insertSql = "insert into " + ungroupedTableName + " values (?, ?, ?, ?, ?, ?, ?);";
-        PreparedStatement insPrepStmt =
+        PreparedStatement ungroupedInsStmt =
                 DbConnector.getPreparedStatement(Config.databaseName, insertSql);
 
         // in-memory structures to maintain for each batch of records
         HashMap<String, StringBuilder> blobs = new HashMap<>();
         HashMap<String, Box> boxes = new HashMap<>();
 
-        // fetch query result
+        // step 2-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
+        // TODO: distinguish between separable and non-separable cases
         long st = System.currentTimeMillis();
-        long lastBatchSt = st;
+        long[] lastBatchSt = {st};
         System.out.println("\nConstructing ungrouped table...");
-
-        int rowCount = 0, insCount;
-        int numColumn = rs.getMetaData().getColumnCount();
-        while (true) {
-
-            // count log
-            boolean hasNext = rs.next();
-            rowCount++;
-
-            // flush stuff in blobs and boxes to the database
-            if (rowCount % batchSize == 0 || !hasNext) {
-                System.out.println(
-                        "In-memory processing for this batch: "
-                                + (System.currentTimeMillis() - lastBatchSt) / 1000.0
-                                + "s.");
-                System.out.println(rowCount);
-                insCount = 0;
-                for (String gridKey : blobs.keySet()) {
-
-                    // grid_x and grid_y
-                    int gridX = Integer.valueOf(gridKey.split("_")[0]);
-                    int gridY = Integer.valueOf(gridKey.split("_")[1]);
-
-                    // get current blob and bbox
-                    StringBuilder curBlob = blobs.get(gridKey);
-                    Box curBbox = boxes.get(gridKey);
-
-                    // new record
-                    insPrepStmt.setInt(1, gridX);
-                    insPrepStmt.setInt(2, gridY);
-                    insPrepStmt.setString(3, curBlob.toString());
-                    insPrepStmt.setDouble(4, curBbox.getMinx());
-                    insPrepStmt.setDouble(5, curBbox.getMiny());
-                    insPrepStmt.setDouble(6, curBbox.getMaxx());
-                    insPrepStmt.setDouble(7, curBbox.getMaxy());
-                    insPrepStmt.addBatch();
-                    insCount++;
-                    if (insCount % updBatchSize == 0) insPrepStmt.executeBatch();
-                }
-                System.out.println("Insertion count: " + insCount);
-                insPrepStmt.executeBatch();
-                blobs.clear();
-                boxes.clear();
-                lastBatchSt = System.currentTimeMillis();
-            }
-            if (!hasNext) break;
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow;
-            if (!trans.getTransformFunc().equals(""))
-                transformedRow = getTransformedRow(c, curRawRow, engine);
-            else transformedRow = curRawRow;
-
-            // step 4: calculate bounding boxes
-            ArrayList<Double> bbox = getBboxCoordinates(l, transformedRow);
-            double minx, miny, maxx, maxy;
-            minx = bbox.get(2);
-            miny = bbox.get(3);
-            maxx = bbox.get(4);
-            maxy = bbox.get(5);
-
-            // grid indexes
-            int gridX = bbox.get(0).intValue() / gridW;
-            int gridY = bbox.get(1).intValue() / gridH;
-            String gridKey = String.valueOf(gridX) + "_" + String.valueOf(gridY);
-
-            // update blob
-            if (!blobs.containsKey(gridKey)) blobs.put(gridKey, new StringBuilder());
-            StringBuilder curBlob = blobs.get(gridKey);
-            if (curBlob.length() > 0) curBlob.append("__");
-            curBlob.append(transformedRow.get(0));
-            for (int i = 1; i < transformedRow.size(); i++)
-                curBlob.append("&&" + transformedRow.get(i));
-            for (int i = 0; i < bbox.size(); i++)
-                curBlob.append("&&" + String.valueOf(bbox.get(i)));
-
-            // update bounding box
-            if (!boxes.containsKey(gridKey)) boxes.put(gridKey, new Box(minx, miny, maxx, maxy));
-            else {
-                Box curBox = boxes.get(gridKey);
-                minx = Math.min(minx, curBox.getMinx());
-                miny = Math.min(miny, curBox.getMiny());
-                maxx = Math.max(maxx, curBox.getMaxx());
-                maxy = Math.max(maxy, curBox.getMaxy());
-                boxes.put(gridKey, new Box(minx, miny, maxx, maxy));
-            }
-        }
+        int rowCount =
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, bbox) -> {
+                            addToGrid(transformedRow, bbox, blobs, boxes);
+                            // flush stuff in blobs and boxes to the database
+                            if (rowId % batchSize == 0)
+                                flushGrids(blobs, boxes, ungroupedInsStmt, rowId, lastBatchSt);
+                        });
+        flushGrids(blobs, boxes, ungroupedInsStmt, rowCount, lastBatchSt);
         rs.close();
         rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
-        insPrepStmt.close();
+        ungroupedInsStmt.close();
         System.out.println(
                 "Constructing ungrouped table: "
                         + (System.currentTimeMillis() - st) / 1000.0
@@ -214,7 +134,8 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
 
         // prepared statements
         insertSql = "insert into " + groupedTableName + " values (?, ST_GeomFromText(?));";
-        insPrepStmt = DbConnector.getPreparedStatement(Config.databaseName, insertSql);
+        PreparedStatement insPrepStmt =
+                DbConnector.getPreparedStatement(Config.databaseName, insertSql);
 
         // info of current group
         int curGridX = -1, curGridY = -1;
@@ -225,7 +146,8 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
         sql = "select * from " + ungroupedTableName + " order by grid_x asc, grid_y asc;";
         Statement ungroupedStmt = DbConnector.getStmtByDbName(Config.databaseName, true);
         rs = DbConnector.getQueryResultIterator(ungroupedStmt, sql);
-        rowCount = insCount = 0;
+        rowCount = 0;
+        int insCount = 0;
         System.out.println("\nConstructing grouped table...");
         while (rs.next()) {
             rowCount++;
@@ -282,10 +204,96 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
         DbConnector.closeConnection(Config.databaseName);
     }
 
+    // add a row to the blob and bounding box of its grid
+    private void addToGrid(
+            ArrayList<String> transformedRow,
+            ArrayList<Double> bbox,
+            HashMap<String, StringBuilder> blobs,
+            HashMap<String, Box> boxes) {
+
+        double minx, miny, maxx, maxy;
+        minx = bbox.get(2);
+        miny = bbox.get(3);
+        maxx = bbox.get(4);
+        maxy = bbox.get(5);
+
+        // grid indexes
+        int gridX = bbox.get(0).intValue() / gridW;
+        int gridY = bbox.get(1).intValue() / gridH;
+        String gridKey = String.valueOf(gridX) + "_" + String.valueOf(gridY);
+
+        // update blob
+        if (!blobs.containsKey(gridKey)) blobs.put(gridKey, new StringBuilder());
+        StringBuilder curBlob = blobs.get(gridKey);
+        if (curBlob.length() > 0) curBlob.append("__");
+        curBlob.append(transformedRow.get(0));
+        for (int i = 1; i < transformedRow.size(); i++)
+            curBlob.append("&&" + transformedRow.get(i));
+        for (int i = 0; i < bbox.size(); i++) curBlob.append("&&" + String.valueOf(bbox.get(i)));
+
+        // update bounding box
+        if (!boxes.containsKey(gridKey)) boxes.put(gridKey, new Box(minx, miny, maxx, maxy));
+        else {
+            Box curBox = boxes.get(gridKey);
+            minx = Math.min(minx, curBox.getMinx());
+            miny = Math.min(miny, curBox.getMiny());
+            maxx = Math.max(maxx, curBox.getMaxx());
+            maxy = Math.max(maxy, curBox.getMaxy());
+            boxes.put(gridKey, new Box(minx, miny, maxx, maxy));
+        }
+    }
+
+    // insert the blobs and boxes of a batch of rows into the ungrouped table
+    private void flushGrids(
+            HashMap<String, StringBuilder> blobs,
+            HashMap<String, Box> boxes,
+            PreparedStatement insPrepStmt,
+            int rowCount,
+            long[] lastBatchSt)
+            throws SQLException {
+
+        System.out.println(
+                "In-memory processing for this batch: "
+                        + (System.currentTimeMillis() - lastBatchSt[0]) / 1000.0
+                        + "s.");
+        System.out.println(rowCount);
+        int insCount = 0;
+        for (String gridKey : blobs.keySet()) {
+
+            // grid_x and grid_y
+            int gridX = Integer.valueOf(gridKey.split("_")[0]);
+            int gridY = Integer.valueOf(gridKey.split("_")[1]);
+
+            // get current blob and bbox
+            StringBuilder curBlob = blobs.get(gridKey);
+            Box curBbox = boxes.get(gridKey);
+
+            // new record
+            insPrepStmt.setInt(1, gridX);
+            insPrepStmt.setInt(2, gridY);
+            insPrepStmt.setString(3, curBlob.toString());
+            insPrepStmt.setDouble(4, curBbox.getMinx());
+            insPrepStmt.setDouble(5, curBbox.getMiny());
+            insPrepStmt.setDouble(6, curBbox.getMaxx());
+            insPrepStmt.setDouble(7, curBbox.getMaxy());
+            insPrepStmt.addBatch();
+            insCount++;
+            if (insCount % updBatchSize == 0) insPrepStmt.executeBatch();
+        }
+        System.out.println("Insertion count: " + insCount);
+        insPrepStmt.executeBatch();
+        blobs.clear();
+        boxes.clear();
+        lastBatchSt[0] = System.currentTimeMillis();
+    }
+
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
+
+        // the area of the new box the client doesn't have yet
+        ArrayList<Box> deltaBoxes = newBox.subtract(oldBox);
+        Object[] params = getWKTParams(deltaBoxes);
 
         // construct range query
         String sql =
@@ -295,14 +303,14 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
                         + c.getId()
                         + "layer"
                         + layerId
-                        + " where ST_Intersects(st_GeomFromText";
-        sql += "('" + regionWKT + "'), geom)";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(sql);
+                        + " where "
+                        + getWKTCondition("ST_Intersects(st_GeomFromText(?), geom)", deltaBoxes);
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} : {}", sql, Arrays.toString(params));
 
         // get compressed tuples
         ArrayList<ArrayList<String>> compressedTuples =
-                DbConnector.getQueryResult(Config.databaseName, sql);
+                DbConnector.getQueryResult(Config.databaseName, sql, params);
         ArrayList<ArrayList<String>> ret = new ArrayList<>();
         for (int i = 0; i < compressedTuples.size(); i++) {
             String tupleBlob = compressedTuples.get(i).get(0);
@@ -311,11 +319,11 @@ public class PsqlGridCompressIndexer extends BoundingBoxIndexer {
                 ret.add(new ArrayList<>(Arrays.asList(tupleStr.split("&&"))));
         }
 
-        return ret;
+        return TypedRows.plain(ret);
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
         return null;
     }
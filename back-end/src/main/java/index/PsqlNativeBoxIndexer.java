@@ -1,16 +1,20 @@
 package index;
 
 import box.Box;
-import java.sql.PreparedStatement;
+import box.BoxandData;
+import index.util.BulkLoader;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.function.*;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.PhaseTimer;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Transform;
@@ -210,108 +214,63 @@ public class PsqlNativeBoxIndexer extends BoundingBoxIndexer {
                             + bboxTableName
                             + (isCitus ? " in parallel" : ""));
             startTs = currTs;
+            pushdownIndexStmt.close();
 
             return;
         }
 
-        // step 1: set up nashorn environment for running javascript code
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().equals("")) engine = setupNashorn(trans.getTransformFunc());
-
-        // step 2: looping through query results
-        // TODO: distinguish between separable and non-separable cases
+        // step 1-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
         String transDb = trans.getDb();
         String transQuery = trans.getQuery();
         System.out.println("db=" + transDb + " - query=" + transQuery);
         Statement rawDBStmt = DbConnector.getStmtByDbName(transDb, true);
-        ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, transQuery);
-        int numColumn = rs.getMetaData().getColumnCount();
-        int rowCount = 0;
-        String insertSql = "INSERT INTO " + bboxTableName + " VALUES (";
-        // for debugging, vary number of spaces after the commas
-        for (int i = 0; i < trans.getColumnNames().size(); i++) {
-            insertSql += "?,";
-        }
-        if (isCitus) insertSql += "?,";
-        insertSql += "?,?,?,?,?,?)";
-        System.out.println(insertSql);
-        PreparedStatement preparedStmt =
-                DbConnector.getPreparedStatement(Config.databaseName, insertSql);
-        long startTs = (new Date()).getTime();
-        long lastTs = startTs;
-        long currTs = 0;
-        long secs = 0;
-        int numcols = 0;
-        int batchsize = Config.bboxBatchSize;
-        boolean isNullTransform = trans.getTransformFunc().equals("");
-        System.out.println(
-                "batchsize="
-                        + String.valueOf(batchsize)
-                        + "  numColumn="
-                        + String.valueOf(numColumn));
-        while (rs.next()) {
-
-            // count log - important to increment early so modulo-zero doesn't trigger on first
-            // iteration
-            rowCount++;
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow =
-                    isNullTransform ? curRawRow : getTransformedRow(c, curRawRow, engine);
-
-            // step 4: calculate bounding boxes
-            ArrayList<Double> curBbox = getBboxCoordinates(l, transformedRow);
-
-            // insert into bbox table
-            if (numcols == 0) {
-                numcols = trans.getColumnNames().size();
-                System.out.println("numcols=" + String.valueOf(numcols));
-            }
-            int pscol = 1;
-            for (int i = 0; i < numcols; i++)
-                preparedStmt.setString(pscol++, transformedRow.get(i).replaceAll("\'", "\'\'"));
-            if (isCitus) preparedStmt.setDouble(pscol++, rowCount);
-            for (int i = 0; i < 6; i++) preparedStmt.setDouble(pscol++, curBbox.get(i));
-            preparedStmt.addBatch();
-            if (rowCount % batchsize == 0) {
-                preparedStmt.executeBatch();
+        try {
+            ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, transQuery);
+            ArrayList<String> columns = new ArrayList<>(trans.getColumnNames());
+            if (isCitus) columns.add("citus_distribution_id");
+            columns.addAll(Arrays.asList(BoxandData.BBOX_FIELDS));
+            BulkLoader loader =
+                    new BulkLoader(
+                            Config.databaseName, bboxTableName, columns, BulkLoader.getMode(this));
+            try {
+                int numcols = trans.getColumnNames().size();
+                System.out.println(
+                        "bulk load mode="
+                                + BulkLoader.getMode(this)
+                                + "  numColumn="
+                                + String.valueOf(rs.getMetaData().getColumnCount())
+                                + "  numcols="
+                                + String.valueOf(numcols));
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, curBbox) -> {
+                            // insert into bbox table
+                            for (int i = 0; i < numcols; i++)
+                                loader.putString(transformedRow.get(i));
+                            if (isCitus) loader.putInt(rowId);
+                            for (int i = 0; i < 6; i++) loader.putDouble(curBbox.get(i));
+                            loader.endRow();
+                        });
+
+                // insert tail stuff
+                loader.close();
+            } finally {
+                // stops the load if a row failed, does nothing after close()
+                loader.abort();
             }
-            if (rowCount % 1000 == 0) {
-                // perf: only measure to the nearest 1K recs/sec
-                // getTime() is expensive
-                currTs = (new Date()).getTime();
-                if (currTs / 10000 > lastTs / 10000) { // print every N=10 seconds
-                    lastTs = currTs;
-                    secs = (currTs - startTs) / 1000;
-                    if (secs > 0) {
-                        System.out.println(
-                                secs
-                                        + " secs: "
-                                        + rowCount
-                                        + " records inserted. "
-                                        + (rowCount / secs)
-                                        + " recs/sec.");
-                    }
-                }
-            }
-        }
 
-        // insert tail stuff
-        if (rowCount % batchsize != 0) {
-            preparedStmt.executeBatch();
+            // close reader connection
+            rs.close();
+        } finally {
+            rawDBStmt.close();
         }
-        preparedStmt.close();
-
-        // close reader connection
-        rs.close();
-        rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
 
-        startTs = (new Date()).getTime();
+        long startTs = (new Date()).getTime();
+        long currTs;
 
         // TODO: move to parallel kyrix-indexing: pushdown this computation into the DB and run on
         // each shard independently.
@@ -382,10 +341,27 @@ public class PsqlNativeBoxIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
 
+        // return
+        ArrayList<Box> deltaBoxes = newBox.subtract(oldBox);
+        Box excludedBox = getExcludedBox(oldBox);
+        return DbConnector.getTypedQueryResult(
+                Config.databaseName,
+                getRegionQuery(c, layerId, predicate, deltaBoxes, excludedBox),
+                getDeltaParams(deltaBoxes, excludedBox));
+    }
+
+    // the boxes are bind parameters, see getDeltaParams
+    private String getRegionQuery(
+            Canvas c,
+            int layerId,
+            String predicate,
+            ArrayList<Box> deltaBoxes,
+            Box excludedBox) {
+
+        long st = PhaseTimer.begin();
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
 
@@ -400,20 +376,19 @@ public class PsqlNativeBoxIndexer extends BoundingBoxIndexer {
                         + "layer"
                         + layerId
                         + " where ";
-        sql += "geom && box('" + newBox.getCSV() + "')";
-        if (oldBox.getWidth() > 0) // when there is not an old box, oldBox is set to -1e5, -1e5,...
-        sql += "and not (geom && box('" + oldBox.getCSV() + "') )";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(sql);
+        sql += getDeltaCondition("geom", "&&", deltaBoxes, excludedBox);
+        if (predicate.length() > 0) sql += " and " + predicate;
+        PhaseTimer.end(PhaseTimer.Phase.SQL, st);
+        Log.debug("{}", sql);
 
-        // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return sql;
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
 
+        long st = PhaseTimer.begin();
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
 
@@ -428,22 +403,74 @@ public class PsqlNativeBoxIndexer extends BoundingBoxIndexer {
                         + "layer"
                         + layerId
                         + " where ";
-        String boxStr =
-                "geom && box( '"
-                        + minx
-                        + ","
-                        + miny
-                        + ","
-                        + (minx + Config.tileW)
-                        + ","
-                        + (miny + Config.tileH)
-                        + "')";
-        sql += boxStr;
+        sql += "geom && box(point(?, ?), point(?, ?))";
         if (predicate.length() > 0) sql += " and " + predicate;
-        sql += ";";
-        System.out.println(boxStr + " : " + sql);
+        PhaseTimer.end(PhaseTimer.Phase.SQL, st);
+        Log.debug("{} {} : {}", minx, miny, sql);
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(
+                Config.databaseName,
+                sql,
+                (double) minx,
+                (double) miny,
+                (double) (minx + Config.tileW),
+                (double) (miny + Config.tileH));
+    }
+
+    // one range query over the union of the tiles, rows are assigned to tiles here
+    @Override
+    public ArrayList<TypedRows> getDataFromTiles(
+            Canvas c, int layerId, ArrayList<int[]> tiles, String predicate) throws Exception {
+
+        if (tiles.size() == 1) return super.getDataFromTiles(c, layerId, tiles, predicate);
+
+        long st = PhaseTimer.begin();
+        // get column list string
+        String colListStr = c.getLayers().get(layerId).getColStr("");
+
+        // construct range query
+        String sql =
+                "select "
+                        + colListStr
+                        + " from bbox_"
+                        + Main.getProject().getName()
+                        + "_"
+                        + c.getId()
+                        + "layer"
+                        + layerId
+                        + " where (";
+        Object[] params = new Object[tiles.size() * 4];
+        for (int i = 0; i < tiles.size(); i++) {
+            int minx = tiles.get(i)[0], miny = tiles.get(i)[1];
+            if (i > 0) sql += " or ";
+            sql += "geom && box(point(?, ?), point(?, ?))";
+            params[i * 4] = (double) minx;
+            params[i * 4 + 1] = (double) miny;
+            params[i * 4 + 2] = (double) (minx + Config.tileW);
+            params[i * 4 + 3] = (double) (miny + Config.tileH);
+        }
+        sql += ")";
+        if (predicate.length() > 0) sql += " and " + predicate;
+        PhaseTimer.end(PhaseTimer.Phase.SQL, st);
+        Log.debug("{} : {}", sql, params);
+
+        // a row goes to every tile its bounding box overlaps, with the same
+        // inclusive bounds as the && operator
+        ArrayList<TypedRows> data = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++) data.add(new TypedRows());
+        TypedRows rows = DbConnector.getTypedQueryResult(Config.databaseName, sql, params);
+        for (int j = 0; j < rows.size(); j++) {
+            double minx = rows.getBbox(j, 2), miny = rows.getBbox(j, 3);
+            double maxx = rows.getBbox(j, 4), maxy = rows.getBbox(j, 5);
+            for (int i = 0; i < tiles.size(); i++) {
+                int[] tile = tiles.get(i);
+                if (minx <= tile[0] + Config.tileW
+                        && maxx >= tile[0]
+                        && miny <= tile[1] + Config.tileH
+                        && maxy >= tile[1]) data.get(i).add(rows, j);
+            }
+        }
+        return data;
     }
 }
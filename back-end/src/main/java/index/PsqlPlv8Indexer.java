@@ -6,7 +6,9 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Placement;
@@ -70,7 +72,10 @@ public class PsqlPlv8Indexer extends BoundingBoxIndexer {
         }
 
         // if this is an empty layer, return
-        if (trans.getDb().equals("")) return;
+        if (trans.getDb().equals("")) {
+            bboxStmt.close();
+            return;
+        }
 
         // check that raw data is in kyrix db
         if (!trans.getDb().equals(Config.databaseName))
@@ -216,21 +221,24 @@ public class PsqlPlv8Indexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
 
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
 
         // final data
-        ArrayList<ArrayList<String>> ret = new ArrayList<>();
+        TypedRows ret = new TypedRows();
 
         // minPartitionID & maxParititonId
         double partitionWidth = (double) c.getW() / NUM_PARTITIONS;
         int minPartitionId = (int) Math.floor(newBox.getMinx() / partitionWidth);
         int maxPartitionId = (int) Math.floor(newBox.getMaxx() / partitionWidth);
 
+        // the part of the new box the client doesn't have yet
+        ArrayList<Box> deltaBoxes = newBox.subtract(oldBox);
+        Box excludedBox = getExcludedBox(oldBox);
+
         // loop through all partitions (hopefully it's one most of the time)
         for (int i = minPartitionId; i <= maxPartitionId; i++) {
             // construct range query
@@ -246,22 +254,21 @@ public class PsqlPlv8Indexer extends BoundingBoxIndexer {
                             + "_"
                             + i
                             + " where ";
-            sql += "geom && box('" + newBox.getCSV() + "')";
-            if (oldBox.getWidth()
-                    > 0) // when there is not an old box, oldBox is set to -1e5, -1e5,...
-            sql += "and not (geom && box('" + oldBox.getCSV() + "') )";
-            if (predicate.length() > 0) sql += " and " + predicate + ";";
-            System.out.println(sql);
+            sql += getDeltaCondition("geom", "&&", deltaBoxes, excludedBox);
+            if (predicate.length() > 0) sql += " and " + predicate;
+            Log.debug("{}", sql);
 
             // return
-            ret.addAll(DbConnector.getQueryResult(Config.databaseName, sql));
+            ret.addAll(
+                    DbConnector.getTypedQueryResult(
+                            Config.databaseName, sql, getDeltaParams(deltaBoxes, excludedBox)));
         }
 
         return ret;
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
         return null;
     }
@@ -1,9 +1,11 @@
 package index;
 
-import java.sql.PreparedStatement;
+import box.BoxandData;
+import index.util.BulkLoader;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import main.Config;
@@ -87,99 +89,95 @@ class PsqlPredicatedTableIndexer extends PsqlNativeBoxIndexer {
         System.out.println("db=" + transDb + " - query=" + transQuery);
 
         Statement rawDBStmt = DbConnector.getStmtByDbName(transDb, true);
-        ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, transQuery);
-        int numColumn = rs.getMetaData().getColumnCount();
-        int rowCount = 0;
-        String insertSql = "INSERT INTO " + bboxTableName + " VALUES (";
-        // for debugging, vary number of spaces after the commas
-        for (int i = 0; i < predSchema.size(); i++) {
-            insertSql += "?,";
-        }
-        insertSql += "?,?,?,?,?,?)";
-        System.out.println(insertSql);
-        PreparedStatement preparedStmt =
-                DbConnector.getPreparedStatement(Config.databaseName, insertSql);
         long startTs = (new Date()).getTime();
-        long lastTs = startTs;
         long currTs = 0;
-        long secs = 0;
-        int numcols = predSchema.size();
-        int batchsize = Config.bboxBatchSize;
-        System.out.println(
-                "batchsize="
-                        + String.valueOf(batchsize)
-                        + "  numColumn="
-                        + String.valueOf(numColumn));
-        double heads_height = t.getHeadsHeight();
-        double cell_height = t.getCellHeight();
-        double y0 = t.getY();
-        while (rs.next()) {
-            rowCount++;
-
-            StringBuilder hashkeysb = new StringBuilder();
-            for (int i : indices) {
-                hashkeysb.append(rs.getString(i + 1));
-            }
-            String hashkey = hashkeysb.toString();
-            // get the row number of current row in current category
-            int rn = hashMap.getOrDefault(hashkey, 0) + 1;
-            // update rn(row number)
-            hashMap.put(hashkey, rn);
-
-            double ty = y0 + heads_height + (rn - 0.5) * cell_height;
-
-            // raw: fields, rn, groupby
-            // transformed: fields, rn, ty, groupby
-            int pscol = 1;
-            ArrayList<String> transformedRow = new ArrayList<>();
-            for (int i = 0; i < numcols; i++) {
-                if (i < indexOfTy - 1) {
-                    transformedRow.add(rs.getString(i + 1));
-                } else if (i == indexOfTy - 1) {
-                    transformedRow.add(rn + "");
-                } else if (i == indexOfTy) {
-                    transformedRow.add(ty + "");
-                } else {
-                    transformedRow.add(rs.getString(i));
-                }
-                // more compact this way, no need for the second looping
-                preparedStmt.setString(pscol++, transformedRow.get(i).replaceAll("\'", "\'\'"));
-            }
-
-            ArrayList<Double> curBbox = getBboxCoordinates(l, transformedRow);
-            for (int i = 0; i < 6; i++) preparedStmt.setDouble(pscol++, curBbox.get(i));
-            preparedStmt.addBatch();
+        try {
+            ResultSet rs = DbConnector.getQueryResultIterator(rawDBStmt, transQuery);
+            int numColumn = rs.getMetaData().getColumnCount();
+            int rowCount = 0;
+            ArrayList<String> columns = new ArrayList<>(predSchema);
+            columns.addAll(Arrays.asList(BoxandData.BBOX_FIELDS));
+            BulkLoader loader =
+                    new BulkLoader(
+                            Config.databaseName, bboxTableName, columns, BulkLoader.getMode(this));
+            try {
+                long lastTs = startTs;
+                long secs = 0;
+                int numcols = predSchema.size();
+                System.out.println(
+                        "bulk load mode="
+                                + BulkLoader.getMode(this)
+                                + "  numColumn="
+                                + String.valueOf(numColumn));
+                double heads_height = t.getHeadsHeight();
+                double cell_height = t.getCellHeight();
+                double y0 = t.getY();
+                while (rs.next()) {
+                    rowCount++;
+
+                    StringBuilder hashkeysb = new StringBuilder();
+                    for (int i : indices) {
+                        hashkeysb.append(rs.getString(i + 1));
+                    }
+                    String hashkey = hashkeysb.toString();
+                    // get the row number of current row in current category
+                    int rn = hashMap.getOrDefault(hashkey, 0) + 1;
+                    // update rn(row number)
+                    hashMap.put(hashkey, rn);
+
+                    double ty = y0 + heads_height + (rn - 0.5) * cell_height;
+
+                    // raw: fields, rn, groupby
+                    // transformed: fields, rn, ty, groupby
+                    ArrayList<String> transformedRow = new ArrayList<>();
+                    for (int i = 0; i < numcols; i++) {
+                        if (i < indexOfTy - 1) {
+                            transformedRow.add(rs.getString(i + 1));
+                        } else if (i == indexOfTy - 1) {
+                            transformedRow.add(rn + "");
+                        } else if (i == indexOfTy) {
+                            transformedRow.add(ty + "");
+                        } else {
+                            transformedRow.add(rs.getString(i));
+                        }
+                        // more compact this way, no need for the second looping
+                        loader.putString(transformedRow.get(i));
+                    }
 
-            if (rowCount % batchsize == 0) {
-                preparedStmt.executeBatch();
-            }
-            if (rowCount % 1000 == 0) {
-                // perf: only measure to the nearest 1K recs/sec
-                currTs = (new Date()).getTime();
-                if (currTs / 10000 > lastTs / 10000) { // print every N=10 seconds
-                    lastTs = currTs;
-                    secs = (currTs - startTs) / 1000;
-                    if (secs > 0) {
-                        System.out.println(
-                                secs
-                                        + " secs: "
-                                        + rowCount
-                                        + " records inserted. "
-                                        + (rowCount / secs)
-                                        + " recs/sec.");
+                    ArrayList<Double> curBbox = getBboxCoordinates(l, transformedRow);
+                    for (int i = 0; i < 6; i++) loader.putDouble(curBbox.get(i));
+                    loader.endRow();
+
+                    if (rowCount % 1000 == 0) {
+                        // perf: only measure to the nearest 1K recs/sec
+                        currTs = (new Date()).getTime();
+                        if (currTs / 10000 > lastTs / 10000) { // print every N=10 seconds
+                            lastTs = currTs;
+                            secs = (currTs - startTs) / 1000;
+                            if (secs > 0) {
+                                System.out.println(
+                                        secs
+                                                + " secs: "
+                                                + rowCount
+                                                + " records inserted. "
+                                                + (rowCount / secs)
+                                                + " recs/sec.");
+                            }
+                        }
                     }
                 }
+                // insert tail stuff
+                loader.close();
+            } finally {
+                // stops the load if a row failed, does nothing after close()
+                loader.abort();
             }
-        }
-        // insert tail stuff
-        if (rowCount % batchsize != 0) {
-            preparedStmt.executeBatch();
-        }
-        preparedStmt.close();
 
-        // close reader connection
-        rs.close();
-        rawDBStmt.close();
+            // close reader connection
+            rs.close();
+        } finally {
+            rawDBStmt.close();
+        }
         DbConnector.closeConnection(trans.getDb());
 
         startTs = (new Date()).getTime();
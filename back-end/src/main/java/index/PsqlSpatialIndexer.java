@@ -5,11 +5,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Date;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
+import java.util.Arrays;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Transform;
@@ -34,18 +35,16 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
         return instance;
     }
 
+    @Override
+    protected String[] getExtensions() {
+        return new String[] {"postgis", "postgis_topology"};
+    }
+
     @Override
     public void createMV(Canvas c, int layerId) throws Exception {
 
         Statement bboxStmt = DbConnector.getStmtByDbName(Config.databaseName);
 
-        // create postgis extension if not existed
-        System.out.println("running create extension for postgis/postgis_topology");
-        String psql = "CREATE EXTENSION if not exists postgis;";
-        bboxStmt.executeUpdate(psql);
-        psql = "CREATE EXTENSION if not exists postgis_topology;";
-        bboxStmt.executeUpdate(psql);
-
         // set up query iterator
         Layer l = c.getLayers().get(layerId);
         Transform trans = l.getTransform();
@@ -87,13 +86,13 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
         }
 
         // if this is an empty layer, return
-        if (trans.getDb().isEmpty()) return;
-
-        // step 1: set up nashorn environment for running javascript code
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().isEmpty()) engine = setupNashorn(trans.getTransformFunc());
+        if (trans.getDb().isEmpty()) {
+            bboxStmt.close();
+            return;
+        }
 
-        // step 2: looping through query results
+        // step 1-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
         // TODO: distinguish between separable and non-separable cases
         String insertSql = "insert into " + bboxTableName + " values (";
         for (int i = 0; i < trans.getColumnNames().size() + 6; i++) insertSql += "?, ";
@@ -105,64 +104,35 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
         System.out.println(insertSql);
         PreparedStatement preparedStmt =
                 DbConnector.getPreparedStatement(Config.databaseName, insertSql);
-        long startTs = (new Date()).getTime();
-        long lastTs = startTs;
-        int rowCount = 0;
-        int numColumn = rs.getMetaData().getColumnCount();
-        while (rs.next()) {
-
-            // count log
-            rowCount++;
-            if (rowCount % 1000 == 0) {
-                long currTs = (new Date()).getTime();
-                if (currTs / 5000 > lastTs / 5000) {
-                    lastTs = currTs;
-                    long secs = (currTs - startTs) / 1000;
-                    if (secs > 0) {
-                        System.out.println(
-                                secs
-                                        + " secs: "
-                                        + rowCount
-                                        + " records inserted. "
-                                        + (rowCount / secs)
-                                        + " recs/sec.");
-                    }
-                }
-            }
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow;
-            if (!trans.getTransformFunc().isEmpty())
-                transformedRow = getTransformedRow(c, curRawRow, engine);
-            else transformedRow = curRawRow;
-
-            // step 4: calculate bounding boxes
-            ArrayList<Double> curBbox = getBboxCoordinates(l, transformedRow);
-
-            // insert into bbox table
-            int pscol = 1;
-            for (int i = 0; i < transformedRow.size(); i++)
-                preparedStmt.setString(pscol++, transformedRow.get(i).replaceAll("\'", "\'\'"));
-            if (isCitus) {
-                // row number is a fine distribution key (for now) - round robin across the cluster
-                preparedStmt.setInt(pscol++, rowCount);
-            }
-            for (int i = 0; i < 6; i++) preparedStmt.setDouble(pscol++, curBbox.get(i));
-
-            double minx, miny, maxx, maxy;
-            minx = curBbox.get(2);
-            miny = curBbox.get(3);
-            maxx = curBbox.get(4);
-            maxy = curBbox.get(5);
-            preparedStmt.setString(pscol++, getPolygonText(minx, miny, maxx, maxy));
-            preparedStmt.addBatch();
-
-            if (rowCount % Config.bboxBatchSize == 0) preparedStmt.executeBatch();
-        }
+        int rowCount =
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, curBbox) -> {
+                            // insert into bbox table
+                            int pscol = 1;
+                            for (int i = 0; i < transformedRow.size(); i++)
+                                preparedStmt.setString(pscol++, transformedRow.get(i));
+                            if (isCitus) {
+                                // row number is a fine distribution key (for now) - round robin
+                                // across the cluster
+                                preparedStmt.setInt(pscol++, rowId);
+                            }
+                            for (int i = 0; i < 6; i++)
+                                preparedStmt.setDouble(pscol++, curBbox.get(i));
+
+                            double minx, miny, maxx, maxy;
+                            minx = curBbox.get(2);
+                            miny = curBbox.get(3);
+                            maxx = curBbox.get(4);
+                            maxy = curBbox.get(5);
+                            preparedStmt.setString(
+                                    pscol++, getPolygonText(minx, miny, maxx, maxy));
+                            preparedStmt.addBatch();
+
+                            if (rowId % Config.bboxBatchSize == 0) preparedStmt.executeBatch();
+                        });
         rs.close();
         rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
@@ -181,14 +151,17 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
+
+        // the area of the new box the client doesn't have yet
+        ArrayList<Box> deltaBoxes = newBox.subtract(oldBox);
+        Object[] params = getWKTParams(deltaBoxes);
 
         // get column list string
         String colListStr = c.getLayers().get(layerId).getColStr("");
 
-        System.out.println("in psql spatial indexer");
+        Log.trace("in psql spatial indexer");
         // construct range query
         String sql =
                 "select "
@@ -199,17 +172,17 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
                         + c.getId()
                         + "layer"
                         + layerId
-                        + " where ST_Intersects(st_GeomFromText";
-        sql += "('" + regionWKT + "'), geom)";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(sql);
+                        + " where "
+                        + getWKTCondition("ST_Intersects(st_GeomFromText(?), geom)", deltaBoxes);
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} : {}", sql, Arrays.toString(params));
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(Config.databaseName, sql, params);
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
 
         // get column list string
@@ -225,34 +198,14 @@ public class PsqlSpatialIndexer extends BoundingBoxIndexer {
                         + c.getId()
                         + "layer"
                         + layerId
-                        + " where ";
-        sql +=
-                "st_intersects(st_GeomFromText('Polygon(("
-                        + minx
-                        + " "
-                        + miny
-                        + ","
-                        + (minx + Config.tileW)
-                        + " "
-                        + miny;
-        sql +=
-                ","
-                        + (minx + Config.tileW)
-                        + " "
-                        + (miny + Config.tileH)
-                        + ","
-                        + minx
-                        + " "
-                        + (miny + Config.tileH)
-                        + ","
-                        + minx
-                        + " "
-                        + miny
-                        + "))'),geom)";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
-        System.out.println(minx + " " + miny + " : " + sql);
+                        + " where st_intersects(st_GeomFromText(?), geom)";
+        if (predicate.length() > 0) sql += " and " + predicate;
+        Log.debug("{} {} : {}", minx, miny, sql);
 
         // return
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(
+                Config.databaseName,
+                sql,
+                getPolygonText(minx, miny, minx + Config.tileW, miny + Config.tileH));
     }
 }
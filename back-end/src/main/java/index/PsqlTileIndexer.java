@@ -5,11 +5,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import javax.script.ScriptException;
-import jdk.nashorn.api.scripting.NashornScriptEngine;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 import project.Transform;
@@ -33,8 +33,7 @@ public class PsqlTileIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public void createMV(Canvas c, int layerId)
-            throws SQLException, ClassNotFoundException, ScriptException, NoSuchMethodException {
+    public void createMV(Canvas c, int layerId) throws Exception {
 
         // TODO: switch to prepared statments
         Statement bboxStmt, tileStmt;
@@ -89,99 +88,63 @@ public class PsqlTileIndexer extends BoundingBoxIndexer {
         tileStmt.executeUpdate(sql);
 
         // if this is an empty layer, continue
-        if (trans.getDb().equals("")) return;
-
-        // step 1: set up nashorn environment
-        NashornScriptEngine engine = null;
-        if (!trans.getTransformFunc().equals("")) engine = setupNashorn(trans.getTransformFunc());
+        if (trans.getDb().equals("")) {
+            bboxStmt.close();
+            tileStmt.close();
+            return;
+        }
 
-        // step 2: looping through query results
+        // step 1-4: read, transform and compute bounding boxes of the raw rows, see
+        // TransformPipeline
         // TODO: distinguish between separable and non-separable cases
         StringBuilder bboxInsSqlBuilder =
                 new StringBuilder("insert into " + bboxTableName + " values");
         StringBuilder tileInsSqlBuilder =
                 new StringBuilder("insert into " + tileTableName + " values");
 
-        int rowCount = 0, mappingCount = 0;
-        int numColumn = rs.getMetaData().getColumnCount();
-        while (rs.next()) {
-
-            // count log
-            rowCount++;
-            if (rowCount % 1000000 == 0) System.out.println(rowCount);
-
-            // get raw row
-            ArrayList<String> curRawRow = new ArrayList<>();
-            for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
-
-            // step 3: run transform function on this tuple
-            ArrayList<String> transformedRow;
-            if (!trans.getTransformFunc().equals(""))
-                transformedRow = getTransformedRow(c, curRawRow, engine);
-            else transformedRow = curRawRow;
-
-            // step 4: get bounding boxes coordinates
-            ArrayList<Double> curBbox = Indexer.getBboxCoordinates(l, transformedRow);
-
-            // insert into bbox table
-            if (bboxInsSqlBuilder.charAt(bboxInsSqlBuilder.length() - 1) == ')')
-                bboxInsSqlBuilder.append(",(");
-            else bboxInsSqlBuilder.append(" (");
-            for (int i = 0; i < transformedRow.size(); i++)
-                bboxInsSqlBuilder.append(
-                        "'" + transformedRow.get(i).replaceAll("\'", "\'\'") + "', ");
-            if (isCitus) {
-                // row number is a fine distribution key (for now) - round robin across the cluster
-                bboxInsSqlBuilder.append(rowCount);
-            }
-            bboxInsSqlBuilder.append(String.valueOf(rowCount));
-            for (int i = 0; i < 6; i++)
-                bboxInsSqlBuilder.append(", " + String.valueOf(curBbox.get(i)));
-            bboxInsSqlBuilder.append(")");
-            if (rowCount % Config.bboxBatchSize == 0) {
-                bboxInsSqlBuilder.append(";");
-                bboxStmt.executeUpdate(bboxInsSqlBuilder.toString());
-                bboxInsSqlBuilder = new StringBuilder("insert into " + bboxTableName + " values");
-            }
-
-            // insert into tile table
-            double minx, miny, maxx, maxy;
-            minx = curBbox.get(2);
-            miny = curBbox.get(3);
-            maxx = curBbox.get(4);
-            maxy = curBbox.get(5);
-            if (!l.isStatic()) {
-                int xStart = (int) Math.max(0, Math.floor(minx / Config.tileW));
-                int yStart = (int) Math.max(0, Math.floor(miny / Config.tileH));
-                int xEnd = (int) Math.floor(maxx / Config.tileW);
-                int yEnd = (int) Math.floor(maxy / Config.tileH);
-
-                for (int i = xStart; i <= xEnd; i++)
-                    for (int j = yStart; j <= yEnd; j++) {
-                        mappingCount++;
-                        String tileId = (i * Config.tileW) + "_" + (j * Config.tileH);
-                        if (tileInsSqlBuilder.charAt(tileInsSqlBuilder.length() - 1) == ')')
-                            tileInsSqlBuilder.append(",(");
-                        else tileInsSqlBuilder.append(" (");
-                        tileInsSqlBuilder.append(
-                                rowCount
-                                        + ", "
-                                        +
-                                        // rownum is a fine distrib key (for now) - round robin
-                                        // across the cluster
-                                        (isCitus ? (rowCount + ", ") : "")
-                                        + "'"
-                                        + tileId
-                                        + "')");
-                        if (mappingCount % Config.tileBatchSize == 0) {
-                            tileInsSqlBuilder.append(";");
-                            tileStmt.executeUpdate(tileInsSqlBuilder.toString());
-                            tileInsSqlBuilder =
-                                    new StringBuilder("insert into " + tileTableName + " values");
-                        }
-                    }
-            }
-        }
+        int[] mappingCount = {0};
+        int rowCount =
+                TransformPipeline.run(
+                        c,
+                        l,
+                        rs,
+                        (rowId, transformedRow, curBbox) -> {
+                            // insert into bbox table
+                            if (bboxInsSqlBuilder.charAt(bboxInsSqlBuilder.length() - 1) == ')')
+                                bboxInsSqlBuilder.append(",(");
+                            else bboxInsSqlBuilder.append(" (");
+                            for (int i = 0; i < transformedRow.size(); i++)
+                                bboxInsSqlBuilder.append(
+                                        "'"
+                                                + transformedRow.get(i).replaceAll("\'", "\'\'")
+                                                + "', ");
+                            if (isCitus) {
+                                // row number is a fine distribution key (for now) - round robin
+                                // across the cluster
+                                bboxInsSqlBuilder.append(rowId);
+                            }
+                            bboxInsSqlBuilder.append(String.valueOf(rowId));
+                            for (int i = 0; i < 6; i++)
+                                bboxInsSqlBuilder.append(", " + String.valueOf(curBbox.get(i)));
+                            bboxInsSqlBuilder.append(")");
+                            if (rowId % Config.bboxBatchSize == 0) {
+                                bboxInsSqlBuilder.append(";");
+                                bboxStmt.executeUpdate(bboxInsSqlBuilder.toString());
+                                bboxInsSqlBuilder.setLength(0);
+                                bboxInsSqlBuilder.append(
+                                        "insert into " + bboxTableName + " values");
+                            }
+
+                            // insert into tile table
+                            if (!l.isStatic())
+                                addTileMappings(
+                                        rowId,
+                                        curBbox,
+                                        tileInsSqlBuilder,
+                                        tileTableName,
+                                        tileStmt,
+                                        mappingCount);
+                        });
         rs.close();
         rawDBStmt.close();
         DbConnector.closeConnection(trans.getDb());
@@ -191,7 +154,7 @@ public class PsqlTileIndexer extends BoundingBoxIndexer {
             bboxInsSqlBuilder.append(";");
             bboxStmt.executeUpdate(bboxInsSqlBuilder.toString());
         }
-        if (mappingCount % Config.tileBatchSize != 0) {
+        if (mappingCount[0] % Config.tileBatchSize != 0) {
             tileInsSqlBuilder.append(";");
             tileStmt.executeUpdate(tileInsSqlBuilder.toString());
         }
@@ -212,15 +175,60 @@ public class PsqlTileIndexer extends BoundingBoxIndexer {
         DbConnector.closeConnection(Config.databaseName);
     }
 
+    // add the tiles a row intersects to the tile table insert, mappingCount[0] counts mappings
+    private void addTileMappings(
+            int rowId,
+            ArrayList<Double> curBbox,
+            StringBuilder tileInsSqlBuilder,
+            String tileTableName,
+            Statement tileStmt,
+            int[] mappingCount)
+            throws SQLException {
+
+        double minx, miny, maxx, maxy;
+        minx = curBbox.get(2);
+        miny = curBbox.get(3);
+        maxx = curBbox.get(4);
+        maxy = curBbox.get(5);
+        int xStart = (int) Math.max(0, Math.floor(minx / Config.tileW));
+        int yStart = (int) Math.max(0, Math.floor(miny / Config.tileH));
+        int xEnd = (int) Math.floor(maxx / Config.tileW);
+        int yEnd = (int) Math.floor(maxy / Config.tileH);
+
+        for (int i = xStart; i <= xEnd; i++)
+            for (int j = yStart; j <= yEnd; j++) {
+                mappingCount[0]++;
+                String tileId = (i * Config.tileW) + "_" + (j * Config.tileH);
+                if (tileInsSqlBuilder.charAt(tileInsSqlBuilder.length() - 1) == ')')
+                    tileInsSqlBuilder.append(",(");
+                else tileInsSqlBuilder.append(" (");
+                tileInsSqlBuilder.append(
+                        rowId
+                                + ", "
+                                +
+                                // rownum is a fine distrib key (for now) - round robin
+                                // across the cluster
+                                (isCitus ? (rowId + ", ") : "")
+                                + "'"
+                                + tileId
+                                + "')");
+                if (mappingCount[0] % Config.tileBatchSize == 0) {
+                    tileInsSqlBuilder.append(";");
+                    tileStmt.executeUpdate(tileInsSqlBuilder.toString());
+                    tileInsSqlBuilder.setLength(0);
+                    tileInsSqlBuilder.append("insert into " + tileTableName + " values");
+                }
+            }
+    }
+
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
         throw new Exception("Spatial data fetching is not available with tile indexes.");
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate)
             throws SQLException, ClassNotFoundException {
 
@@ -244,11 +252,11 @@ public class PsqlTileIndexer extends BoundingBoxIndexer {
                         + "layer"
                         + layerId
                         + " tile on bbox.tuple_id = tile.tuple_id";
-        sql += " where tile.tile_id = " + "'" + minx + "_" + miny + "'";
-        if (predicate.length() > 0) sql += " and " + predicate + ";";
+        sql += " where tile.tile_id = ?";
+        if (predicate.length() > 0) sql += " and " + predicate;
 
-        System.out.println(minx + " " + miny + " : " + sql);
+        Log.debug("{} {} : {}", minx, miny, sql);
 
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(Config.databaseName, sql, minx + "_" + miny);
     }
 }
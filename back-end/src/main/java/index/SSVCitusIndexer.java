@@ -9,7 +9,9 @@ import java.sql.Statement;
 import java.util.*;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.TypedRows;
 import project.Canvas;
 import project.SSV;
 
@@ -63,6 +65,12 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
         return instance;
     }
 
+    // the layers of all ssvs are indexed by this one instance, whose fields hold the ssv
+    @Override
+    protected String getSerialKey(Canvas c, int layerId) {
+        return getClass().getName();
+    }
+
     @Override
     public void createMV(Canvas c, int layerId) throws Exception {
 
@@ -81,6 +89,9 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
 
         // save useful info to the database for online querying
         saveSSVInfo();
+
+        // give the connection back to the pool
+        kyrixStmt.close();
     }
 
     private void performSpatialPartitioning() throws SQLException, ClassNotFoundException {
@@ -1012,7 +1023,8 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
     }
 
     public SSVInfo getSSVInfo(int ssvIndex) throws SQLException, ClassNotFoundException {
-        sql =
+        // local on purpose: this is called concurrently by request handlers
+        String sql =
                 "SELECT gson FROM ssv_infos WHERE project_id = '"
                         + Main.getProject().getName()
                         + "' and ssv_id = "
@@ -1025,9 +1037,8 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromRegion(
-            Canvas c, int layerId, String regionWKT, String predicate, Box newBox, Box oldBox)
-            throws Exception {
+    public TypedRows getDataFromRegion(
+            Canvas c, int layerId, String predicate, Box newBox, Box oldBox) throws Exception {
         // get ssvInfo if it doesn't exist
         String ssvId = c.getLayers().get(layerId).getSSVId();
         int ssvIndex = Integer.valueOf(ssvId.substring(0, ssvId.indexOf("_")));
@@ -1048,29 +1059,27 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
                         + " FROM "
                         + ssvInfo.tableNames.get(c.getPyramidLevel())
                         + " WHERE ";
-        sql +=
-                "centroid <@ box('"
-                        + (newBox.getMinx() - bboxW / 2)
-                        + ", "
-                        + (newBox.getMiny() - bboxH / 2)
-                        + ", "
-                        + (newBox.getMaxx() + bboxW / 2)
-                        + ", "
-                        + (newBox.getMaxy() + bboxH / 2)
-                        + "')";
-
-        // don't get anything outside old box
-        if (oldBox.getWidth() > 0) // when there is not an old box, oldBox is set to -1e5, -1e5,...
-        sql +=
-                    " and not (centroid <@ box('"
-                            + (oldBox.getMinx() + bboxW / 2)
-                            + ", "
-                            + (oldBox.getMiny() + bboxH / 2)
-                            + ", "
-                            + (oldBox.getMaxx() - bboxW / 2)
-                            + ", "
-                            + (oldBox.getMaxy() - bboxH / 2)
-                            + "') )";
+        // centroids of objects intersecting the new box
+        Box centroidBox =
+                new Box(
+                        newBox.getMinx() - bboxW / 2,
+                        newBox.getMiny() - bboxH / 2,
+                        newBox.getMaxx() + bboxW / 2,
+                        newBox.getMaxy() + bboxH / 2);
+        // don't get anything outside old box, i.e. centroids of objects inside the old box
+        // (corners swapped like postgres does when the old box is smaller than an object)
+        Box oldCentroidBox = null;
+        if (getExcludedBox(oldBox) != null) {
+            double x0 = oldBox.getMinx() + bboxW / 2, x1 = oldBox.getMaxx() - bboxW / 2;
+            double y0 = oldBox.getMiny() + bboxH / 2, y1 = oldBox.getMaxy() - bboxH / 2;
+            oldCentroidBox =
+                    new Box(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1));
+        }
+        ArrayList<Box> deltaBoxes =
+                (oldCentroidBox == null
+                        ? new ArrayList<>(Collections.singletonList(centroidBox))
+                        : centroidBox.subtract(oldCentroidBox));
+        sql += getDeltaCondition("centroid", "<@", deltaBoxes, oldCentroidBox);
 
         // if table is distributed, only hit shards that intersect with newBox
         if (c.getPyramidLevel() > L) {
@@ -1092,19 +1101,18 @@ public class SSVCitusIndexer extends BoundingBoxIndexer {
         if (predicate.length() > 0) sql += " and " + predicate;
 
         // run sql
-        sql += ";";
-        System.out.println(sql);
+        Object[] params = getDeltaParams(deltaBoxes, oldCentroidBox);
+        Log.debug("{} : {}", sql, params);
 
-        return DbConnector.getQueryResult(Config.databaseName, sql);
+        return DbConnector.getTypedQueryResult(Config.databaseName, sql, params);
     }
 
     @Override
-    public ArrayList<ArrayList<String>> getDataFromTile(
+    public TypedRows getDataFromTile(
             Canvas c, int layerId, int minx, int miny, String predicate) throws Exception {
         return getDataFromRegion(
                 c,
                 layerId,
-                "",
                 predicate,
                 new Box(minx, miny, minx + Config.tileW, miny + Config.tileH),
                 new Box(-1e5, -1e5, -1e5, -1e5));
@@ -1,5 +1,6 @@
 package index;
 
+import box.BoxandData;
 import com.github.davidmoten.rtree.Entry;
 import com.github.davidmoten.rtree.RTree;
 import com.github.davidmoten.rtree.geometry.Geometries;
@@ -8,7 +9,7 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import java.sql.PreparedStatement;
+import index.util.BulkLoader;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.NumberFormat;
@@ -143,6 +144,12 @@ public class SSVInMemoryIndexer extends PsqlNativeBoxIndexer {
         return instance;
     }
 
+    // the layers of all ssvs are indexed by this one instance, whose fields hold the ssv
+    @Override
+    protected String getSerialKey(Canvas c, int layerId) {
+        return getClass().getName();
+    }
+
     @Override
     public void createMV(Canvas c, int layerId) throws Exception {
 
@@ -336,40 +343,39 @@ public class SSVInMemoryIndexer extends PsqlNativeBoxIndexer {
         bboxStmt.executeUpdate(sql);
 
         // insert clusters
-        String insertSql = "insert into " + bboxTableName + " values (";
-        for (int j = 0; j < numRawColumns + 6; j++) insertSql += "?, ";
-        insertSql += "?);";
-        PreparedStatement preparedStmt =
-                DbConnector.getPreparedStatement(Config.databaseName, insertSql);
-        int insertCount = 0;
-        Iterable<Entry<RTreeData, Rectangle>> clusters = rtree1.entries().toBlocking().toIterable();
-        for (Entry<RTreeData, Rectangle> o : clusters) {
-            RTreeData rd = o.value();
-
-            // raw data fields
-            for (int k = 0; k < numRawColumns; k++)
-                preparedStmt.setString(
-                        k + 1, rawRows.get(rd.rowId).get(k).replaceAll("\'", "\'\'"));
-
-            // cluster agg
-            preparedStmt.setString(
-                    numRawColumns + 1, rd.getClusterAggString().replaceAll("\'", "\'\'"));
-
-            // bounding box fields
-            preparedStmt.setDouble(numRawColumns + 2, (rd.minx + rd.maxx) / 2.0);
-            preparedStmt.setDouble(numRawColumns + 3, (rd.miny + rd.maxy) / 2.0);
-            preparedStmt.setDouble(numRawColumns + 4, rd.minx);
-            preparedStmt.setDouble(numRawColumns + 5, rd.miny);
-            preparedStmt.setDouble(numRawColumns + 6, rd.maxx);
-            preparedStmt.setDouble(numRawColumns + 7, rd.maxy);
-
-            // batch commit
-            preparedStmt.addBatch();
-            insertCount++;
-            if ((insertCount + 1) % Config.bboxBatchSize == 0) preparedStmt.executeBatch();
+        ArrayList<String> columns = new ArrayList<>(ssv.getColumnNames());
+        columns.add("clusterAgg");
+        columns.addAll(Arrays.asList(BoxandData.BBOX_FIELDS));
+        BulkLoader loader =
+                new BulkLoader(
+                        Config.databaseName, bboxTableName, columns, BulkLoader.getMode(this));
+        try {
+            Iterable<Entry<RTreeData, Rectangle>> clusters =
+                    rtree1.entries().toBlocking().toIterable();
+            for (Entry<RTreeData, Rectangle> o : clusters) {
+                RTreeData rd = o.value();
+
+                // raw data fields
+                for (int k = 0; k < numRawColumns; k++)
+                    loader.putString(rawRows.get(rd.rowId).get(k));
+
+                // cluster agg
+                loader.putString(rd.getClusterAggString());
+
+                // bounding box fields
+                loader.putDouble((rd.minx + rd.maxx) / 2.0);
+                loader.putDouble((rd.miny + rd.maxy) / 2.0);
+                loader.putDouble(rd.minx);
+                loader.putDouble(rd.miny);
+                loader.putDouble(rd.maxx);
+                loader.putDouble(rd.maxy);
+                loader.endRow();
+            }
+            loader.close();
+        } finally {
+            // stops the load if a row failed, does nothing after close()
+            loader.abort();
         }
-        preparedStmt.executeBatch();
-        preparedStmt.close();
 
         // update box
         sql = "UPDATE " + bboxTableName + " SET geom=box( point(minx,miny), point(maxx,maxy) );";
@@ -380,6 +386,7 @@ public class SSVInMemoryIndexer extends PsqlNativeBoxIndexer {
         bboxStmt.executeUpdate(sql);
         sql = "cluster " + bboxTableName + " using sp_" + bboxTableName + ";";
         bboxStmt.executeUpdate(sql);
+        bboxStmt.close();
     }
 
     private void calculateBGRP(RTreeData[] rds, int level)
@@ -422,7 +429,6 @@ public class SSVInMemoryIndexer extends PsqlNativeBoxIndexer {
 
     private void cleanUp() throws SQLException {
         // commit & close connections
-        bboxStmt.close();
         DbConnector.closeConnection(Config.databaseName);
 
         // release memory
@@ -0,0 +1,168 @@
+package index;
+
+import com.coveo.nashorn_modules.FilesystemFolder;
+import com.coveo.nashorn_modules.Require;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import jdk.nashorn.api.scripting.NashornScriptEngine;
+import main.Config;
+import main.Main;
+
+/**
+ * Script engines that run the transform functions of layers being indexed. An engine is
+ * single-threaded, so every transform worker of TransformPipeline holds one while it runs.
+ *
+ * <p>Loading d3 into an engine is the expensive part, it is done once per engine and engines are
+ * kept between layers. Transform functions are compiled once per engine and switching an engine
+ * to another transform only runs its compiled script. Idle engines that last ran the transform a
+ * worker asks for are handed out first, so layers sharing a transform reuse the same engines.
+ */
+class TransformEnginePool {
+
+    // max number of compiled transform scripts kept by an engine
+    private static final int MAX_SCRIPTS_PER_ENGINE = 32;
+
+    // runs trans on a java list of rows, returns a String[][] of the transformed rows
+    private static final String TRANS_BATCH_FUNC =
+            "var transBatch = function (rows, cw, ch) {\n"
+                    + "    var n = rows.size();\n"
+                    + "    var ret = new (Java.type('java.lang.String[][]'))(n);\n"
+                    + "    for (var i = 0; i < n; i++)\n"
+                    + "        ret[i] = trans(rows.get(i), cw, ch, renderingParamsObj);\n"
+                    + "    return ret;\n"
+                    + "};\n";
+
+    // compiled transform scripts by transform function, the least recently used comes first
+    private static class ScriptCache extends LinkedHashMap<String, CompiledScript> {
+        private static final long serialVersionUID = 1L;
+
+        ScriptCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> e) {
+            return size() > MAX_SCRIPTS_PER_ENGINE;
+        }
+    }
+
+    // an engine with d3 loaded, and the transform and rendering parameters it is set up for
+    static final class Engine {
+        final NashornScriptEngine nashorn;
+        private final CompiledScript parseRenderingParams;
+        private final ScriptCache scripts = new ScriptCache();
+        private String transformFunc = null;
+        private String renderingParams = null;
+        private boolean hasRenderingParams = false;
+
+        private Engine() throws ScriptException {
+
+            nashorn = (NashornScriptEngine) new ScriptEngineManager().getEngineByName("nashorn");
+            FilesystemFolder rootFolder = FilesystemFolder.create(new File(Config.d3Dir), "UTF-8");
+            Require.enable(nashorn, rootFolder);
+
+            // TODO: let users specify all required d3 libraries.
+            nashorn.eval("var d3 = require('d3');\n" + TRANS_BATCH_FUNC);
+            // rendering parameters are parsed once, all rows get the same object
+            parseRenderingParams =
+                    nashorn.compile("var renderingParamsObj = JSON.parse(renderingParams);\n");
+        }
+
+        // register the data transform function and the rendering parameters with nashorn
+        private void load(String func, String params) throws ScriptException {
+
+            if (!func.equals(transformFunc)) {
+                CompiledScript script = scripts.get(func);
+                if (script == null) {
+                    script = nashorn.compile("var trans = " + func + ";\n");
+                    scripts.put(func, script);
+                }
+                script.eval();
+                transformFunc = func;
+            }
+            if (!hasRenderingParams || !Objects.equals(params, renderingParams)) {
+                nashorn.put("renderingParams", params);
+                parseRenderingParams.eval();
+                renderingParams = params;
+                hasRenderingParams = true;
+            }
+        }
+    }
+
+    // idle engines, most recently released first
+    private static final ArrayDeque<Engine> idle = new ArrayDeque<>();
+
+    // an engine set up for transformFunc, to be given back with release()
+    static Engine acquire(String transformFunc) throws ScriptException {
+
+        Engine engine = takeIdle(transformFunc);
+        if (engine == null) engine = new Engine();
+        try {
+            engine.load(transformFunc, Main.getProject().getRenderingParams());
+        } catch (ScriptException e) {
+            // the engine is still usable for other transforms
+            release(engine);
+            throw e;
+        }
+        return engine;
+    }
+
+    static synchronized void release(Engine engine) {
+        if (idle.size() < Config.transformEnginePoolSize) idle.addFirst(engine);
+    }
+
+    // an idle engine that last ran transformFunc, otherwise the one idle for the longest time
+    private static synchronized Engine takeIdle(String transformFunc) {
+
+        for (Iterator<Engine> it = idle.iterator(); it.hasNext(); ) {
+            Engine engine = it.next();
+            if (transformFunc.equals(engine.transformFunc)) {
+                it.remove();
+                return engine;
+            }
+        }
+        return idle.pollLast();
+    }
+
+    // build engines concurrently until n are idle, so that the first layers find them loaded
+    static void prewarm(int n) throws Exception {
+
+        int missing;
+        synchronized (TransformEnginePool.class) {
+            missing = Math.min(n, Config.transformEnginePoolSize) - idle.size();
+        }
+        if (missing <= 0) return;
+
+        long st = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(missing);
+        ArrayList<Future<Engine>> futures = new ArrayList<>();
+        for (int i = 0; i < missing; i++) futures.add(executor.submit(Engine::new));
+        executor.shutdown();
+        try {
+            for (Future<Engine> f : futures) release(f.get());
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw (e.getCause() instanceof Exception
+                    ? (Exception) e.getCause()
+                    : new Exception(e.getCause()));
+        }
+        System.out.println(
+                "Loaded "
+                        + missing
+                        + " transform script engine(s) in "
+                        + (System.currentTimeMillis() - st) / 1000.0
+                        + "s.");
+    }
+}
@@ -0,0 +1,206 @@
+package index;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import main.Config;
+import project.Canvas;
+import project.Layer;
+
+/**
+ * Reads the raw rows of a layer, runs them through its transform function and computes their
+ * bounding boxes, in three stages connected by queues: a reader of the database cursor,
+ * Config.numTransformThread transform workers, and the calling thread, which hands the results to
+ * the indexer in the order of the raw rows. Reading, transforming and writing overlap, so indexing
+ * runs at the speed of the slowest stage.
+ *
+ * <p>Rows move between stages in batches of Config.indexingBatchRows, and at most
+ * Config.indexingMaxBatchesInFlight batches exist at once, which bounds the memory used.
+ */
+class TransformPipeline {
+
+    // receives the transformed rows, rowId counts rows from 1
+    interface RowSink {
+        void accept(int rowId, ArrayList<String> row, ArrayList<Double> bbox) throws Exception;
+    }
+
+    // rows of a batch, seq counts batches from 0, rows is null for the end marker
+    private static final class Batch {
+        final int seq;
+        ArrayList<ArrayList<String>> rows;
+        final ArrayList<ArrayList<Double>> bboxes;
+
+        Batch(int seq, ArrayList<ArrayList<String>> rows) {
+            this.seq = seq;
+            this.rows = rows;
+            this.bboxes = (rows == null ? null : new ArrayList<>(rows.size()));
+        }
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final long POLL_MS = 100;
+
+    private final Canvas c;
+    private final Layer l;
+    private final ResultSet rs;
+    private final BlockingQueue<Batch> raw = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Batch> transformed = new LinkedBlockingQueue<>();
+    private final Semaphore inFlight = new Semaphore(Config.indexingMaxBatchesInFlight);
+    private volatile Throwable failure = null;
+    // number of batches read, -1 while the reader is still reading
+    private volatile int numBatches = -1;
+
+    private TransformPipeline(Canvas c, Layer l, ResultSet rs) {
+        this.c = c;
+        this.l = l;
+        this.rs = rs;
+    }
+
+    // run the rows of rs through the transform of layer l into sink, returns the number of rows
+    // rs is read on another thread and must not be used by the caller until this returns
+    static int run(Canvas c, Layer l, ResultSet rs, RowSink sink) throws Exception {
+        return new TransformPipeline(c, l, rs).run(sink);
+    }
+
+    private int run(RowSink sink) throws Exception {
+
+        int numWorkers = Math.max(1, Config.numTransformThread);
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        numWorkers + 1,
+                        r -> {
+                            Thread t =
+                                    new Thread(
+                                            r, "kyrix-transform-" + threadCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        });
+        executor.execute(() -> guard(this::read));
+        for (int i = 0; i < numWorkers; i++) executor.execute(() -> guard(this::transform));
+
+        int rowCount = 0;
+        long startTs = System.currentTimeMillis(), lastTs = startTs;
+        try {
+            // batches arrive in any order, they are written in the order they were read
+            HashMap<Integer, Batch> pending = new HashMap<>();
+            int next = 0;
+            while (numBatches < 0 || next < numBatches) {
+                Batch b = transformed.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                checkFailure();
+                if (b == null) continue;
+                pending.put(b.seq, b);
+                while ((b = pending.remove(next)) != null) {
+                    for (int j = 0; j < b.rows.size(); j++)
+                        sink.accept(++rowCount, b.rows.get(j), b.bboxes.get(j));
+                    inFlight.release();
+                    next++;
+                }
+
+                // print every N=10 seconds
+                long currTs = System.currentTimeMillis();
+                if (currTs / 10000 > lastTs / 10000) {
+                    lastTs = currTs;
+                    long secs = (currTs - startTs) / 1000;
+                    if (secs > 0)
+                        System.out.println(
+                                secs
+                                        + " secs: "
+                                        + rowCount
+                                        + " records inserted. "
+                                        + (rowCount / secs)
+                                        + " recs/sec.");
+                }
+            }
+        } catch (Throwable e) {
+            if (failure == null) failure = e;
+            throw e;
+        } finally {
+            // the reader must be done with rs before the caller closes it
+            executor.shutdownNow();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return rowCount;
+    }
+
+    // reader stage
+    private void read() throws Exception {
+
+        int numColumn = rs.getMetaData().getColumnCount();
+        int batchRows = Math.max(1, Config.indexingBatchRows);
+        int seq = 0;
+        boolean hasNext = true;
+        while (hasNext) {
+            while (!inFlight.tryAcquire(POLL_MS, TimeUnit.MILLISECONDS))
+                if (failure != null) return;
+            ArrayList<ArrayList<String>> rows = new ArrayList<>(batchRows);
+            while (rows.size() < batchRows && (hasNext = rs.next())) {
+                ArrayList<String> curRawRow = new ArrayList<>(numColumn);
+                for (int i = 1; i <= numColumn; i++) curRawRow.add(rs.getString(i));
+                rows.add(curRawRow);
+            }
+            if (failure != null) return;
+            if (rows.isEmpty()) inFlight.release();
+            else raw.add(new Batch(seq++, rows));
+        }
+        numBatches = seq;
+        raw.add(new Batch(seq, null));
+    }
+
+    // transform stage, every worker holds a script engine of TransformEnginePool
+    // the engine is taken when the first batch arrives, so small layers use few engines
+    private void transform() throws Exception {
+
+        String transformFunc = l.getTransform().getTransformFunc();
+        TransformEnginePool.Engine engine = null;
+        try {
+            while (failure == null) {
+                Batch b = raw.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (b == null) continue;
+                if (b.rows == null) {
+                    // let the other workers see the end marker too
+                    raw.add(b);
+                    return;
+                }
+                if (!transformFunc.equals("")) {
+                    if (engine == null) engine = TransformEnginePool.acquire(transformFunc);
+                    b.rows = Indexer.getTransformedRows(c, b.rows, engine.nashorn);
+                }
+                for (ArrayList<String> transformedRow : b.rows)
+                    b.bboxes.add(Indexer.getBboxCoordinates(l, transformedRow));
+                transformed.add(b);
+            }
+        } finally {
+            if (engine != null) TransformEnginePool.release(engine);
+        }
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    // run a stage, the first failure of any stage stops all of them
+    private void guard(Stage stage) {
+        try {
+            stage.run();
+        } catch (InterruptedException e) {
+            // stopped by the writer
+        } catch (Throwable e) {
+            if (failure == null) failure = e;
+        }
+    }
+
+    private void checkFailure() throws Exception {
+
+        Throwable e = failure;
+        if (e == null) return;
+        if (e instanceof Exception) throw (Exception) e;
+        throw new Exception(e);
+    }
+}
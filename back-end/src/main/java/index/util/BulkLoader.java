@@ -0,0 +1,427 @@
+package index.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import main.Config;
+import main.DbConnector;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Loads rows into a table, either through batched INSERTs or through COPY FROM STDIN.
+ *
+ * <p>Values of a row are put one column at a time, in the order of the columns given to the
+ * constructor, and endRow() finishes the row. With COPY, rows are encoded into one of two
+ * buffers while a flusher thread sends the other one to the database, so encoding and network
+ * writes overlap. Values are sent as they are, there is no need to escape quotes.
+ *
+ * <p>close() loads the remaining rows. If loading fails, abort() gives the connection back
+ * instead; with COPY none of the rows are loaded then.
+ */
+public class BulkLoader {
+
+    private static final byte[] BINARY_HEADER = {
+        'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    // a buffer of encoded rows, length -1 tells the flusher that loading ended
+    private static final class Chunk {
+        byte[] bytes;
+        int length;
+
+        Chunk(int capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    private final Config.BulkLoadMode mode;
+    private final int numColumns;
+    private int column = 0;
+    private long rowCount = 0;
+    private boolean closed = false;
+
+    // BATCH
+    private PreparedStatement preparedStmt;
+
+    // COPY
+    private Connection conn;
+    private CopyIn copyIn;
+    private final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(2);
+    private Thread flusher;
+    private volatile Throwable flushError = null;
+    private byte[] buf;
+    private int pos;
+    // start of the row being encoded in buf, the bytes before it are complete rows
+    private int rowStart;
+    private Chunk chunk;
+
+    // the bulk load mode configured for an indexer
+    public static Config.BulkLoadMode getMode(Object indexer) {
+        if (Config.database == Config.Database.MYSQL) return Config.BulkLoadMode.BATCH;
+        return Config.bulkLoadModeByIndexer.getOrDefault(
+                indexer.getClass().getSimpleName(), Config.bulkLoadMode);
+    }
+
+    public BulkLoader(
+            String dbName, String tableName, ArrayList<String> columns, Config.BulkLoadMode mode)
+            throws SQLException, ClassNotFoundException {
+
+        this.mode = mode;
+        this.numColumns = columns.size();
+        String columnList = String.join(", ", columns);
+        if (mode == Config.BulkLoadMode.BATCH) {
+            String insertSql = "insert into " + tableName + " (" + columnList + ") values (";
+            for (int i = 0; i < numColumns; i++) insertSql += (i > 0 ? ", ?" : "?");
+            insertSql += ");";
+            System.out.println(insertSql);
+            preparedStmt = DbConnector.getPreparedStatement(dbName, insertSql);
+            return;
+        }
+
+        String copySql =
+                "copy "
+                        + tableName
+                        + " ("
+                        + columnList
+                        + ") from stdin"
+                        + (mode == Config.BulkLoadMode.COPY_BINARY ? " with (format binary)" : "");
+        System.out.println(copySql);
+        Connection conn = DbConnector.getConnection(dbName);
+        CopyIn copyIn;
+        try {
+            copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(copySql);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        startCopy(conn, copyIn, tableName);
+    }
+
+    // loads through a COPY that is already started, for tests
+    BulkLoader(Connection conn, CopyIn copyIn, int numColumns, Config.BulkLoadMode mode) {
+
+        this.mode = mode;
+        this.numColumns = numColumns;
+        startCopy(conn, copyIn, "test");
+    }
+
+    private void startCopy(Connection conn, CopyIn copyIn, String tableName) {
+
+        this.conn = conn;
+        this.copyIn = copyIn;
+        free.add(new Chunk(Config.bulkLoadBufferBytes));
+        chunk = new Chunk(Config.bulkLoadBufferBytes);
+        buf = chunk.bytes;
+        pos = 0;
+        if (mode == Config.BulkLoadMode.COPY_BINARY) {
+            System.arraycopy(BINARY_HEADER, 0, buf, 0, BINARY_HEADER.length);
+            pos = BINARY_HEADER.length;
+        }
+        rowStart = pos;
+        flusher = new Thread(this::flush, "bulk-load-" + tableName);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public void putString(String value) throws SQLException {
+
+        if (mode == Config.BulkLoadMode.BATCH) {
+            preparedStmt.setString(++column, value);
+            return;
+        }
+        startColumn();
+        if (value == null) {
+            putNull();
+            return;
+        }
+        if (mode == Config.BulkLoadMode.COPY_TEXT) {
+            putUtf8(value, true);
+            return;
+        }
+        // length is known after encoding, the row may have moved to the other chunk by then
+        ensure(4);
+        int lengthPos = pos - rowStart;
+        pos += 4;
+        putUtf8(value, false);
+        lengthPos += rowStart;
+        writeInt(lengthPos, pos - lengthPos - 4);
+    }
+
+    // a value in the text input format of its column type (e.g. cube), which the database parses
+    // not supported by COPY_BINARY, which needs the binary format of the type
+    public void putLiteral(String value) throws SQLException {
+
+        if (mode == Config.BulkLoadMode.BATCH) {
+            preparedStmt.setObject(++column, value, Types.OTHER);
+            return;
+        }
+        if (mode == Config.BulkLoadMode.COPY_BINARY)
+            throw new SQLException("Literal values can not be loaded with binary COPY.");
+        putString(value);
+    }
+
+    // a double precision value
+    public void putDouble(double value) throws SQLException {
+
+        if (mode == Config.BulkLoadMode.BATCH) {
+            preparedStmt.setDouble(++column, value);
+            return;
+        }
+        startColumn();
+        if (mode == Config.BulkLoadMode.COPY_TEXT) putAscii(Double.toString(value));
+        else {
+            putInt32(8);
+            long bits = Double.doubleToRawLongBits(value);
+            putInt32((int) (bits >>> 32));
+            putInt32((int) bits);
+        }
+    }
+
+    // an integer value
+    public void putInt(int value) throws SQLException {
+
+        if (mode == Config.BulkLoadMode.BATCH) {
+            preparedStmt.setInt(++column, value);
+            return;
+        }
+        startColumn();
+        if (mode == Config.BulkLoadMode.COPY_TEXT) putAscii(Integer.toString(value));
+        else {
+            putInt32(4);
+            putInt32(value);
+        }
+    }
+
+    public void endRow() throws SQLException {
+
+        if (column != numColumns)
+            throw new SQLException(
+                    "Row has " + column + " values, the table has " + numColumns + " columns.");
+        column = 0;
+        rowCount++;
+        if (mode == Config.BulkLoadMode.BATCH) {
+            preparedStmt.addBatch();
+            if (rowCount % Config.bboxBatchSize == 0) preparedStmt.executeBatch();
+            return;
+        }
+        if (mode == Config.BulkLoadMode.COPY_TEXT) putByte('\n');
+        rowStart = pos;
+        if (pos >= buf.length - 64) handOver();
+    }
+
+    // load the remaining rows and give the connection back
+    public void close() throws SQLException {
+
+        if (closed) return;
+        closed = true;
+        if (mode == Config.BulkLoadMode.BATCH) {
+            try {
+                if (rowCount % Config.bboxBatchSize != 0) preparedStmt.executeBatch();
+            } finally {
+                preparedStmt.close();
+            }
+            return;
+        }
+        try {
+            if (mode == Config.BulkLoadMode.COPY_BINARY) {
+                ensure(2);
+                buf[pos++] = (byte) 0xff;
+                buf[pos++] = (byte) 0xff;
+            }
+            // there is always room, only two chunks exist
+            chunk.length = pos;
+            full.add(chunk);
+            Chunk end = free.take();
+            end.length = -1;
+            full.add(end);
+            flusher.join();
+            if (flushError != null) throw copyFailed();
+            copyIn.endCopy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading rows.", e);
+        } finally {
+            release();
+        }
+    }
+
+    // stop loading after a failure and give the connection back, rows of a COPY are not loaded
+    // does nothing after close(), so that it can be called in a finally block
+    public void abort() {
+
+        if (closed) return;
+        closed = true;
+        try {
+            if (mode == Config.BulkLoadMode.BATCH) preparedStmt.close();
+            else release();
+        } catch (SQLException e) {
+            // loading failed already, that error is the one to report
+        }
+    }
+
+    // stop the flusher, cancel the copy if it has not ended and close the connection
+    private void release() throws SQLException {
+
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (copyIn.isActive()) copyIn.cancelCopy();
+        } finally {
+            conn.close();
+        }
+    }
+
+    // sends full chunks until the end marker, runs on the flusher thread
+    private void flush() {
+
+        try {
+            while (true) {
+                Chunk c = full.take();
+                if (c.length < 0) return;
+                // after a failure chunks are only recycled, so that the producer never blocks
+                if (flushError == null && c.length > 0)
+                    try {
+                        copyIn.writeToCopy(c.bytes, 0, c.length);
+                    } catch (Throwable e) {
+                        flushError = e;
+                    }
+                free.add(c);
+            }
+        } catch (InterruptedException e) {
+            flushError = e;
+        }
+    }
+
+    // pass the complete rows of the current chunk to the flusher and continue in the other one,
+    // which the row being encoded moves to
+    private void handOver() throws SQLException {
+
+        if (flushError != null) throw copyFailed();
+        byte[] partialRow = Arrays.copyOfRange(buf, rowStart, pos);
+        chunk.length = rowStart;
+        full.add(chunk);
+        try {
+            chunk = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading rows.", e);
+        }
+        buf = chunk.bytes;
+        pos = 0;
+        rowStart = 0;
+        putBytes(partialRow);
+    }
+
+    private SQLException copyFailed() {
+        return new SQLException("COPY failed: " + flushError.getMessage(), flushError);
+    }
+
+    private void startColumn() throws SQLException {
+
+        if (column == numColumns)
+            throw new SQLException("Row has more values than the table has columns.");
+        if (column == 0 && mode == Config.BulkLoadMode.COPY_BINARY) {
+            ensure(2);
+            buf[pos++] = (byte) (numColumns >>> 8);
+            buf[pos++] = (byte) numColumns;
+        } else if (column > 0 && mode == Config.BulkLoadMode.COPY_TEXT) putByte('\t');
+        column++;
+    }
+
+    private void putNull() throws SQLException {
+        if (mode == Config.BulkLoadMode.COPY_TEXT) putAscii("\\N");
+        else putInt32(-1);
+    }
+
+    // utf-8 encode a string, escaping the characters special to the text COPY format
+    private void putUtf8(String s, boolean escape) throws SQLException {
+
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80) {
+                if (escape && (ch == '\\' || ch == '\t' || ch == '\n' || ch == '\r')) {
+                    ensure(2);
+                    buf[pos++] = '\\';
+                    buf[pos++] =
+                            (byte) (ch == '\t' ? 't' : ch == '\n' ? 'n' : ch == '\r' ? 'r' : '\\');
+                } else putByte(ch);
+            } else if (ch < 0x800) {
+                ensure(2);
+                buf[pos++] = (byte) (0xc0 | (ch >> 6));
+                buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch)
+                    && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, s.charAt(++i));
+                ensure(4);
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogates become '?', like String.getBytes does
+                putByte('?');
+            } else {
+                ensure(3);
+                buf[pos++] = (byte) (0xe0 | (ch >> 12));
+                buf[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+    }
+
+    private void putAscii(String s) throws SQLException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) buf[pos++] = (byte) s.charAt(i);
+    }
+
+    private void putBytes(byte[] bytes) throws SQLException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void putByte(int b) throws SQLException {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    // big-endian, as binary COPY wants it
+    private void putInt32(int v) throws SQLException {
+        ensure(4);
+        writeInt(pos, v);
+        pos += 4;
+    }
+
+    private void writeInt(int at, int v) {
+        buf[at] = (byte) (v >>> 24);
+        buf[at + 1] = (byte) (v >>> 16);
+        buf[at + 2] = (byte) (v >>> 8);
+        buf[at + 3] = (byte) v;
+    }
+
+    // a row reaching the end of the chunk continues in the other chunk
+    // rows larger than a chunk grow it, the grown buffer replaces the chunk's one
+    private void ensure(int n) throws SQLException {
+        if (pos + n <= buf.length) return;
+        if (rowStart > 0) handOver();
+        if (pos + n > buf.length)
+            chunk.bytes = buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+    }
+}
@@ -1,5 +1,8 @@
 package main;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /** Created by wenbo on 1/2/18. */
 public class Config {
 
@@ -19,7 +22,6 @@ public class Config {
     public static int passwordRow = 5;
     public static int kyrixDbNameRow = 6;
     public static int d3DirRow = 7;
-    public static int cacheSize = 10;
 
     // config variables
     public static String dbServer;
@@ -37,13 +39,142 @@ public class Config {
     // tile size
     public static int tileW = 1024, tileH = 1024;
 
+    // tile cache, bounded by the estimated size of cached tiles
+    public static long tileCacheMaxBytes = 256L * 1024 * 1024;
+    // number of independently locked segments of the tile cache
+    public static int tileCacheNumSegments = 16;
+
+    // what the tile cache keeps
+    // ROWS: the fetched rows, which are converted and encoded on every request
+    // RESPONSE: the final encoded response body, which is written as is on a hit
+    public enum TileCacheMode {
+        ROWS,
+        RESPONSE
+    };
+
+    public static TileCacheMode tileCacheMode = TileCacheMode.RESPONSE;
+
+    // how long a request waits for the same tile or box being loaded by another request
+    public static long singleFlightWaitTimeoutMs = 120000;
+
+    // gzip response bodies before caching them (RESPONSE mode only),
+    // so that hot tiles are compressed only once
+    public static boolean tileCacheCompressResponses = true;
+
+    // off-heap second tier of the tile cache (RESPONSE mode only), 0 disables it
+    // responses evicted from the heap cache are kept here, outside of the java heap
+    // NOTE: direct memory is bounded by -XX:MaxDirectMemorySize, which must be large enough
+    public static long offHeapTileCacheMaxBytes = 0;
+    // off-heap memory is allocated in pages of this size, larger responses are not kept
+    public static int offHeapTileCachePageBytes = 4 * 1024 * 1024;
+
+    // directory of the on-disk tile store (RESPONSE mode only), empty disables it
+    // tiles kept there survive project reloads and restarts, until their canvas is reindexed
+    public static String diskTileStoreDir = "";
+    public static long diskTileStoreMaxBytes = 8L * 1024 * 1024 * 1024;
+    // size of the append-only segment files, the oldest segment is deleted when over budget
+    public static long diskTileStoreSegmentBytes = 64L * 1024 * 1024;
+
     // number of worker threads
     public static int numThread = 4;
 
+    // how the backend server executes http requests
+    // DISPATCHER: every request runs on the single HttpServer dispatcher thread
+    // POOL: requests run on numThread worker threads, waiting in a bounded queue
+    // VIRTUAL: one virtual thread per request (JDK 21+, falls back to POOL otherwise)
+    public enum ServerExecutorMode {
+        DISPATCHER,
+        POOL,
+        VIRTUAL
+    };
+
+    public static ServerExecutorMode serverExecutorMode = ServerExecutorMode.POOL;
+
+    // max number of requests waiting for a worker thread in POOL mode
+    // when the queue is full, requests are answered with 503 Service Unavailable
+    public static int serverQueueSize = 256;
+
+    // number of threads fetching the layers of a request concurrently, 0 fetches sequentially
+    public static int numFetchThread = 8;
+    // max number of layer fetches waiting for a fetch thread
+    // when the queue is full, the requesting thread fetches the layer itself
+    public static int fetchQueueSize = 256;
+
+    // compress responses with gzip or deflate for clients that accept it
+    public static boolean compressResponses = true;
+    // responses smaller than this (in bytes) are sent uncompressed
+    public static int compressionThreshold = 1024;
+    // 1 (fastest) to 9 (smallest)
+    public static int compressionLevel = 6;
+
+    // encode /dbox responses in the json (dictionary) format while sending them, instead of
+    // building the whole response first, for responses of at least streamDboxMinRows rows
+    // rows are still fetched (and coalesced) before anything is sent
+    public static boolean streamDboxResponses = false;
+    public static int streamDboxMinRows = 20000;
+
+    // max number of tiles requested at once from /tiles
+    public static int maxTilesPerBatch = 64;
+
+    // stats of served requests are queued and written to the stats table in the background
+    // samples arriving while the queue is full are dropped, the size is rounded up to a power of 2
+    public static int statsQueueSize = 8192;
+    // max number of rows per insert, a flush starts early once this many samples are queued
+    public static int statsFlushBatchSize = 500;
+    // max time a sample waits in the queue
+    public static int statsFlushIntervalMs = 1000;
+
+    // log messages below this level are skipped without being formatted
+    // per-request messages (queries, timings, cache hits) are logged at DEBUG
+    public enum LogLevel {
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG,
+        TRACE
+    };
+
+    public static LogLevel logLevel = LogLevel.INFO;
+    // fraction of DEBUG and TRACE messages that are logged
+    public static double logSampleRate = 1.0;
+    // max number of messages per second from one log statement (0: no limit), errors excepted
+    public static int logRateLimitPerSec = 50;
+    // messages queued for the log writer, messages arriving while it is full are dropped
+    public static int logQueueSize = 16384;
+
+    // number of layers Indexer.precompute indexes concurrently, 1 indexes them one at a time
+    // layers sharing state (levels of SSVs, the single table of the cube indexer) stay in order
+    public static int numIndexingThread = 4;
+
+    // number of threads running the transform function of a layer being indexed
+    // raw rows are read, transformed and written by different threads, so that these steps overlap
+    public static int numTransformThread = Runtime.getRuntime().availableProcessors();
+    // max number of idle script engines (with d3 loaded) kept for the transform threads
+    public static int transformEnginePoolSize = Runtime.getRuntime().availableProcessors();
+    // rows are passed between these steps in batches of this many rows
+    public static int indexingBatchRows = 256;
+    // max number of batches read but not written yet, bounds the memory used by a layer
+    public static int indexingMaxBatchesInFlight = 64;
+
     // number of batch size when inserting records
     public static int bboxBatchSize = 5000;
     public static int tileBatchSize = 10000;
 
+    // how indexers load the rows of the tables they build
+    // BATCH: INSERTs sent in batches of bboxBatchSize rows
+    // COPY_TEXT, COPY_BINARY: rows streamed through COPY FROM STDIN (PSQL and CITUS only)
+    public enum BulkLoadMode {
+        BATCH,
+        COPY_TEXT,
+        COPY_BINARY
+    };
+
+    public static BulkLoadMode bulkLoadMode = BulkLoadMode.COPY_BINARY;
+    // overrides of bulkLoadMode for single indexers, keyed by class name (e.g. SSVInMemoryIndexer)
+    public static Map<String, BulkLoadMode> bulkLoadModeByIndexer = new HashMap<>();
+    // size of each of the two buffers COPY data is encoded into, one is sent while the other fills
+    public static int bulkLoadBufferBytes = 1024 * 1024;
+
     // tile indexing scheme
     public enum IndexingScheme {
         TILE_INDEX,
@@ -66,4 +197,26 @@ public class Config {
 
     // database iterator fetch size
     public static int iteratorfetchSize = 1000;
+
+    // connection pool settings (one pool per database)
+    public static int dbPoolMinSize = 1;
+    public static int dbPoolMaxSize = 16;
+    // how long a caller waits for a free connection
+    public static long dbPoolBorrowTimeoutMs = 30000;
+    // idle connections beyond dbPoolMinSize are closed after this long
+    public static long dbPoolIdleTimeoutMs = 300000;
+    // connections idle for longer than this are validated before being reused
+    public static long dbPoolValidationIntervalMs = 30000;
+    // connections borrowed for longer than this are reported as possible leaks, 0 disables
+    // every borrow captures a stack trace while enabled, so only turn it on to find a leak
+    public static long dbPoolLeakThresholdMs = 0;
+    // prepared statements kept open per pooled connection, 0 disables the cache
+    public static int dbStatementCacheSize = 64;
+    // executions after which a psql prepared statement is prepared on the server as well,
+    // so the database keeps its plan
+    public static int dbPrepareThreshold = 1;
+
+    // statement timeout for queries issued while serving requests, 0 means no timeout
+    // indexing queries never time out
+    public static int servingStatementTimeoutSec = 60;
 }
@@ -0,0 +1,427 @@
+package main;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of jdbc connections to one database. Connections handed out by {@link #borrow(int)} are
+ * proxies: closing them returns the physical connection to the pool.
+ *
+ * <p>If the pool has a statement cache, every physical connection keeps its most recently used
+ * prepared statements open, keyed by their SQL. Preparing the same SQL again on that connection
+ * hands out the open statement, and closing it only clears its parameters, so the driver and the
+ * database can reuse the parsed statement and its plan.
+ */
+public class ConnectionPool {
+
+    // opens a new physical connection
+    public interface ConnectionFactory {
+        Connection create() throws SQLException, ClassNotFoundException;
+    }
+
+    private class PooledConnection {
+        final Connection physical;
+        volatile long lastUsedTs;
+        volatile long borrowedTs;
+        volatile Throwable borrowTrace;
+        volatile boolean leakReported;
+        // open prepared statements by SQL
+        final StatementCache statements = new StatementCache(statementCacheSize);
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            lastUsedTs = System.currentTimeMillis();
+        }
+    }
+
+    // the least recently used statement comes first, and is closed once it is evicted
+    private static class StatementCache extends LinkedHashMap<String, CachedStatement> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        StatementCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> e) {
+            if (size() <= maxSize) return false;
+            e.getValue().evicted = true;
+            if (!e.getValue().inUse) closeQuietly(e.getValue().stmt);
+            return true;
+        }
+    }
+
+    private static class CachedStatement {
+        final PreparedStatement stmt;
+        boolean inUse = false;
+        boolean evicted = false;
+
+        CachedStatement(PreparedStatement stmt) {
+            this.stmt = stmt;
+        }
+    }
+
+    private final String name;
+    private final boolean autoCommit;
+    private final ConnectionFactory factory;
+    private final int statementCacheSize;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private volatile boolean closed = false;
+
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    // statementCacheSize: prepared statements kept open per connection, 0 disables the cache
+    public ConnectionPool(
+            String name, boolean autoCommit, ConnectionFactory factory, int statementCacheSize) {
+        this.name = name;
+        this.autoCommit = autoCommit;
+        this.factory = factory;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(Config.dbPoolMaxSize, true);
+    }
+
+    // borrow a connection, statements created from it get the given timeout (0: none)
+    public Connection borrow(int statementTimeoutSec) throws SQLException, ClassNotFoundException {
+
+        if (closed) throw new SQLException("Connection pool " + name + " is closed.");
+        try {
+            if (!permits.tryAcquire(Config.dbPoolBorrowTimeoutMs, TimeUnit.MILLISECONDS))
+                throw new SQLException(
+                        "Timed out waiting for a connection to "
+                                + name
+                                + " ("
+                                + borrowed.size()
+                                + " borrowed).");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + name);
+        }
+
+        PooledConnection pc = null;
+        try {
+            // reuse an idle connection if there's a valid one
+            while (pc == null && (pc = idle.pollFirst()) != null)
+                if (!isUsable(pc)) {
+                    closeQuietly(pc);
+                    pc = null;
+                }
+            if (pc == null) pc = open();
+        } catch (SQLException | ClassNotFoundException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+
+        pc.borrowedTs = System.currentTimeMillis();
+        pc.borrowTrace = Config.dbPoolLeakThresholdMs > 0 ? new Throwable("borrowed here") : null;
+        pc.leakReported = false;
+        borrowed.add(pc);
+        return wrap(pc, statementTimeoutSec);
+    }
+
+    private PooledConnection open() throws SQLException, ClassNotFoundException {
+
+        Connection conn = factory.create();
+        // to enable fetching data in batch in Postgres, autocommit must be set to false
+        conn.setAutoCommit(autoCommit);
+        return new PooledConnection(conn);
+    }
+
+    private boolean isUsable(PooledConnection pc) {
+
+        try {
+            if (pc.physical.isClosed()) return false;
+            if (System.currentTimeMillis() - pc.lastUsedTs < Config.dbPoolValidationIntervalMs)
+                return true;
+            return pc.physical.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pc) {
+
+        if (!borrowed.remove(pc)) return;
+        boolean reusable = !closed;
+        try {
+            // end whatever transaction the borrower left open
+            if (!pc.physical.getAutoCommit()) pc.physical.rollback();
+            if (pc.physical.getAutoCommit() != autoCommit) pc.physical.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        pc.lastUsedTs = System.currentTimeMillis();
+        pc.borrowTrace = null;
+        if (reusable) idle.addFirst(pc);
+        else closeQuietly(pc);
+        permits.release();
+    }
+
+    // close connections idle for too long (keeping min size) and report possible leaks
+    public void maintain() {
+
+        long now = System.currentTimeMillis();
+        int numIdle = idle.size();
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && numIdle > Config.dbPoolMinSize) {
+            PooledConnection pc = it.next();
+            if (now - pc.lastUsedTs < Config.dbPoolIdleTimeoutMs) continue;
+            if (idle.remove(pc)) {
+                closeQuietly(pc);
+                numIdle--;
+            }
+        }
+
+        if (Config.dbPoolLeakThresholdMs <= 0) return;
+        for (PooledConnection pc : borrowed) {
+            Throwable trace = pc.borrowTrace;
+            if (pc.leakReported
+                    || trace == null
+                    || now - pc.borrowedTs < Config.dbPoolLeakThresholdMs) continue;
+            pc.leakReported = true;
+            Log.warn(
+                    "Possible connection leak: a connection to {} has been borrowed for {}s.",
+                    name,
+                    (now - pc.borrowedTs) / 1000,
+                    trace);
+        }
+    }
+
+    // close idle connections, borrowed ones are closed when they are returned
+    public void closeIdle() {
+
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) closeQuietly(pc);
+    }
+
+    public void close() {
+
+        closed = true;
+        closeIdle();
+    }
+
+    public int getNumBorrowed() {
+        return borrowed.size();
+    }
+
+    public int getNumIdle() {
+        return idle.size();
+    }
+
+    // number of prepared statements served from, and added to, the statement caches
+    public long getStatementCacheHits() {
+        return statementHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementMisses.sum();
+    }
+
+    private static void closeQuietly(PooledConnection pc) {
+
+        try {
+            pc.physical.close();
+        } catch (SQLException e) {
+            // the connection is being thrown away anyway
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // the statement is being thrown away anyway
+        }
+    }
+
+    // hand out the open statement of this SQL, or prepare and cache it
+    // conn is the pooled connection the statement is prepared on, as seen by the borrower
+    private PreparedStatement prepareCached(
+            PooledConnection pc, Connection conn, String sql, int timeoutSec)
+            throws SQLException {
+
+        CachedStatement cs;
+        synchronized (pc.statements) {
+            cs = pc.statements.get(sql);
+            if (cs != null && cs.inUse) {
+                // the borrower holds it already, give out an uncached one
+                PreparedStatement stmt = pc.physical.prepareStatement(sql);
+                if (timeoutSec > 0) stmt.setQueryTimeout(timeoutSec);
+                return (PreparedStatement) wrap(conn, stmt);
+            }
+            if (cs == null) {
+                statementMisses.increment();
+                cs = new CachedStatement(pc.physical.prepareStatement(sql));
+                pc.statements.put(sql, cs);
+            } else statementHits.increment();
+            cs.inUse = true;
+        }
+        cs.stmt.setQueryTimeout(timeoutSec);
+        return wrap(pc, conn, cs);
+    }
+
+    // closing the returned statement puts it back into the cache
+    // getConnection() returns the pooled connection, the physical one never leaves the pool
+    private PreparedStatement wrap(PooledConnection pc, Connection conn, CachedStatement cs) {
+
+        InvocationHandler handler =
+                new InvocationHandler() {
+                    private boolean closed = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+
+                        switch (method.getName()) {
+                            case "close":
+                                if (closed) return null;
+                                closed = true;
+                                synchronized (pc.statements) {
+                                    cs.inUse = false;
+                                    if (cs.evicted) {
+                                        cs.stmt.close();
+                                        return null;
+                                    }
+                                }
+                                try {
+                                    cs.stmt.clearParameters();
+                                    cs.stmt.clearBatch();
+                                } catch (SQLException e) {
+                                    synchronized (pc.statements) {
+                                        pc.statements.values().remove(cs);
+                                    }
+                                    closeQuietly(cs.stmt);
+                                }
+                                return null;
+                            case "isClosed":
+                                return closed || cs.stmt.isClosed();
+                            case "getConnection":
+                                if (closed) break;
+                                return conn;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                        }
+                        if (closed) throw new SQLException("Statement has been closed.");
+                        try {
+                            return method.invoke(cs.stmt, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                };
+        return (PreparedStatement)
+                Proxy.newProxyInstance(
+                        ConnectionPool.class.getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class},
+                        handler);
+    }
+
+    // statements that are not cached are closed for real,
+    // but their getConnection() still returns the pooled connection
+    private static Statement wrap(Connection conn, Statement stmt) {
+
+        InvocationHandler handler =
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                    }
+                    Object ret;
+                    try {
+                        ret = method.invoke(stmt, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    return method.getName().equals("getConnection") ? conn : ret;
+                };
+        Class<?> type =
+                stmt instanceof CallableStatement
+                        ? CallableStatement.class
+                        : stmt instanceof PreparedStatement
+                                ? PreparedStatement.class
+                                : Statement.class;
+        return (Statement)
+                Proxy.newProxyInstance(
+                        ConnectionPool.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private Connection wrap(PooledConnection pc, int statementTimeoutSec) {
+
+        InvocationHandler handler =
+                new InvocationHandler() {
+                    private boolean returned = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+
+                        switch (method.getName()) {
+                            case "close":
+                                if (!returned) {
+                                    returned = true;
+                                    release(pc);
+                                }
+                                return null;
+                            case "isClosed":
+                                return returned || pc.physical.isClosed();
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "toString":
+                                return "Pooled connection to " + name;
+                            case "prepareStatement":
+                                if (returned || statementCacheSize <= 0 || args.length != 1) break;
+                                return prepareCached(
+                                        pc,
+                                        (Connection) proxy,
+                                        (String) args[0],
+                                        statementTimeoutSec);
+                        }
+                        if (returned)
+                            throw new SQLException("Connection has been returned to the pool.");
+
+                        Object ret;
+                        try {
+                            ret = method.invoke(pc.physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                        if (!(ret instanceof Statement)) return ret;
+                        if (statementTimeoutSec > 0)
+                            ((Statement) ret).setQueryTimeout(statementTimeoutSec);
+                        return wrap((Connection) proxy, (Statement) ret);
+                    }
+                };
+        return (Connection)
+                Proxy.newProxyInstance(
+                        ConnectionPool.class.getClassLoader(),
+                        new Class<?>[] {Connection.class},
+                        handler);
+    }
+}
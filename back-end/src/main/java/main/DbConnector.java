@@ -1,36 +1,74 @@
 package main;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /** Created by wenbo on 1/7/18. */
 public class DbConnector {
 
-    private static Map<String, Connection> connections = new HashMap<>();
+    // one connection pool per database, plus one with autocommit off (key: dbName_batch)
+    private static Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
+    // timeout applied to statements created from connections borrowed from now on
+    private static volatile int statementTimeoutSec = 0;
+
+    // evicts idle connections and reports leaks for all pools
+    private static ScheduledExecutorService poolMaintainer = null;
+
+    public static void setStatementTimeout(int seconds) {
+        statementTimeoutSec = seconds;
+    }
+
+    // borrow a connection from the pool of the given database
+    // closing the returned connection gives it back to the pool
+    public static Connection getConnection(String dbName, boolean isBatch)
+            throws SQLException, ClassNotFoundException {
+
+        return getPool(dbName, isBatch).borrow(statementTimeoutSec);
+    }
+
+    public static Connection getConnection(String dbName)
+            throws SQLException, ClassNotFoundException {
+
+        return getConnection(dbName, false);
+    }
 
     // isbatch must be specified if fetching a lot of data
+    // the statement holds a pooled connection, closing the statement returns it
     public static Statement getStmtByDbName(String dbName, boolean isBatch)
             throws SQLException, ClassNotFoundException {
 
         // get connection
-        Connection conn =
-                getDbConn(Config.dbServer, dbName, Config.userName, Config.password, isBatch);
+        Connection conn = getConnection(dbName, isBatch);
 
         // get statement
         Statement retStmt = null;
-        if (Config.database == Config.Database.PSQL || Config.database == Config.Database.CITUS)
-            retStmt = conn.createStatement();
-        else if (Config.database == Config.Database.MYSQL)
-            retStmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            if (Config.database == Config.Database.PSQL
+                    || Config.database == Config.Database.CITUS)
+                retStmt = conn.createStatement();
+            else if (Config.database == Config.Database.MYSQL)
+                retStmt =
+                        conn.createStatement(
+                                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 
-        // set fetch size
-        // NOTE: MySQL doesn't support fetch size very well. And MIN_VALUE isn't that bad.
-        if (Config.database == Config.Database.MYSQL) retStmt.setFetchSize(Integer.MIN_VALUE);
-        else retStmt.setFetchSize(Config.iteratorfetchSize);
+            // set fetch size
+            // NOTE: MySQL doesn't support fetch size very well. And MIN_VALUE isn't that bad.
+            if (Config.database == Config.Database.MYSQL) retStmt.setFetchSize(Integer.MIN_VALUE);
+            else retStmt.setFetchSize(Config.iteratorfetchSize);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
 
-        return retStmt;
+        return closingConnection(retStmt, conn, Statement.class);
     }
 
     public static Statement getStmtByDbName(String dbName)
@@ -40,20 +78,30 @@ public class DbConnector {
     }
 
     // get prepared statement for an update query
+    // the statement holds a pooled connection, closing the statement returns it
     public static PreparedStatement getPreparedStatement(String dbName, String sql)
             throws SQLException, ClassNotFoundException {
 
         // get connection
-        Connection conn =
-                getDbConn(Config.dbServer, dbName, Config.userName, Config.password, false);
-        return conn.prepareStatement(sql);
+        Connection conn = getConnection(dbName, false);
+        PreparedStatement preparedStmt;
+        try {
+            preparedStmt = conn.prepareStatement(sql);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return closingConnection(preparedStmt, conn, PreparedStatement.class);
     }
 
     public static ArrayList<ArrayList<String>> getQueryResult(Statement stmt, String sql)
             throws SQLException, ClassNotFoundException {
 
         ArrayList<ArrayList<String>> result = new ArrayList<>();
+        long st = PhaseTimer.begin();
         ResultSet rs = stmt.executeQuery(sql);
+        PhaseTimer.end(PhaseTimer.Phase.DB, st);
+        st = PhaseTimer.begin();
         int numColumn = rs.getMetaData().getColumnCount();
         while (rs.next()) {
             ArrayList<String> curRow = new ArrayList<>();
@@ -61,26 +109,107 @@ public class DbConnector {
             result.add(curRow);
         }
         rs.close();
+        PhaseTimer.end(PhaseTimer.Phase.ROWS, st);
 
         return result;
     }
 
+    // run a query with bind parameters on a pooled connection, the prepared statement stays
+    // cached on that connection so its plan is reused by later queries of the same sql
+    public static ArrayList<ArrayList<String>> getQueryResult(
+            String dbName, String sql, Object... params)
+            throws SQLException, ClassNotFoundException {
+
+        Connection conn = getConnection(dbName, true);
+        try {
+            PreparedStatement stmt = prepareQuery(conn, sql, params);
+            try {
+                ArrayList<ArrayList<String>> result = new ArrayList<>();
+                long st = PhaseTimer.begin();
+                ResultSet rs = stmt.executeQuery();
+                PhaseTimer.end(PhaseTimer.Phase.DB, st);
+                st = PhaseTimer.begin();
+                int numColumn = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    ArrayList<String> curRow = new ArrayList<>(numColumn);
+                    for (int j = 1; j <= numColumn; j++) curRow.add(rs.getString(j));
+                    result.add(curRow);
+                }
+                rs.close();
+                PhaseTimer.end(PhaseTimer.Phase.ROWS, st);
+                return result;
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    // like getQueryResult, but the last TypedRows.NUM_BBOX_COLUMNS columns are bounding box
+    // columns and read as doubles
+    public static TypedRows getTypedQueryResult(String dbName, String sql, Object... params)
+            throws SQLException, ClassNotFoundException {
+
+        Connection conn = getConnection(dbName, true);
+        try {
+            PreparedStatement stmt = prepareQuery(conn, sql, params);
+            try {
+                TypedRows result = new TypedRows();
+                long st = PhaseTimer.begin();
+                ResultSet rs = stmt.executeQuery();
+                PhaseTimer.end(PhaseTimer.Phase.DB, st);
+                st = PhaseTimer.begin();
+                int numStringColumns =
+                        rs.getMetaData().getColumnCount() - TypedRows.NUM_BBOX_COLUMNS;
+                double[] bbox = new double[TypedRows.NUM_BBOX_COLUMNS];
+                while (rs.next()) {
+                    ArrayList<String> curRow = new ArrayList<>(numStringColumns);
+                    for (int j = 1; j <= numStringColumns; j++) curRow.add(rs.getString(j));
+                    for (int k = 0; k < bbox.length; k++) {
+                        bbox[k] = rs.getDouble(numStringColumns + k + 1);
+                        if (rs.wasNull()) bbox[k] = Double.NaN;
+                    }
+                    result.add(curRow, bbox, 0);
+                }
+                rs.close();
+                PhaseTimer.end(PhaseTimer.Phase.ROWS, st);
+                return result;
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
     public static ArrayList<ArrayList<String>> getQueryResult(String dbName, String sql)
             throws SQLException, ClassNotFoundException {
 
+        // closing the statement gives the connection back to the pool,
+        // so concurrent callers each run on their own connection
         Statement stmt = DbConnector.getStmtByDbName(dbName, true);
-        ArrayList<ArrayList<String>> ret = getQueryResult(stmt, sql);
-        stmt.close();
+        try {
+            return getQueryResult(stmt, sql);
+        } finally {
+            stmt.close();
+        }
+    }
 
-        // We do not close connections here because otherwise
-        // indexers will have to reopen every time before
-        // calling getQueryResult(statement, sql);
-        // It's indexer's job to close the connection at the end
-        // so that the kyrix db (Config.databaseName) is not locked.
-        // At runtime this function is also called by getDataFromRegion().
-        // Closing the connection is then done by Server.java
-        // every time there is a new project request coming in
-        return ret;
+    private static PreparedStatement prepareQuery(Connection conn, String sql, Object[] params)
+            throws SQLException {
+
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        try {
+            // NOTE: MySQL doesn't support fetch size very well. And MIN_VALUE isn't that bad.
+            if (Config.database == Config.Database.MYSQL) stmt.setFetchSize(Integer.MIN_VALUE);
+            else stmt.setFetchSize(Config.iteratorfetchSize);
+            for (int i = 0; i < params.length; i++) stmt.setObject(i + 1, params[i]);
+        } catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+        return stmt;
     }
 
     public static ResultSet getQueryResultIterator(Statement stmt, String sql)
@@ -93,21 +222,61 @@ public class DbConnector {
             throws SQLException, ClassNotFoundException {
 
         Statement stmt = DbConnector.getStmtByDbName(dbName);
-        stmt.executeUpdate(sql);
-        stmt.close();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
     }
 
-    private static Connection getDbConn(
-            String dbServer, String dbName, String userName, String password, boolean isBatch)
-            throws SQLException, ClassNotFoundException {
+    private static ConnectionPool getPool(String dbName, boolean isBatch) {
 
-        String key = dbName;
-        isBatch =
-                (isBatch
+        // to enable fetching data in batch in Postgres, autocommit must be set to false
+        boolean autoCommit =
+                !(isBatch
                         && (Config.database == Config.Database.CITUS
                                 || Config.database == Config.Database.PSQL));
-        if (isBatch) key += "_batch";
-        if (connections.containsKey(key)) return connections.get(key);
+        String key = dbName + (autoCommit ? "" : "_batch");
+        ConnectionPool pool = pools.get(key);
+        if (pool != null) return pool;
+
+        synchronized (DbConnector.class) {
+            if (poolMaintainer == null) {
+                poolMaintainer =
+                        Executors.newSingleThreadScheduledExecutor(
+                                r -> {
+                                    Thread t = new Thread(r, "kyrix-db-pool-maintainer");
+                                    t.setDaemon(true);
+                                    return t;
+                                });
+                poolMaintainer.scheduleWithFixedDelay(
+                        () -> {
+                            for (ConnectionPool p : pools.values()) p.maintain();
+                        },
+                        30,
+                        30,
+                        TimeUnit.SECONDS);
+            }
+            return pools.computeIfAbsent(
+                    key,
+                    k ->
+                            new ConnectionPool(
+                                    k,
+                                    autoCommit,
+                                    () ->
+                                            getDbConn(
+                                                    Config.dbServer,
+                                                    dbName,
+                                                    Config.userName,
+                                                    Config.password),
+                                    Config.dbStatementCacheSize));
+        }
+    }
+
+    private static Connection getDbConn(
+            String dbServer, String dbName, String userName, String password)
+            throws SQLException, ClassNotFoundException {
+
         Connection dbConn = null;
         if (Config.database == Config.Database.PSQL || Config.database == Config.Database.CITUS) {
             Class.forName("org.postgresql.Driver");
@@ -117,7 +286,9 @@ public class DbConnector {
                                     + dbServer
                                     + "/"
                                     + dbName
-                                    + "?sendStringParametersAsUnicode=false",
+                                    + "?sendStringParametersAsUnicode=false"
+                                    + "&prepareThreshold="
+                                    + Config.dbPrepareThreshold,
                             userName,
                             password);
         } else if (Config.database == Config.Database.MYSQL) {
@@ -128,32 +299,62 @@ public class DbConnector {
                                     + dbServer
                                     + "/"
                                     + dbName
-                                    + "?sendStringParametersAsUnicode=false",
+                                    + "?sendStringParametersAsUnicode=false"
+                                    + "&useServerPrepStmts=true",
                             userName,
                             password);
         }
-        // to enable fetching data in batch in Postgres, autocommit must be set to false
-        if (isBatch) dbConn.setAutoCommit(false);
-        connections.put(key, dbConn);
         return dbConn;
     }
 
+    // wrap a statement so that closing it also returns its pooled connection
+    @SuppressWarnings("unchecked")
+    private static <T extends Statement> T closingConnection(
+            T stmt, Connection conn, Class<T> stmtInterface) {
+
+        return (T)
+                Proxy.newProxyInstance(
+                        DbConnector.class.getClassLoader(),
+                        new Class<?>[] {stmtInterface},
+                        (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "close":
+                                    try {
+                                        stmt.close();
+                                    } finally {
+                                        conn.close();
+                                    }
+                                    return null;
+                                case "getConnection":
+                                    return conn;
+                                case "equals":
+                                    return proxy == args[0];
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                            }
+                            try {
+                                return method.invoke(stmt, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        });
+    }
+
+    // close idle connections to a database so that it is not locked,
+    // connections that are still borrowed are closed when returned
     public static void closeConnection(String dbName) throws SQLException {
 
-        if (connections.containsKey(dbName)) {
-            connections.get(dbName).close();
-            connections.remove(dbName);
-        }
-        if (connections.containsKey(dbName + "_batch")) {
-            connections.get(dbName + "_batch").close();
-            connections.remove(dbName + "_batch");
-        }
+        ConnectionPool pool = pools.get(dbName);
+        if (pool != null) pool.closeIdle();
+        pool = pools.get(dbName + "_batch");
+        if (pool != null) pool.closeIdle();
     }
 
     public static void closeAllConnections() throws SQLException {
-        for (String connName : connections.keySet()) {
-            connections.get(connName).close();
+
+        for (String key : pools.keySet()) {
+            ConnectionPool pool = pools.remove(key);
+            if (pool != null) pool.close();
         }
-        connections.clear();
     }
 }
@@ -0,0 +1,70 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded executor shared by all requests for fetching the layers of a canvas concurrently, so
+ * that a request takes about as long as its slowest layer instead of the sum of all layers.
+ */
+public class FetchExecutor {
+
+    private static ThreadPoolExecutor executor = null;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            // when saturated, the requesting thread fetches the layer itself (back pressure)
+            executor =
+                    new ThreadPoolExecutor(
+                            Config.numFetchThread,
+                            Config.numFetchThread,
+                            0L,
+                            TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<>(Config.fetchQueueSize),
+                            r -> {
+                                String name = "kyrix-fetch-" + threadCount.incrementAndGet();
+                                Thread t = new Thread(r, name);
+                                t.setDaemon(true);
+                                return t;
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    // run the tasks concurrently and return their results in the order of the tasks
+    // the last task runs on the calling thread, the first exception is rethrown
+    public static <T> ArrayList<T> invokeInOrder(List<Callable<T>> tasks) throws Exception {
+
+        ArrayList<T> results = new ArrayList<>();
+        if (Config.numFetchThread <= 0 || tasks.size() <= 1) {
+            for (Callable<T> task : tasks) results.add(task.call());
+            return results;
+        }
+
+        ArrayList<Future<T>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < tasks.size() - 1; i++)
+                futures.add(getExecutor().submit(PhaseTimer.propagate(tasks.get(i))));
+            T last = tasks.get(tasks.size() - 1).call();
+            for (Future<T> future : futures) results.add(future.get());
+            results.add(last);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        } finally {
+            // no-op for finished tasks
+            for (Future<T> future : futures) future.cancel(true);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,213 @@
+package main;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled asynchronous logger for the serving path.
+ *
+ * <p>Messages use {} placeholders and are only formatted if their level is enabled, so disabled
+ * statements cost a level check. Formatted lines go into a lock-free {@link RingBuffer} that one
+ * background thread writes to stdout, so request threads never wait on console I/O. When the
+ * buffer is full, lines are dropped and their number reported later.
+ *
+ * <p>DEBUG and TRACE messages can be sampled (Config.logSampleRate), and every log statement, as
+ * identified by its format string, is limited to Config.logRateLimitPerSec messages per second.
+ * Errors are never sampled or limited.
+ */
+public class Log {
+
+    private static final class Line {
+        final long timestamp;
+        final Config.LogLevel level;
+        final String thread, message;
+        final Throwable error;
+
+        Line(Config.LogLevel level, String message, Throwable error) {
+            this.timestamp = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    // messages of a log statement in the current one-second window
+    private static final class Limit {
+        final AtomicLong window = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+    }
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final RingBuffer<Line> queue = new RingBuffer<>(Config.logQueueSize);
+    private static final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(Log::writeLoop, "kyrix-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    public static boolean isEnabled(Config.LogLevel level) {
+        return level.ordinal() <= Config.logLevel.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Config.LogLevel.DEBUG);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Config.LogLevel.ERROR, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Config.LogLevel.WARN, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Config.LogLevel.INFO, format, args);
+    }
+
+    // the fixed-arity variants don't allocate an argument array when the level is disabled
+    public static void debug(String format) {
+        if (isEnabled(Config.LogLevel.DEBUG)) log(Config.LogLevel.DEBUG, format, NO_ARGS);
+    }
+
+    public static void debug(String format, Object arg) {
+        if (isEnabled(Config.LogLevel.DEBUG))
+            log(Config.LogLevel.DEBUG, format, new Object[] {arg});
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (isEnabled(Config.LogLevel.DEBUG))
+            log(Config.LogLevel.DEBUG, format, new Object[] {arg1, arg2});
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Config.LogLevel.DEBUG, format, args);
+    }
+
+    public static void trace(String format) {
+        if (isEnabled(Config.LogLevel.TRACE)) log(Config.LogLevel.TRACE, format, NO_ARGS);
+    }
+
+    public static void trace(String format, Object arg) {
+        if (isEnabled(Config.LogLevel.TRACE))
+            log(Config.LogLevel.TRACE, format, new Object[] {arg});
+    }
+
+    private static void log(Config.LogLevel level, String format, Object[] args) {
+
+        if (!isEnabled(level)) return;
+        if (level.ordinal() >= Config.LogLevel.DEBUG.ordinal()
+                && Config.logSampleRate < 1
+                && ThreadLocalRandom.current().nextDouble() >= Config.logSampleRate) return;
+        int suppressed = 0;
+        if (level != Config.LogLevel.ERROR && Config.logRateLimitPerSec > 0) {
+            suppressed = admit(format);
+            if (suppressed < 0) return;
+        }
+
+        // a trailing throwable is printed with its stack trace
+        Throwable error = null;
+        int numArgs = args.length;
+        if (numArgs > 0
+                && args[numArgs - 1] instanceof Throwable
+                && countPlaceholders(format) < numArgs) {
+            error = (Throwable) args[numArgs - 1];
+            numArgs--;
+        }
+        String message = format(format, args, numArgs);
+        if (suppressed > 0) message += " (" + suppressed + " similar messages suppressed)";
+        if (queue.offer(new Line(level, message, error))) {
+            if (queue.size() == 1) LockSupport.unpark(writer);
+        } else dropped.increment();
+    }
+
+    // -1 if the statement is over its rate limit, else the number of messages suppressed since
+    // it was last admitted
+    private static int admit(String format) {
+
+        Limit limit = limits.get(format);
+        if (limit == null) limit = limits.computeIfAbsent(format, k -> new Limit());
+        long window = System.currentTimeMillis() / 1000;
+        long current = limit.window.get();
+        if (current != window && limit.window.compareAndSet(current, window))
+            limit.count.set(0);
+        if (limit.count.incrementAndGet() > Config.logRateLimitPerSec) {
+            limit.suppressed.incrementAndGet();
+            return -1;
+        }
+        return limit.suppressed.getAndSet(0);
+    }
+
+    private static int countPlaceholders(String format) {
+        int count = 0;
+        for (int i = format.indexOf("{}"); i >= 0; i = format.indexOf("{}", i + 2)) count++;
+        return count;
+    }
+
+    private static String format(String format, Object[] args, int numArgs) {
+
+        if (numArgs == 0) return format;
+        StringBuilder sb = new StringBuilder(format.length() + 16 * numArgs);
+        int from = 0;
+        for (int i = 0; i < numArgs; i++) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) break;
+            Object arg = args[i];
+            sb.append(format, from, at)
+                    .append(arg instanceof Object[] ? Arrays.toString((Object[]) arg) : arg);
+            from = at + 2;
+        }
+        return sb.append(format, from, format.length()).toString();
+    }
+
+    // write out everything queued so far, e.g. before the process exits
+    public static synchronized void flush() {
+
+        Line line;
+        while ((line = queue.poll()) != null) write(line);
+        long numDropped = dropped.sumThenReset();
+        if (numDropped > 0) out.println("WARN  " + numDropped + " log messages dropped");
+        out.flush();
+    }
+
+    private static void writeLoop() {
+
+        while (true) {
+            LockSupport.parkNanos(Log.class, TimeUnit.MILLISECONDS.toNanos(100));
+            flush();
+        }
+    }
+
+    private static final SimpleDateFormat dateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static void write(Line line) {
+
+        out.print(dateFormat.format(new Date(line.timestamp)));
+        out.print(' ');
+        out.print(line.level);
+        out.print(line.level.name().length() == 4 ? "  [" : " [");
+        out.print(line.thread);
+        out.print("] ");
+        out.println(line.message);
+        if (line.error != null) line.error.printStackTrace(out);
+    }
+}
@@ -12,7 +12,7 @@ import server.Server;
 
 public class Main {
 
-    private static Project project = null;
+    private static volatile Project project = null;
 
     public static void main(String[] args) throws Exception {
 
@@ -0,0 +1,336 @@
+package main;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import project.Canvas;
+
+/**
+ * Latency histograms and counters of served requests, exposed in the Prometheus text format by
+ * /metrics.
+ *
+ * <p>Series are created on first use and looked up by the strings the caller already has, so
+ * recording a sample allocates nothing. Histograms have log-linear buckets like HDR histograms:
+ * 16 linear sub-buckets per power of two of microseconds, i.e. a relative error below 1/16.
+ */
+public class Metrics {
+
+    // where a tile response came from
+    public enum CacheTier {
+        HEAP,
+        OFF_HEAP,
+        DISK,
+        MISS
+    }
+
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 4, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // values up to 2^40 microseconds (about 12 days)
+        private static final int MAX_EXPONENT = 40;
+        private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+        private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        public void record(long nanos) {
+
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(bucketOf(micros));
+            count.increment();
+            sumMicros.add(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) ;
+        }
+
+        private static int bucketOf(long micros) {
+
+            if (micros < SUB_BUCKETS) return (int) micros;
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+            int shift = exponent - SUB_BUCKET_BITS;
+            int sub = (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+            if (exponent == MAX_EXPONENT && (micros >>> exponent) > 1) sub = SUB_BUCKETS - 1;
+            return (shift + 1) * SUB_BUCKETS + sub;
+        }
+
+        // upper bound of the values of a bucket
+        private static long bucketMax(int bucket) {
+
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        // value in microseconds below which the given fraction of samples falls
+        public long getQuantile(double q) {
+
+            long total = 0;
+            long[] snapshot = new long[NUM_BUCKETS];
+            for (int i = 0; i < NUM_BUCKETS; i++) total += (snapshot[i] = counts.get(i));
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++)
+                if ((seen += snapshot[i]) >= rank) return Math.min(bucketMax(i), maxMicros.get());
+            return maxMicros.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        void write(StringBuilder sb, String name, String labels) {
+
+            for (double q : QUANTILES)
+                sample(sb, name, labels + ",quantile=\"" + q + "\"", getQuantile(q) / 1e6);
+            sample(sb, name + "_sum", labels, sumMicros.sum() / 1e6);
+            sample(sb, name + "_count", labels, getCount());
+            sample(sb, name + "_max", labels, getMaxMicros() / 1e6);
+        }
+    }
+
+    // requests of one endpoint and canvas
+    public static final class RequestSeries {
+        public final Histogram latency = new Histogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        public void record(long nanos, long numRows, long numBytes) {
+            latency.record(nanos);
+            rows.add(numRows);
+            bytes.add(numBytes);
+        }
+    }
+
+    // fetches of one layer
+    public static final class LayerSeries {
+        final String indexer;
+        public final Histogram latency = new Histogram();
+        private final LongAdder rows = new LongAdder();
+
+        LayerSeries(String indexer) {
+            this.indexer = indexer;
+        }
+
+        public void record(long nanos, long numRows) {
+            latency.record(nanos);
+            rows.add(numRows);
+        }
+    }
+
+    // endpoint -> canvas id -> series
+    private static final Map<String, Map<String, RequestSeries>> requests =
+            new ConcurrentHashMap<>();
+    // canvas id -> series by layer id
+    private static final Map<String, LayerSeries[]> layers = new ConcurrentHashMap<>();
+    // canvas id -> tile lookups by cache tier
+    private static final Map<String, LongAdder[]> cacheLookups = new ConcurrentHashMap<>();
+    // endpoint -> histograms by phase
+    private static final Map<String, Histogram[]> phases = new ConcurrentHashMap<>();
+
+    public static RequestSeries request(String endpoint, String canvasId) {
+
+        Map<String, RequestSeries> byCanvas = requests.get(endpoint);
+        if (byCanvas == null)
+            byCanvas = requests.computeIfAbsent(endpoint, k -> new ConcurrentHashMap<>());
+        RequestSeries series = byCanvas.get(canvasId);
+        if (series == null) series = byCanvas.computeIfAbsent(canvasId, k -> new RequestSeries());
+        return series;
+    }
+
+    public static LayerSeries layer(Canvas c, int layerId) {
+
+        LayerSeries[] series = layers.get(c.getId());
+        // recreated when the canvas gained layers after a project update
+        if (series == null || series.length != c.getLayers().size())
+            series =
+                    layers.compute(
+                            c.getId(),
+                            (k, old) -> {
+                                if (old != null && old.length == c.getLayers().size()) return old;
+                                LayerSeries[] fresh = new LayerSeries[c.getLayers().size()];
+                                for (int i = 0; i < fresh.length; i++) {
+                                    Object indexer = c.getLayers().get(i).getIndexer();
+                                    fresh[i] =
+                                            new LayerSeries(
+                                                    indexer == null
+                                                            ? "none"
+                                                            : indexer.getClass().getSimpleName());
+                                }
+                                return fresh;
+                            });
+        return series[layerId];
+    }
+
+    public static Histogram phase(String endpoint, PhaseTimer.Phase phase) {
+
+        Histogram[] histograms = phases.get(endpoint);
+        if (histograms == null)
+            histograms =
+                    phases.computeIfAbsent(
+                            endpoint,
+                            k -> {
+                                Histogram[] fresh =
+                                        new Histogram[PhaseTimer.Phase.values().length];
+                                for (int i = 0; i < fresh.length; i++) fresh[i] = new Histogram();
+                                return fresh;
+                            });
+        return histograms[phase.ordinal()];
+    }
+
+    public static void cacheLookup(String canvasId, CacheTier tier) {
+
+        LongAdder[] counts = cacheLookups.get(canvasId);
+        if (counts == null)
+            counts =
+                    cacheLookups.computeIfAbsent(
+                            canvasId,
+                            k -> {
+                                LongAdder[] fresh = new LongAdder[CacheTier.values().length];
+                                for (int i = 0; i < fresh.length; i++) fresh[i] = new LongAdder();
+                                return fresh;
+                            });
+        counts[tier.ordinal()].increment();
+    }
+
+    // append the request, layer and cache lookup metrics in the Prometheus text format
+    public static void scrape(StringBuilder sb) {
+
+        sb.append("# TYPE kyrix_request_duration_seconds summary\n");
+        for (Map.Entry<String, Map<String, RequestSeries>> e : requests.entrySet())
+            for (Map.Entry<String, RequestSeries> f : e.getValue().entrySet())
+                f.getValue()
+                        .latency
+                        .write(
+                                sb,
+                                "kyrix_request_duration_seconds",
+                                requestLabels(e.getKey(), f.getKey()));
+        sb.append("# TYPE kyrix_request_rows_total counter\n");
+        for (Map.Entry<String, Map<String, RequestSeries>> e : requests.entrySet())
+            for (Map.Entry<String, RequestSeries> f : e.getValue().entrySet())
+                sample(
+                        sb,
+                        "kyrix_request_rows_total",
+                        requestLabels(e.getKey(), f.getKey()),
+                        f.getValue().rows.sum());
+        sb.append("# TYPE kyrix_response_bytes_total counter\n");
+        for (Map.Entry<String, Map<String, RequestSeries>> e : requests.entrySet())
+            for (Map.Entry<String, RequestSeries> f : e.getValue().entrySet())
+                sample(
+                        sb,
+                        "kyrix_response_bytes_total",
+                        requestLabels(e.getKey(), f.getKey()),
+                        f.getValue().bytes.sum());
+
+        sb.append("# TYPE kyrix_request_phase_duration_seconds summary\n");
+        for (Map.Entry<String, Histogram[]> e : phases.entrySet())
+            for (PhaseTimer.Phase phase : PhaseTimer.Phase.values())
+                if (e.getValue()[phase.ordinal()].getCount() > 0)
+                    e.getValue()[phase.ordinal()].write(
+                            sb,
+                            "kyrix_request_phase_duration_seconds",
+                            "endpoint=\""
+                                    + escape(e.getKey())
+                                    + "\",phase=\""
+                                    + phase.metricName
+                                    + "\"");
+
+        sb.append("# TYPE kyrix_layer_fetch_duration_seconds summary\n");
+        for (Map.Entry<String, LayerSeries[]> e : layers.entrySet())
+            for (int i = 0; i < e.getValue().length; i++)
+                e.getValue()[i]
+                        .latency
+                        .write(
+                                sb,
+                                "kyrix_layer_fetch_duration_seconds",
+                                layerLabels(e.getKey(), i, e.getValue()[i]));
+        sb.append("# TYPE kyrix_layer_rows_total counter\n");
+        for (Map.Entry<String, LayerSeries[]> e : layers.entrySet())
+            for (int i = 0; i < e.getValue().length; i++)
+                sample(
+                        sb,
+                        "kyrix_layer_rows_total",
+                        layerLabels(e.getKey(), i, e.getValue()[i]),
+                        e.getValue()[i].rows.sum());
+
+        sb.append("# TYPE kyrix_tile_cache_lookups_total counter\n");
+        for (Map.Entry<String, LongAdder[]> e : cacheLookups.entrySet())
+            for (CacheTier tier : CacheTier.values())
+                sample(
+                        sb,
+                        "kyrix_tile_cache_lookups_total",
+                        "canvas=\""
+                                + escape(e.getKey())
+                                + "\",result=\""
+                                + tier.name().toLowerCase(Locale.ROOT)
+                                + "\"",
+                        e.getValue()[tier.ordinal()].sum());
+    }
+
+    private static String requestLabels(String endpoint, String canvasId) {
+        return "endpoint=\"" + escape(endpoint) + "\",canvas=\"" + escape(canvasId) + "\"";
+    }
+
+    private static String layerLabels(String canvasId, int layerId, LayerSeries series) {
+        return "canvas=\""
+                + escape(canvasId)
+                + "\",layer=\""
+                + layerId
+                + "\",indexer=\""
+                + series.indexer
+                + "\"";
+    }
+
+    // one sample line, labels may be empty
+    public static void sample(StringBuilder sb, String name, String labels, double value) {
+
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) sb.append((long) value);
+        else sb.append(value);
+        sb.append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // counts the bytes written through it, e.g. of streamed responses
+    public static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package main;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent by a request in each phase of serving it, sent back in a Server-Timing header and
+ * aggregated in {@link Metrics}.
+ *
+ * <p>The timer of a request is bound to the thread handling it, so code deep down (e.g. the
+ * database connector) can add to it without passing it around. Fetches running on other threads
+ * are bound to it by {@link #propagate}, so phases of concurrently fetched layers add up and may
+ * exceed the wall-clock time of the request.
+ */
+public class PhaseTimer {
+
+    public enum Phase {
+        PARSE("parse", "query parsing"),
+        CACHE("cache", "cache lookup"),
+        SQL("sql", "sql build"),
+        DB("db", "db execute"),
+        ROWS("rows", "row materialization"),
+        CONVERT("convert", "render data conversion"),
+        ENCODE("encode", "response encoding"),
+        WRITE("write", "socket write");
+
+        public final String metricName, description;
+
+        Phase(String metricName, String description) {
+            this.metricName = metricName;
+            this.description = description;
+        }
+    }
+
+    private static final ThreadLocal<PhaseTimer> current = new ThreadLocal<>();
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+    private final long startNanos = System.nanoTime();
+
+    // start timing the request handled by the calling thread
+    public static PhaseTimer start() {
+        PhaseTimer timer = new PhaseTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    public static void stop() {
+        current.remove();
+    }
+
+    // null if the calling thread isn't timing a request
+    public static PhaseTimer current() {
+        return current.get();
+    }
+
+    // the start of a phase, 0 if the calling thread isn't timing a request
+    public static long begin() {
+        return (current.get() == null ? 0 : System.nanoTime());
+    }
+
+    // add the time since begin() to a phase
+    public static void end(Phase phase, long beginNanos) {
+        if (beginNanos == 0) return;
+        PhaseTimer timer = current.get();
+        if (timer != null) timer.nanos.addAndGet(phase.ordinal(), System.nanoTime() - beginNanos);
+    }
+
+    // make a task run on another thread count towards the timer of the calling thread
+    public static <T> Callable<T> propagate(Callable<T> task) {
+
+        PhaseTimer timer = current.get();
+        if (timer == null) return task;
+        return () -> {
+            PhaseTimer previous = current.get();
+            current.set(timer);
+            try {
+                return task.call();
+            } finally {
+                if (previous == null) current.remove();
+                else current.set(previous);
+            }
+        };
+    }
+
+    public long getNanos(Phase phase) {
+        return nanos.get(phase.ordinal());
+    }
+
+    // e.g. parse;desc="query parsing";dur=0.12, db;desc="db execute";dur=10.5, total;dur=12.3
+    // phases that haven't happened yet (e.g. the socket write) are left out
+    public String toServerTiming() {
+
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            long n = getNanos(phase);
+            if (n == 0) continue;
+            sb.append(phase.metricName)
+                    .append(";desc=\"")
+                    .append(phase.description)
+                    .append("\";dur=")
+                    .append(n / 1000 / 1000.0)
+                    .append(", ");
+        }
+        sb.append("total;dur=").append((System.nanoTime() - startNanos) / 1000 / 1000.0);
+        return sb.toString();
+    }
+
+    // aggregate the phases of a finished request in the metrics of its endpoint
+    public void record(String endpoint) {
+        for (Phase phase : Phase.values()) {
+            long n = getNanos(phase);
+            if (n > 0) Metrics.phase(endpoint, phase).record(n);
+        }
+    }
+}
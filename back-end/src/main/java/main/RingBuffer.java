@@ -0,0 +1,72 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer. Each slot carries a
+ * sequence number telling whether it is free for the producer of a position or filled for the
+ * consumer, so producers only contend on one compare-and-set and never block.
+ */
+public class RingBuffer<T> {
+
+    private final int capacity, mask;
+    private final AtomicReferenceArray<T> slots;
+    // a slot at position p is free for the producer of p when its sequence is p,
+    // and filled for the consumer when its sequence is p + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // only advanced by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // the capacity is rounded up to a power of 2
+    public RingBuffer(int minCapacity) {
+
+        int cap = 1;
+        while (cap < minCapacity) cap <<= 1;
+        capacity = cap;
+        mask = cap - 1;
+        slots = new AtomicReferenceArray<>(cap);
+        sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) sequences.set(i, i);
+    }
+
+    // returns false if the buffer is full
+    public boolean offer(T item) {
+
+        long pos = tail.get();
+        while (true) {
+            long diff = sequences.get((int) (pos & mask)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            }
+            // the consumer hasn't drained this slot yet
+            else if (diff < 0) return false;
+            else pos = tail.get();
+        }
+        int slot = (int) (pos & mask);
+        slots.set(slot, item);
+        sequences.set(slot, pos + 1);
+        return true;
+    }
+
+    // only to be called by the consumer, null if the buffer is empty
+    public T poll() {
+
+        long pos = head.get();
+        int slot = (int) (pos & mask);
+        if (sequences.get(slot) != pos + 1) return null;
+        T item = slots.get(slot);
+        slots.set(slot, null);
+        sequences.set(slot, pos + capacity);
+        head.set(pos + 1);
+        return item;
+    }
+
+    // number of items offered and not polled yet
+    public long size() {
+        return tail.get() - head.get();
+    }
+}
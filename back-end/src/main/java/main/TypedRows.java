@@ -0,0 +1,138 @@
+package main;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Rows of one layer, as fetched for a tile or a box.
+ *
+ * <p>Rows read by DbConnector.getTypedQueryResult are typed: they only hold their leading string
+ * columns, and their bounding box columns (cx, cy, minx, miny, maxx, maxy) are kept in a
+ * primitive array next to them, so the values never exist as text on the server. Rows of other
+ * origins (static layers, the grid compress indexer) are plain: all their columns are strings
+ * and the bounding box columns end every row. Code that handles both reads bounding box values
+ * through getBbox and getBboxString.
+ */
+public class TypedRows implements Iterable<ArrayList<String>> {
+
+    public static final int NUM_BBOX_COLUMNS = 6;
+
+    private final ArrayList<ArrayList<String>> rows;
+    // NUM_BBOX_COLUMNS values per row, NaN for nulls, null if the rows are plain
+    private double[] bbox;
+
+    public TypedRows() {
+        this(16);
+    }
+
+    public TypedRows(int capacity) {
+        rows = new ArrayList<>(capacity);
+        bbox = new double[NUM_BBOX_COLUMNS * Math.max(capacity, 1)];
+    }
+
+    private TypedRows(ArrayList<ArrayList<String>> rows) {
+        this.rows = rows;
+        this.bbox = null;
+    }
+
+    // plain rows, whose bounding box columns are the last NUM_BBOX_COLUMNS strings of every row
+    public static TypedRows plain(ArrayList<ArrayList<String>> rows) {
+        return new TypedRows(rows);
+    }
+
+    public boolean isPlain() {
+        return bbox == null;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    // the string columns of row j, followed by the bounding box columns if the rows are plain
+    public ArrayList<String> get(int j) {
+        return rows.get(j);
+    }
+
+    @Override
+    public Iterator<ArrayList<String>> iterator() {
+        return Collections.unmodifiableList(rows).iterator();
+    }
+
+    // add a typed row with its bounding box, values are read from bbox starting at offset
+    public void add(ArrayList<String> row, double[] values, int offset) {
+
+        if (isPlain()) throw new IllegalStateException("Plain rows have no bounding box array.");
+        int at = rows.size() * NUM_BBOX_COLUMNS;
+        if (at + NUM_BBOX_COLUMNS > bbox.length)
+            bbox = Arrays.copyOf(bbox, Math.max(bbox.length * 2, at + NUM_BBOX_COLUMNS));
+        System.arraycopy(values, offset, bbox, at, NUM_BBOX_COLUMNS);
+        rows.add(row);
+    }
+
+    // add row j of other rows, typed rows are added to typed rows and plain rows to plain rows
+    public void add(TypedRows from, int j) {
+
+        if (from.isPlain() != isPlain())
+            throw new IllegalArgumentException("Typed and plain rows can not be mixed.");
+        if (isPlain()) rows.add(from.get(j));
+        else add(from.get(j), from.bbox, j * NUM_BBOX_COLUMNS);
+    }
+
+    public void addAll(TypedRows from) {
+
+        if (!isPlain()) {
+            int needed = (rows.size() + from.size()) * NUM_BBOX_COLUMNS;
+            if (needed > bbox.length) bbox = Arrays.copyOf(bbox, needed);
+        }
+        rows.ensureCapacity(rows.size() + from.size());
+        for (int j = 0; j < from.size(); j++) add(from, j);
+    }
+
+    // bounding box column k (0: cx ... 5: maxy) of row j, NaN for nulls
+    public double getBbox(int j, int k) {
+
+        if (!isPlain()) return bbox[j * NUM_BBOX_COLUMNS + k];
+        String v = getPlainBbox(j, k);
+        return (v == null ? Double.NaN : Double.parseDouble(v));
+    }
+
+    // the same value as text, null for nulls
+    // plain rows keep the text of the database, typed values are formatted like the database does
+    public String getBboxString(int j, int k) {
+
+        if (isPlain()) return getPlainBbox(j, k);
+        double v = bbox[j * NUM_BBOX_COLUMNS + k];
+        return Double.isNaN(v) ? null : formatNumber(v);
+    }
+
+    // row j with its bounding box columns as strings at the end, as plain rows have them
+    public ArrayList<String> getPlainRow(int j) {
+
+        if (isPlain()) return rows.get(j);
+        ArrayList<String> row = new ArrayList<>(rows.get(j).size() + NUM_BBOX_COLUMNS);
+        row.addAll(rows.get(j));
+        for (int k = 0; k < NUM_BBOX_COLUMNS; k++) row.add(getBboxString(j, k));
+        return row;
+    }
+
+    private String getPlainBbox(int j, int k) {
+        ArrayList<String> row = rows.get(j);
+        return row.get(row.size() - NUM_BBOX_COLUMNS + k);
+    }
+
+    // integers are printed without a fraction and other values without an exponent,
+    // like the database prints bounding box values (e.g. 12345678.5, not 1.23456785E7)
+    public static String formatNumber(double v) {
+
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        if (Double.isInfinite(v)) return (v > 0 ? "Infinity" : "-Infinity");
+        return BigDecimal.valueOf(v).stripTrailingZeros().toPlainString();
+    }
+}
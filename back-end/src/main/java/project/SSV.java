@@ -230,6 +230,7 @@ public class SSV {
                     loY = Math.min(loY, cy);
                     hiY = Math.max(hiY, cy);
                 }
+                rs.close();
                 rawDBStmt.close();
                 DbConnector.closeConnection(getDb());
             } catch (Exception e) {
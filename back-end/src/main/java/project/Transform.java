@@ -67,6 +67,8 @@ public class Transform implements Serializable {
                 int colCount = rs.getMetaData().getColumnCount();
                 for (int i = 1; i <= colCount; i++)
                     queriedColumnNames.add(rs.getMetaData().getColumnName(i));
+                rs.close();
+                rawDBStmt.close();
                 DbConnector.closeConnection(getDb());
             } catch (Exception e) {
                 e.printStackTrace();
@@ -1,26 +1,41 @@
 package server;
 
+import box.BinaryRenderData;
 import box.Box;
 import box.BoxandData;
 import box.MikeBoxGetter;
+import cache.CachedResponse;
+import cache.SingleFlight;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
+import main.Config;
+import main.Log;
 import main.Main;
+import main.Metrics;
+import main.PhaseTimer;
+import main.TypedRows;
 import project.Canvas;
+import project.Layer;
 import project.View;
 
 public class BoxRequestHandler implements HttpHandler {
 
     // gson builder
     private final Gson gson;
-    private MikeBoxGetter boxGetter;
+    private final MikeBoxGetter boxGetter;
+    private static final SingleFlight<String, BoxandData> boxFlights = new SingleFlight<>();
 
     public BoxRequestHandler() {
 
@@ -28,12 +43,18 @@ public class BoxRequestHandler implements HttpHandler {
         boxGetter = new MikeBoxGetter();
     }
 
+    // number of fetches saved by waiting for an identical request in flight
+    public static long getCoalescedCount() {
+        return boxFlights.getCoalescedCount();
+    }
+
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        // TODO: this method should be thread safe, allowing concurrent requests
-        System.out.println("\nServing /dynamic Box");
+        Log.debug("Serving /dbox");
 
+        PhaseTimer timer = PhaseTimer.start();
+        long parseStart = PhaseTimer.begin();
         try {
             // get data of the current request
             // variable definitions
@@ -52,7 +73,8 @@ public class BoxRequestHandler implements HttpHandler {
             String query = httpExchange.getRequestURI().getQuery();
             Map<String, String> queryMap = Server.queryToMap(query);
             // print
-            for (String s : queryMap.keySet()) System.out.println(s + " : " + queryMap.get(s));
+            if (Log.isDebugEnabled())
+                for (String s : queryMap.keySet()) Log.debug("{} : {}", s, queryMap.get(s));
 
             // check parameters, if not pass, send a bad request response
             response = checkParameters(queryMap);
@@ -79,22 +101,27 @@ public class BoxRequestHandler implements HttpHandler {
             double oMaxY = oMinY + Double.valueOf(queryMap.get("oboxh"));
             Box oldBox = new Box(oMinX, oMinY, oMaxX, oMaxY);
             Boolean isJumping = Boolean.valueOf(queryMap.get("isJumping"));
+            String format = Server.getRenderDataFormat(httpExchange, queryMap);
+            long startNanos = System.nanoTime();
+            Metrics.CountingOutputStream responseBody = Server.countResponseBytes(httpExchange);
+            PhaseTimer.end(PhaseTimer.Phase.PARSE, parseStart);
 
             // get box data
             long st = System.currentTimeMillis();
-            data = boxGetter.getBox(c, v, minx, miny, oldBox, predicates);
+            // identical requests in flight at the same time share one fetch
+            Canvas canvas = c;
+            double mx = minx, my = miny;
+            data =
+                    boxFlights.run(
+                            getFlightKey(c, viewId, minx, miny, oldBox, predicates),
+                            () -> boxGetter.getBox(canvas, v, mx, my, oldBox, predicates));
             double fetchTime = System.currentTimeMillis() - st;
             int intersectingRows = 0;
             for (int i = 0; i < data.data.size(); i++) {
                 intersectingRows += data.data.get(i).size();
             }
-            System.out.println("Fetch data time: " + fetchTime + "ms.");
-            System.out.println("number of intersecting rows in result: " + intersectingRows);
+            Log.debug("Fetch data time: {}ms, {} intersecting rows.", fetchTime, intersectingRows);
 
-            // TODO: improve this by not sending insert query every time there is a user
-            // interaction,
-            // instead, store in prepare statement (idk if that would work?)
-            //  or in-memory data structure and flush to db in batches
             if (isJumping) {
                 Server.sendStats(
                         Main.getProject().getName(),
@@ -107,26 +134,155 @@ public class BoxRequestHandler implements HttpHandler {
                         Main.getProject().getName(), c.getId(), "pan", fetchTime, intersectingRows);
             }
 
+            // large dictionary-format responses are encoded while they are sent
+            if (Config.streamDboxResponses
+                    && format.equals("json")
+                    && intersectingRows >= Config.streamDboxMinRows) {
+                streamBox(httpExchange, c, data);
+                Metrics.request("dbox", canvasId)
+                        .record(
+                                System.nanoTime() - startNanos,
+                                intersectingRows,
+                                responseBody.getCount());
+                timer.record("dbox");
+                return;
+            }
+
             // send data and box back
             Map<String, Object> respMap = new HashMap<>();
-            respMap.put("renderData", BoxandData.getDictionaryFromData(data.data, c));
+            respMap.put("format", format);
             respMap.put("minx", data.box.getMinx());
             respMap.put("miny", data.box.getMiny());
             respMap.put("boxH", data.box.getHeight());
             respMap.put("boxW", data.box.getWidth());
             respMap.put("canvasId", canvasId);
-            response = gson.toJson(respMap);
+            byte[] binaryResponse = null;
+            long encodeStart = PhaseTimer.begin();
+            if (format.equals("binary"))
+                binaryResponse = BinaryRenderData.encode(data.data, c, gson.toJson(respMap));
+            else {
+                respMap.put("renderData", BoxandData.getRenderData(data.data, c, format));
+                PhaseTimer.end(PhaseTimer.Phase.CONVERT, encodeStart);
+                encodeStart = PhaseTimer.begin();
+                response = gson.toJson(respMap);
+            }
+            PhaseTimer.end(PhaseTimer.Phase.ENCODE, encodeStart);
 
             // send back response
             st = System.currentTimeMillis();
-            Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
-            System.out.println("Send response time: " + (System.currentTimeMillis() - st) + "ms.");
-            System.out.println();
+            if (binaryResponse != null)
+                Server.sendResponse(
+                        httpExchange,
+                        HttpsURLConnection.HTTP_OK,
+                        new CachedResponse(binaryResponse, false, intersectingRows),
+                        BinaryRenderData.CONTENT_TYPE);
+            else Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
+            Log.debug("Send response time: {}ms.", System.currentTimeMillis() - st);
+            Metrics.request("dbox", canvasId)
+                    .record(
+                            System.nanoTime() - startNanos,
+                            intersectingRows,
+                            responseBody.getCount());
+            timer.record("dbox");
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving /dbox: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
+            Server.sendErrorResponse(httpExchange);
+        } finally {
+            PhaseTimer.stop();
+        }
+    }
+
+    private static String getFlightKey(
+            Canvas c,
+            String viewId,
+            double mx,
+            double my,
+            Box oldBox,
+            ArrayList<String> predicates) {
+
+        return Main.getProject().getName()
+                + "-"
+                + c.getId()
+                + "-"
+                + c.getW()
+                + "-"
+                + c.getH()
+                + "-"
+                + viewId
+                + "-"
+                + mx
+                + "-"
+                + my
+                + "-"
+                + oldBox.getCSV()
+                + "-"
+                + predicates;
+    }
+
+    // send the response in chunks, encoding rows as they are written so that the encoded
+    // response is never held in memory, the rows are fetched already so errors before this
+    // still get a proper response
+    private void streamBox(HttpExchange httpExchange, Canvas c, BoxandData data)
+            throws IOException {
+
+        // a response length of 0 means chunked transfer encoding
+        httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        String encoding = ResponseCompressor.negotiate(httpExchange);
+        if (encoding != null) {
+            httpExchange.getResponseHeaders().add("Content-Encoding", encoding);
+            httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
         }
+        Server.addServerTiming(httpExchange);
+        long st = PhaseTimer.begin();
+        httpExchange.sendResponseHeaders(HttpsURLConnection.HTTP_OK, 0);
+        OutputStream os = new BufferedOutputStream(httpExchange.getResponseBody(), 1 << 16);
+        if (encoding != null) os = ResponseCompressor.wrap(os, encoding);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        // like gson, leave out null fields
+        writer.setSerializeNulls(false);
+
+        try {
+            writer.beginObject();
+            writer.name("format").value("json");
+            writer.name("minx").value(data.box.getMinx());
+            writer.name("miny").value(data.box.getMiny());
+            writer.name("boxH").value(data.box.getHeight());
+            writer.name("boxW").value(data.box.getWidth());
+            writer.name("canvasId").value(c.getId());
+            writer.name("renderData").beginArray();
+            for (int i = 0; i < data.data.size(); i++) {
+                Layer curLayer = c.getLayers().get(i);
+                ArrayList<String> fields = curLayer.getTransform().getColumnNames();
+                boolean isSSV = curLayer.getIndexerType().contains("SSV");
+                TypedRows rows = data.data.get(i);
+                writer.beginArray();
+                for (int j = 0; j < rows.size(); j++) writeRow(writer, fields, isSSV, rows, j);
+                writer.endArray();
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+        } finally {
+            // on errors, e.g. a client going away, the client receives a truncated response
+            httpExchange.close();
+        }
+        PhaseTimer.end(PhaseTimer.Phase.WRITE, st);
+    }
+
+    // write row j as a dictionary, see BoxandData.getDictionaryFromData
+    private static void writeRow(
+            JsonWriter writer, ArrayList<String> fields, boolean isSSV, TypedRows rows, int j)
+            throws IOException {
+
+        writer.beginObject();
+        ArrayList<String> row = rows.get(j);
+        int numFields = fields.size();
+        for (int k = 0; k < numFields; k++) writer.name(fields.get(k)).value(row.get(k));
+        if (isSSV) writer.name("clusterAgg").value(row.get(numFields));
+        for (int k = 0; k < BoxandData.BBOX_FIELDS.length; k++)
+            writer.name(BoxandData.BBOX_FIELDS[k]).value(rows.getBboxString(j, k));
+        writer.endObject();
     }
 
     private String checkParameters(Map<String, String> queryMap) {
@@ -141,6 +297,13 @@ public class BoxRequestHandler implements HttpHandler {
         if (Main.getProject().getCanvas(canvasId) == null)
             return "Canvas " + canvasId + " does not exist!";
 
+        // check render data format
+        if (queryMap.containsKey("format")
+                && !queryMap.get("format").equals("json")
+                && !queryMap.get("format").equals("columnar")
+                && !queryMap.get("format").equals("binary"))
+            return "Unknown format " + queryMap.get("format") + ".";
+
         // check passed
         return "";
     }
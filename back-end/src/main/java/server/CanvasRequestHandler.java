@@ -14,7 +14,10 @@ import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.PhaseTimer;
+import main.TypedRows;
 import project.Canvas;
 import project.Layer;
 
@@ -31,8 +34,10 @@ public class CanvasRequestHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        System.out.println("Serving /canvas");
+        Log.debug("Serving /canvas");
 
+        PhaseTimer timer = PhaseTimer.start();
+        long parseStart = PhaseTimer.begin();
         try {
             // check if this is a POST request
             if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
@@ -53,6 +58,7 @@ public class CanvasRequestHandler implements HttpHandler {
             ArrayList<String> predicates = new ArrayList<>();
             for (int i = 0; i < c.getLayers().size(); i++)
                 predicates.add(queryMap.get("predicate" + i));
+            PhaseTimer.end(PhaseTimer.Phase.PARSE, parseStart);
 
             // calculate w or h if they are not pre-determined
             if (c.getwSql().length() > 0) {
@@ -69,21 +75,27 @@ public class CanvasRequestHandler implements HttpHandler {
             }
 
             // get static data
-            ArrayList<ArrayList<ArrayList<String>>> staticData = null;
+            ArrayList<TypedRows> staticData = null;
             staticData = getStaticData(c, predicates);
 
             // construct the response object
             Map<String, Object> respMap = new HashMap<>();
             respMap.put("canvas", c);
+            long st = PhaseTimer.begin();
             respMap.put("staticData", BoxandData.getDictionaryFromData(staticData, c));
+            PhaseTimer.end(PhaseTimer.Phase.CONVERT, st);
+            st = PhaseTimer.begin();
             String response = gson.toJson(respMap);
+            PhaseTimer.end(PhaseTimer.Phase.ENCODE, st);
 
             // send the response back
             Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
+            timer.record("canvas");
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving /canvas: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
+        } finally {
+            PhaseTimer.stop();
         }
     }
 
@@ -93,11 +105,11 @@ public class CanvasRequestHandler implements HttpHandler {
         return Integer.valueOf(DbConnector.getQueryResult(db, sql).get(0).get(0));
     }
 
-    private ArrayList<ArrayList<ArrayList<String>>> getStaticData(
+    private ArrayList<TypedRows> getStaticData(
             Canvas c, ArrayList<String> predicates) throws SQLException, ClassNotFoundException {
 
         // container for data
-        ArrayList<ArrayList<ArrayList<String>>> data = new ArrayList<>();
+        ArrayList<TypedRows> data = new ArrayList<>();
 
         // loop over layers
         for (int i = 0; i < c.getLayers().size(); i++) {
@@ -106,15 +118,17 @@ public class CanvasRequestHandler implements HttpHandler {
 
             // add an empty placeholder for static layers
             if (!l.isStatic()) {
-                data.add(new ArrayList<>());
+                data.add(new TypedRows());
                 continue;
             }
 
             Indexer indexer = l.getIndexer();
+            long st = PhaseTimer.begin();
             String sql = indexer.getStaticDataQuery(c, i, predicates.get(i));
+            PhaseTimer.end(PhaseTimer.Phase.SQL, st);
 
             // run query, add to response
-            data.add(DbConnector.getQueryResult(Config.databaseName, sql));
+            data.add(TypedRows.plain(DbConnector.getQueryResult(Config.databaseName, sql)));
         }
 
         return data;
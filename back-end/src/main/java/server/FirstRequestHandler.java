@@ -9,6 +9,7 @@ import java.util.HashMap;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
+import main.Log;
 import main.Main;
 import project.Project;
 
@@ -25,7 +26,7 @@ public class FirstRequestHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        System.out.println("Serving /first");
+        Log.debug("Serving /first");
 
         try {
             // check if this is a POST request
@@ -47,8 +48,7 @@ public class FirstRequestHandler implements HttpHandler {
             String response = gson.toJson(respMap);
             Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving /first: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
         }
     }
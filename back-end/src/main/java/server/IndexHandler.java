@@ -6,6 +6,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
+import main.Log;
 
 /** Created by wenbo on 1/2/18. */
 public class IndexHandler implements HttpHandler {
@@ -13,10 +14,10 @@ public class IndexHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        System.out.println("Serving /");
+        Log.debug("Serving /");
 
         try {
-            System.out.println(httpExchange.getRequestURI().getPath());
+            Log.trace("{}", httpExchange.getRequestURI().getPath());
 
             // check if it is GET request
             if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
@@ -44,8 +45,7 @@ public class IndexHandler implements HttpHandler {
                         httpExchange, HttpsURLConnection.HTTP_OK, content, len, "image/jpg");
             else Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, content, len);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving a static file: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
         }
     }
@@ -0,0 +1,102 @@
+package server;
+
+import cache.DiskTileStore;
+import cache.OffHeapTileStore;
+import cache.TileCache;
+import cache.TinyLfuCache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.net.ssl.HttpsURLConnection;
+import main.Log;
+import main.Metrics;
+
+/**
+ * Serves request, layer and cache metrics in the Prometheus text format. Latencies are summaries
+ * with p50/p95/p99 quantiles and a max, request rates are the rates of their counts.
+ */
+public class MetricsRequestHandler implements HttpHandler {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+
+        try {
+            if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_BAD_METHOD, "");
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            Metrics.scrape(sb);
+            writeCacheMetrics(sb);
+            writeCounter(
+                    sb,
+                    "kyrix_coalesced_fetches_total",
+                    "endpoint=\"tile\"",
+                    TileCache.getCoalescedCount());
+            Metrics.sample(
+                    sb,
+                    "kyrix_coalesced_fetches_total",
+                    "endpoint=\"dbox\"",
+                    BoxRequestHandler.getCoalescedCount());
+            StatsSink stats = StatsSink.getInstance();
+            writeCounter(sb, "kyrix_stats_written_total", "", stats.getWrittenCount());
+            writeCounter(sb, "kyrix_stats_dropped_total", "", stats.getDroppedCount());
+            writeCounter(sb, "kyrix_stats_failed_total", "", stats.getFailedCount());
+            writeGauge(sb, "kyrix_stats_queued", "", stats.getQueuedCount());
+
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            Server.sendResponse(
+                    httpExchange, HttpsURLConnection.HTTP_OK, body, body.length, CONTENT_TYPE);
+        } catch (Exception e) {
+            Log.error("Error while serving /metrics: {}", e.getMessage(), e);
+            Server.printServingErrorMessage();
+        }
+    }
+
+    private static void writeCacheMetrics(StringBuilder sb) {
+
+        TinyLfuCache<String, ?> cache = TileCache.getCache();
+        if (cache != null) {
+            writeCounter(sb, "kyrix_tile_cache_hits_total", "", cache.getHitCount());
+            writeCounter(sb, "kyrix_tile_cache_misses_total", "", cache.getMissCount());
+            writeCounter(sb, "kyrix_tile_cache_evictions_total", "", cache.getEvictionCount());
+            writeCounter(sb, "kyrix_tile_cache_rejections_total", "", cache.getRejectionCount());
+            writeGauge(sb, "kyrix_tile_cache_entries", "", cache.getSize());
+            writeGauge(sb, "kyrix_tile_cache_bytes", "", cache.getEstimatedBytes());
+        }
+
+        OffHeapTileStore offHeap = TileCache.getOffHeapStore();
+        if (offHeap != null) {
+            writeCounter(sb, "kyrix_offheap_cache_hits_total", "", offHeap.getHitCount());
+            writeCounter(sb, "kyrix_offheap_cache_misses_total", "", offHeap.getMissCount());
+            writeCounter(
+                    sb, "kyrix_offheap_cache_evictions_total", "", offHeap.getEvictionCount());
+            writeCounter(
+                    sb, "kyrix_offheap_cache_rejections_total", "", offHeap.getRejectionCount());
+            writeGauge(sb, "kyrix_offheap_cache_entries", "", offHeap.getSize());
+            writeGauge(sb, "kyrix_offheap_cache_stored_bytes", "", offHeap.getStoredBytes());
+            writeGauge(
+                    sb, "kyrix_offheap_cache_allocated_bytes", "", offHeap.getAllocatedBytes());
+        }
+
+        DiskTileStore disk = TileCache.getDiskStore();
+        if (disk != null) {
+            writeGauge(sb, "kyrix_tile_store_entries", "", disk.getSize());
+            writeGauge(sb, "kyrix_tile_store_bytes", "", disk.getDiskBytes());
+        }
+    }
+
+    private static void writeCounter(StringBuilder sb, String name, String labels, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        Metrics.sample(sb, name, labels, value);
+    }
+
+    private static void writeGauge(StringBuilder sb, String name, String labels, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        Metrics.sample(sb, name, labels, value);
+    }
+}
@@ -26,7 +26,7 @@ public class ProjectRequestHandler implements HttpHandler {
         gson = new GsonBuilder().create();
     };
 
-    public static void clearProjectHistory(String projectName) {
+    public static synchronized void clearProjectHistory(String projectName) {
         projects.remove(projectName);
     }
 
@@ -45,9 +45,17 @@ public class ProjectRequestHandler implements HttpHandler {
         projects.get(projName).add(proj);
     }
 
+    // project definitions are applied one at a time
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
+        synchronized (ProjectRequestHandler.class) {
+            handleProjectRequest(httpExchange);
+        }
+    }
+
+    private void handleProjectRequest(HttpExchange httpExchange) throws IOException {
+
         System.out.println("\n\nServing /project\n New project definition coming...");
 
         try {
@@ -0,0 +1,102 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import main.Config;
+
+/**
+ * Negotiates and applies http response compression. Only gzip and deflate are supported, which
+ * the JDK implements without native libraries of its own.
+ */
+public class ResponseCompressor {
+
+    // pick the encoding for a response from the Accept-Encoding request header
+    // returns null if the response should not be compressed
+    public static String negotiate(HttpExchange httpExchange) {
+
+        if (!Config.compressResponses) return null;
+        return negotiate(httpExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+    }
+
+    static String negotiate(String acceptEncoding) {
+
+        if (acceptEncoding == null) return null;
+
+        // q values of the listed codings, codings refused with q=0 included
+        Map<String, Double> qs = new HashMap<>();
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q="))
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+            }
+            if (!coding.isEmpty()) qs.put(coding, q);
+        }
+
+        String best = null;
+        double bestQ = 0;
+        // gzip wins ties
+        for (String coding : new String[] {"gzip", "deflate"}) {
+            // "*" stands for the codings the client didn't list
+            Double q = qs.containsKey(coding) ? qs.get(coding) : qs.get("*");
+            if (q != null && q > bestQ) {
+                best = coding;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    // whether it pays to compress a body of this type and size
+    public static boolean shouldCompress(String contentType, int len) {
+
+        if (len < Config.compressionThreshold) return false;
+        // images are compressed already
+        return contentType == null
+                || !contentType.startsWith("image/")
+                || contentType.contains("svg");
+    }
+
+    // wrap a stream so that what is written to it gets compressed, closing it finishes the stream
+    public static OutputStream wrap(OutputStream os, String encoding) throws IOException {
+
+        if (encoding.equals("gzip"))
+            return new GZIPOutputStream(os, 8192) {
+                {
+                    def.setLevel(Config.compressionLevel);
+                }
+            };
+        return new DeflaterOutputStream(os, new Deflater(Config.compressionLevel), 8192) {
+            // the deflater is created here, so it has to be released here
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    public static byte[] compress(byte[] data, int off, int len, String encoding)
+            throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 4 + 64);
+        OutputStream os = wrap(bos, encoding);
+        os.write(data, off, len);
+        os.close();
+        return bos.toByteArray();
+    }
+}
@@ -1,5 +1,9 @@
 package server;
 
+import box.BinaryRenderData;
+import cache.CachedResponse;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import index.Indexer;
@@ -7,33 +11,54 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
+import main.Metrics;
+import main.PhaseTimer;
 
 /** Created by wenbo on 1/8/18. */
 public class Server {
 
     private static HttpServer server;
-    private static boolean terminated;
+    private static ExecutorService executor;
+    // answers the requests the worker pool has no room for, see createExecutor
+    private static ExecutorService rejectionExecutor;
+    private static final ThreadLocal<Boolean> isRejectionThread = new ThreadLocal<>();
+    private static volatile boolean terminated;
     private static Object terminationLock = new Object();
 
     public static void startServer(int portNumber) throws Exception {
 
         server = HttpServer.create(new InetSocketAddress(portNumber), 0);
-        server.createContext("/", new IndexHandler());
-        server.createContext("/first", new FirstRequestHandler());
-        server.createContext("/tile", new TileRequestHandler());
-        server.createContext("/dbox", new BoxRequestHandler());
-        server.createContext("/canvas", new CanvasRequestHandler());
-        server.createContext("/viewport", new ViewportRequestHandler());
-        server.createContext("/project", new ProjectRequestHandler());
-        server.setExecutor(
-                null); // java.util.concurrent.Executors.newFixedThreadPool(Config.numThread));
+        ArrayList<HttpContext> contexts = new ArrayList<>();
+        contexts.add(server.createContext("/", new IndexHandler()));
+        contexts.add(server.createContext("/first", new FirstRequestHandler()));
+        contexts.add(server.createContext("/tile", new TileRequestHandler()));
+        contexts.add(server.createContext("/tiles", new TilesRequestHandler()));
+        contexts.add(server.createContext("/dbox", new BoxRequestHandler()));
+        contexts.add(server.createContext("/canvas", new CanvasRequestHandler()));
+        contexts.add(server.createContext("/viewport", new ViewportRequestHandler()));
+        contexts.add(server.createContext("/project", new ProjectRequestHandler()));
+        contexts.add(server.createContext("/metrics", new MetricsRequestHandler()));
+        for (HttpContext context : contexts) context.getFilters().add(REJECTION_FILTER);
+        executor = createExecutor();
+        server.setExecutor(executor);
         terminated = false;
+        DbConnector.setStatementTimeout(Config.servingStatementTimeoutSec);
         server.start();
         System.out.println("Backend server started...");
         if (Main.getProject() == null) System.out.println("Waiting for project definition...");
@@ -41,6 +66,7 @@ public class Server {
             while (!terminated) terminationLock.wait();
         }
         Server.stopServer();
+        DbConnector.setStatementTimeout(0);
         try {
             DbConnector.closeConnection(Config.databaseName);
             Indexer.precompute();
@@ -65,6 +91,94 @@ public class Server {
         Server.startServer(Config.portNumber);
     }
 
+    // null means requests are run on the HttpServer dispatcher thread
+    private static ExecutorService createExecutor() {
+
+        if (Config.serverExecutorMode == Config.ServerExecutorMode.VIRTUAL) {
+            // looked up reflectively so that the backend still builds and runs on JDK 8
+            try {
+                ExecutorService virtualExecutor =
+                        (ExecutorService)
+                                Executors.class
+                                        .getMethod("newVirtualThreadPerTaskExecutor")
+                                        .invoke(null);
+                Log.info("Serving requests on virtual threads.");
+                return virtualExecutor;
+            } catch (Exception e) {
+                Log.warn("Virtual threads are not available in this JDK, using a worker pool.");
+            }
+        } else if (Config.serverExecutorMode == Config.ServerExecutorMode.DISPATCHER) {
+            Log.info("Serving requests on the dispatcher thread.");
+            return null;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory =
+                r -> {
+                    Thread t = new Thread(r, "kyrix-worker-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                };
+        Log.info(
+                "Serving requests on {} worker threads (queue size {}).",
+                Config.numThread,
+                Config.serverQueueSize);
+        return createPoolExecutor(threadFactory);
+    }
+
+    // numThread workers behind a queue of serverQueueSize requests
+    // requests arriving when the queue is full go to a rejection thread, which answers them with
+    // 503 through REJECTION_FILTER, so the dispatcher thread keeps accepting connections
+    static ThreadPoolExecutor createPoolExecutor(ThreadFactory threadFactory) {
+
+        if (rejectionExecutor == null)
+            rejectionExecutor = Executors.newSingleThreadExecutor(Server::newRejectionThread);
+        return new ThreadPoolExecutor(
+                Config.numThread,
+                Config.numThread,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Config.serverQueueSize),
+                threadFactory,
+                (r, pool) -> rejectionExecutor.execute(r));
+    }
+
+    private static Thread newRejectionThread(Runnable r) {
+
+        Thread t =
+                new Thread(
+                        () -> {
+                            isRejectionThread.set(true);
+                            r.run();
+                        },
+                        "kyrix-rejection");
+        t.setDaemon(true);
+        return t;
+    }
+
+    // runs first for every request, answers 503 on the rejection thread instead of handling it
+    static final Filter REJECTION_FILTER =
+            new Filter() {
+                @Override
+                public void doFilter(HttpExchange httpExchange, Chain chain) throws IOException {
+
+                    if (isRejectionThread.get() == null) {
+                        chain.doFilter(httpExchange);
+                        return;
+                    }
+                    Log.warn("Server is busy, rejected {}", httpExchange.getRequestURI());
+                    httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+                    httpExchange.getResponseHeaders().add("Retry-After", "1");
+                    httpExchange.sendResponseHeaders(HttpsURLConnection.HTTP_UNAVAILABLE, -1);
+                    httpExchange.close();
+                }
+
+                @Override
+                public String description() {
+                    return "answers requests the worker pool has no room for with 503";
+                }
+            };
+
     public static void printIndexingErrorMessage() {
         System.out.println(
                 "+---------------------------------------------------------+\n"
@@ -83,8 +197,9 @@ public class Server {
                         + "+---------------------------------------------------------+");
     }
 
+    // logged rather than printed, so that failing requests don't wait on the console
     public static void printServingErrorMessage() {
-        System.out.println(
+        Log.error(
                 "+-------------------------------------------------------------+\n"
                         + "|ERROR!!! An exception occurred while serving an HTTP request.|\n"
                         + "|This is likely due to errors in database related things,     |\n"
@@ -101,8 +216,8 @@ public class Server {
 
     public static void terminate() {
 
-        terminated = true;
         synchronized (terminationLock) {
+            terminated = true;
             terminationLock.notify();
         }
     }
@@ -111,18 +226,69 @@ public class Server {
 
         if (server != null) server.stop(0);
         server = null;
+
+        // let in-flight requests finish before indexes are recomputed
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        executor = null;
     }
 
     public static void sendResponse(
             HttpExchange httpExchange, int responseCode, byte[] response, int len)
             throws IOException {
 
+        // compress if the client accepts it
+        String encoding = ResponseCompressor.negotiate(httpExchange);
+        String contentType = httpExchange.getResponseHeaders().getFirst("Content-Type");
+        if (encoding != null
+                && ResponseCompressor.shouldCompress(contentType, len)
+                && !httpExchange.getResponseHeaders().containsKey("Content-Encoding")) {
+            long st = PhaseTimer.begin();
+            response = ResponseCompressor.compress(response, 0, len, encoding);
+            PhaseTimer.end(PhaseTimer.Phase.ENCODE, st);
+            len = response.length;
+            httpExchange.getResponseHeaders().add("Content-Encoding", encoding);
+            httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        }
+
         // write response
-        httpExchange.sendResponseHeaders(responseCode, len);
+        addServerTiming(httpExchange);
+        long st = PhaseTimer.begin();
+        httpExchange.sendResponseHeaders(responseCode, len > 0 ? len : -1);
         OutputStream os = httpExchange.getResponseBody();
         os.write(response, 0, len);
         os.close();
         httpExchange.close();
+        PhaseTimer.end(PhaseTimer.Phase.WRITE, st);
+    }
+
+    // answer 500 to a request that failed before its response was started, else just end it
+    public static void sendErrorResponse(HttpExchange httpExchange) {
+
+        try {
+            if (httpExchange.getResponseCode() == -1)
+                sendResponse(httpExchange, HttpsURLConnection.HTTP_INTERNAL_ERROR, "");
+            else httpExchange.close();
+        } catch (IOException e) {
+            httpExchange.close();
+        }
+    }
+
+    // add the phases the request has gone through so far, if it is being timed
+    // the socket write comes after the headers, so it only shows up in /metrics
+    public static void addServerTiming(HttpExchange httpExchange) {
+
+        PhaseTimer timer = PhaseTimer.current();
+        if (timer == null) return;
+        httpExchange.getResponseHeaders().set("Server-Timing", timer.toServerTiming());
+        // lets pages served from another origin read it through the resource timing api
+        httpExchange.getResponseHeaders().set("Timing-Allow-Origin", "*");
     }
 
     // send response with additional contentType information
@@ -153,7 +319,81 @@ public class Server {
             httpExchange.sendResponseHeaders(HttpsURLConnection.HTTP_NO_CONTENT, -1);
             return;
         }
-        sendResponse(httpExchange, responseCode, response.getBytes(), response.getBytes().length);
+        byte[] bytes = response.getBytes();
+        sendResponse(httpExchange, responseCode, bytes, bytes.length);
+    }
+
+    // render data format of a /tile or /dbox request: "json" (dictionaries), "columnar" or
+    // "binary", binary is also selected by accepting its content type
+    public static String getRenderDataFormat(
+            HttpExchange httpExchange, Map<String, String> queryMap) {
+
+        String accept = httpExchange.getRequestHeaders().getFirst("Accept");
+        if (accept != null && accept.contains(BinaryRenderData.CONTENT_TYPE)) return "binary";
+        return (queryMap.containsKey("format") ? queryMap.get("format") : "json");
+    }
+
+    // send an already encoded (cached) response, as is if possible
+    // bodies are recompressed when the client doesn't accept how they are stored
+    public static void sendResponse(
+            HttpExchange httpExchange, int responseCode, CachedResponse response)
+            throws IOException {
+
+        sendResponse(httpExchange, responseCode, response, null);
+    }
+
+    public static void sendResponse(
+            HttpExchange httpExchange,
+            int responseCode,
+            CachedResponse response,
+            String contentType)
+            throws IOException {
+
+        try {
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            if (contentType != null)
+                httpExchange.getResponseHeaders().add("Content-Type", contentType);
+            String encoding = ResponseCompressor.negotiate(httpExchange);
+            boolean sendAsIs;
+            if (response.isGzipped()) sendAsIs = "gzip".equals(encoding);
+            else
+                sendAsIs =
+                        (encoding == null
+                                || !ResponseCompressor.shouldCompress(
+                                        contentType, response.getLength()));
+            if (!sendAsIs) {
+                byte[] body = response.getUncompressedBody();
+                sendResponse(httpExchange, responseCode, body, body.length);
+                return;
+            }
+            if (response.isGzipped()) {
+                httpExchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
+
+            // a length of 0 means chunked encoding, -1 means no body
+            addServerTiming(httpExchange);
+            long st = PhaseTimer.begin();
+            httpExchange.sendResponseHeaders(
+                    responseCode, response.getLength() > 0 ? response.getLength() : -1);
+            OutputStream os = httpExchange.getResponseBody();
+            response.writeTo(os);
+            os.close();
+            httpExchange.close();
+            PhaseTimer.end(PhaseTimer.Phase.WRITE, st);
+        } finally {
+            response.close();
+        }
+    }
+
+    // count the bytes of the response body as they are sent, i.e. after compression
+    // must be called before the response body is written
+    public static Metrics.CountingOutputStream countResponseBytes(HttpExchange httpExchange) {
+
+        Metrics.CountingOutputStream os =
+                new Metrics.CountingOutputStream(httpExchange.getResponseBody());
+        httpExchange.setStreams(null, os);
+        return os;
     }
 
     // https://stackoverflow.com/questions/11640025/how-to-obtain-the-query-string-in-a-get-with-java-httpserver-httpexchange
@@ -171,33 +411,14 @@ public class Server {
         return result;
     }
 
+    // queue the stats of a served request, they are written to the stats table in batches
     public static void sendStats(
             String projectName,
             String canvasId,
             String queryType,
             double fetchTime,
             int fetchedRows) {
-        String sql =
-                "insert into stats (project_name, canvas_id, query_type, fetch_time_ms, rows_fetched) values ("
-                        + "'"
-                        + projectName
-                        + "','"
-                        + canvasId
-                        + "','"
-                        + queryType
-                        + "',"
-                        + fetchTime
-                        + ","
-                        + fetchedRows
-                        + ");";
-        System.out.println("stats sql: " + sql);
-        System.out.println("database name is: " + Config.databaseName);
 
-        try {
-            DbConnector.executeUpdate(Config.databaseName, sql);
-        } catch (Exception e) {
-            System.out.println("couldn't write stats to the stats table: ");
-            System.out.println(e);
-        }
+        StatsSink.getInstance().offer(projectName, canvasId, queryType, fetchTime, fetchedRows);
     }
 }
@@ -0,0 +1,146 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import main.Config;
+import main.DbConnector;
+import main.Log;
+import main.RingBuffer;
+
+/**
+ * Writes request stats to the stats table without blocking requests.
+ *
+ * <p>Request threads put samples into a bounded lock-free {@link RingBuffer}. A single background
+ * thread drains it and writes multi-row inserts, either when a batch is full or when the flush
+ * interval is up. When the buffer is full, samples are dropped rather than slowing requests down.
+ */
+public class StatsSink {
+
+    private static final class Sample {
+        final String projectName, canvasId, queryType;
+        final double fetchTime;
+        final int fetchedRows;
+
+        Sample(
+                String projectName,
+                String canvasId,
+                String queryType,
+                double fetchTime,
+                int fetchedRows) {
+            this.projectName = projectName;
+            this.canvasId = canvasId;
+            this.queryType = queryType;
+            this.fetchTime = fetchTime;
+            this.fetchedRows = fetchedRows;
+        }
+    }
+
+    private static StatsSink instance = null;
+
+    private final RingBuffer<Sample> queue;
+    private final Thread flusher;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public static synchronized StatsSink getInstance() {
+        if (instance == null) instance = new StatsSink(Config.statsQueueSize);
+        return instance;
+    }
+
+    private StatsSink(int queueSize) {
+
+        queue = new RingBuffer<>(queueSize);
+        flusher = new Thread(this::flushLoop, "kyrix-stats-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // queue a sample, returns false if it was dropped
+    public boolean offer(
+            String projectName,
+            String canvasId,
+            String queryType,
+            double fetchTime,
+            int fetchedRows) {
+
+        Sample sample = new Sample(projectName, canvasId, queryType, fetchTime, fetchedRows);
+        if (!queue.offer(sample)) {
+            dropped.increment();
+            return false;
+        }
+
+        // wake the flusher up early once a batch is full
+        if (queue.size() == Config.statsFlushBatchSize) LockSupport.unpark(flusher);
+        return true;
+    }
+
+    private void flushLoop() {
+
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Config.statsFlushIntervalMs);
+        ArrayList<Sample> batch = new ArrayList<>();
+        while (true) {
+            if (queue.size() < Config.statsFlushBatchSize)
+                LockSupport.parkNanos(this, intervalNanos);
+            Sample sample;
+            while ((sample = queue.poll()) != null) {
+                batch.add(sample);
+                if (batch.size() == Config.statsFlushBatchSize) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(ArrayList<Sample> batch) {
+
+        StringBuilder sql =
+                new StringBuilder(
+                        "insert into stats (project_name, canvas_id, query_type, fetch_time_ms,"
+                                + " rows_fetched) values ");
+        for (int i = 0; i < batch.size(); i++) sql.append(i == 0 ? "" : ",").append("(?,?,?,?,?)");
+        try (Connection conn = DbConnector.getConnection(Config.databaseName);
+                PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            int k = 1;
+            for (Sample sample : batch) {
+                stmt.setString(k++, sample.projectName);
+                stmt.setString(k++, sample.canvasId);
+                stmt.setString(k++, sample.queryType);
+                stmt.setDouble(k++, sample.fetchTime);
+                stmt.setInt(k++, sample.fetchedRows);
+            }
+            stmt.executeUpdate();
+            written.add(batch.size());
+        } catch (Exception e) {
+            failed.add(batch.size());
+            Log.warn("couldn't write {} stats to the stats table: {}", batch.size(), e);
+        }
+    }
+
+    // number of samples written to the stats table
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    // number of samples dropped because the queue was full
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    // number of samples lost to failed inserts
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getQueuedCount() {
+        return queue.size();
+    }
+}
@@ -1,18 +1,25 @@
 package server;
 
+import box.BinaryRenderData;
 import box.BoxandData;
+import cache.CachedResponse;
 import cache.TileCache;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
+import main.Log;
 import main.Main;
+import main.Metrics;
+import main.PhaseTimer;
+import main.TypedRows;
 import project.Canvas;
 
 /** Created by wenbo on 1/2/18. */
@@ -29,15 +36,15 @@ public class TileRequestHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        // TODO: this method should be thread safe, allowing concurrent requests
-        System.out.println("\nServing /tile");
+        Log.debug("Serving /tile");
 
+        PhaseTimer timer = PhaseTimer.start();
+        long parseStart = PhaseTimer.begin();
         try {
             // variable definitions
             String response;
             String canvasId;
-            int minx, miny;
-            ArrayList<ArrayList<ArrayList<String>>> data = null;
+            ArrayList<TypedRows> data = null;
 
             // check if this is a POST request
             if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
@@ -49,7 +56,8 @@ public class TileRequestHandler implements HttpHandler {
             String query = httpExchange.getRequestURI().getQuery();
             Map<String, String> queryMap = Server.queryToMap(query);
             // print
-            for (String s : queryMap.keySet()) System.out.println(s + " : " + queryMap.get(s));
+            if (Log.isDebugEnabled())
+                for (String s : queryMap.keySet()) Log.debug("{} : {}", s, queryMap.get(s));
 
             // check parameters, if not pass, send a bad request response
             response = checkParameters(queryMap);
@@ -60,23 +68,42 @@ public class TileRequestHandler implements HttpHandler {
 
             // get data
             canvasId = queryMap.get("id");
-            minx = Integer.valueOf(queryMap.get("x"));
-            miny = Integer.valueOf(queryMap.get("y"));
+            int minx = Integer.valueOf(queryMap.get("x"));
+            int miny = Integer.valueOf(queryMap.get("y"));
             Canvas c = Main.getProject().getCanvas(canvasId);
             ArrayList<String> predicates = new ArrayList<>();
             for (int i = 0; i < c.getLayers().size(); i++)
                 predicates.add(queryMap.get("predicate" + i));
             Boolean isJumping = Boolean.valueOf(queryMap.get("isJumping"));
+            String format = Server.getRenderDataFormat(httpExchange, queryMap);
             long st = System.currentTimeMillis();
-            data = TileCache.getTile(c, minx, miny, predicates);
+            long startNanos = System.nanoTime();
+            Metrics.CountingOutputStream responseBody = Server.countResponseBytes(httpExchange);
+            PhaseTimer.end(PhaseTimer.Phase.PARSE, parseStart);
 
-            double fetchTime = System.currentTimeMillis() - st;
+            // in response mode the cached body is sent as is, skipping conversion and encoding
+            CachedResponse cachedResponse = null;
             int intersectingRows = 0;
-            for (int i = 0; i < data.size(); i++) {
-                intersectingRows += data.get(i).size();
+            if (Config.tileCacheMode == Config.TileCacheMode.RESPONSE) {
+                cachedResponse =
+                        TileCache.getTileResponse(
+                                c,
+                                minx,
+                                miny,
+                                predicates,
+                                format,
+                                (tileData, x, y) ->
+                                        encodeResponse(gson, tileData, c, x, y, format));
+                intersectingRows = cachedResponse.getNumRows();
+            } else {
+                data = TileCache.getTile(c, minx, miny, predicates);
+                for (int i = 0; i < data.size(); i++) {
+                    intersectingRows += data.get(i).size();
+                }
             }
-            System.out.println("Fetch data time: " + fetchTime + "ms.");
-            System.out.println("number of intersecting rows in result: " + intersectingRows);
+
+            double fetchTime = System.currentTimeMillis() - st;
+            Log.debug("Fetch data time: {}ms, {} intersecting rows.", fetchTime, intersectingRows);
 
             if (isJumping) {
                 Server.sendStats(
@@ -90,21 +117,51 @@ public class TileRequestHandler implements HttpHandler {
                         Main.getProject().getName(), c.getId(), "pan", fetchTime, intersectingRows);
             }
 
-            // construct response
-            Map<String, Object> respMap = new HashMap<>();
-            respMap.put("renderData", BoxandData.getDictionaryFromData(data, c));
-            respMap.put("minx", minx);
-            respMap.put("miny", miny);
-            respMap.put("canvasId", canvasId);
-            response = gson.toJson(respMap);
-
             // send back response
-            Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
-            System.out.println();
+            if (cachedResponse == null)
+                cachedResponse =
+                        new CachedResponse(
+                                encodeResponse(gson, data, c, minx, miny, format),
+                                false,
+                                intersectingRows);
+            Server.sendResponse(
+                    httpExchange,
+                    HttpsURLConnection.HTTP_OK,
+                    cachedResponse,
+                    format.equals("binary") ? BinaryRenderData.CONTENT_TYPE : null);
+            Metrics.request("tile", canvasId)
+                    .record(
+                            System.nanoTime() - startNanos,
+                            intersectingRows,
+                            responseBody.getCount());
+            timer.record("tile");
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving /tile: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
+        } finally {
+            PhaseTimer.stop();
+        }
+    }
+
+    // construct the response body of a tile, shared with the batch handler
+    static byte[] encodeResponse(
+            Gson gson, ArrayList<TypedRows> data, Canvas c, int minx, int miny, String format) {
+
+        Map<String, Object> respMap = new HashMap<>();
+        respMap.put("format", format);
+        respMap.put("minx", minx);
+        respMap.put("miny", miny);
+        respMap.put("canvasId", c.getId());
+        long st = PhaseTimer.begin();
+        try {
+            if (format.equals("binary"))
+                return BinaryRenderData.encode(data, c, gson.toJson(respMap));
+            respMap.put("renderData", BoxandData.getRenderData(data, c, format));
+            PhaseTimer.end(PhaseTimer.Phase.CONVERT, st);
+            st = PhaseTimer.begin();
+            return gson.toJson(respMap).getBytes(StandardCharsets.UTF_8);
+        } finally {
+            PhaseTimer.end(PhaseTimer.Phase.ENCODE, st);
         }
     }
 
@@ -127,6 +184,13 @@ public class TileRequestHandler implements HttpHandler {
         if (minx % Config.tileW != 0 || miny % Config.tileH != 0)
             return "x and y must be a multiple of tile size!";
 
+        // check render data format
+        if (queryMap.containsKey("format")
+                && !queryMap.get("format").equals("json")
+                && !queryMap.get("format").equals("columnar")
+                && !queryMap.get("format").equals("binary"))
+            return "Unknown format " + queryMap.get("format") + ".";
+
         // check passed
         return "";
     }
@@ -0,0 +1,245 @@
+package server;
+
+import box.BinaryRenderData;
+import cache.CachedResponse;
+import cache.TileCache;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import javax.net.ssl.HttpsURLConnection;
+import main.Config;
+import main.Log;
+import main.Main;
+import main.Metrics;
+import main.PhaseTimer;
+import main.TypedRows;
+import project.Canvas;
+
+/**
+ * Serves several tiles of a canvas in one response, e.g. all tiles entering the viewport after a
+ * pan. Tiles are passed as tiles=x1,y1;x2,y2;... and their responses are the /tile responses.
+ *
+ * <p>Cached tiles are written first, the others are fetched together with one query per layer.
+ * The json and columnar formats send {"canvasId", "format", "tiles": [tile responses]}. The
+ * binary format sends one frame per tile: the length of the tile response (u32, little-endian),
+ * 4 bytes of padding, the tile response and padding up to a multiple of 8 bytes.
+ */
+public class TilesRequestHandler implements HttpHandler {
+
+    // gson builder
+    private final Gson gson;
+
+    public TilesRequestHandler() {
+
+        gson = new GsonBuilder().create();
+    }
+
+    @Override
+    public void handle(HttpExchange httpExchange) throws IOException {
+
+        Log.debug("Serving /tiles");
+
+        PhaseTimer timer = PhaseTimer.start();
+        long parseStart = PhaseTimer.begin();
+        try {
+            // check if this is a POST request
+            if (!httpExchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_BAD_METHOD, "");
+                return;
+            }
+
+            // get data of the current request
+            String query = httpExchange.getRequestURI().getQuery();
+            Map<String, String> queryMap = Server.queryToMap(query);
+            // print
+            if (Log.isDebugEnabled())
+                for (String s : queryMap.keySet()) Log.debug("{} : {}", s, queryMap.get(s));
+
+            // check parameters, if not pass, send a bad request response
+            String response = checkParameters(queryMap);
+            if (response.length() > 0) {
+                Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_BAD_REQUEST, response);
+                return;
+            }
+
+            // get data
+            String canvasId = queryMap.get("id");
+            Canvas c = Main.getProject().getCanvas(canvasId);
+            ArrayList<int[]> tiles = parseTiles(queryMap.get("tiles"));
+            ArrayList<String> predicates = new ArrayList<>();
+            for (int i = 0; i < c.getLayers().size(); i++)
+                predicates.add(queryMap.get("predicate" + i));
+            Boolean isJumping = Boolean.valueOf(queryMap.get("isJumping"));
+            String format = Server.getRenderDataFormat(httpExchange, queryMap);
+            boolean isBinary = format.equals("binary");
+            long st = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            Metrics.CountingOutputStream responseBody = Server.countResponseBytes(httpExchange);
+            PhaseTimer.end(PhaseTimer.Phase.PARSE, parseStart);
+
+            // a response length of 0 means chunked transfer encoding
+            httpExchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            if (isBinary)
+                httpExchange
+                        .getResponseHeaders()
+                        .add("Content-Type", BinaryRenderData.CONTENT_TYPE);
+            String encoding = ResponseCompressor.negotiate(httpExchange);
+            if (encoding != null) {
+                httpExchange.getResponseHeaders().add("Content-Encoding", encoding);
+                httpExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
+            // tiles are fetched after the headers are sent, so the header only has the parsing
+            Server.addServerTiming(httpExchange);
+            httpExchange.sendResponseHeaders(HttpsURLConnection.HTTP_OK, 0);
+            OutputStream os = new BufferedOutputStream(httpExchange.getResponseBody(), 1 << 16);
+            if (encoding != null) os = ResponseCompressor.wrap(os, encoding);
+
+            int[] intersectingRows = {0};
+            try {
+                if (!isBinary)
+                    os.write(
+                            ("{\"canvasId\":"
+                                            + gson.toJson(canvasId)
+                                            + ",\"format\":\""
+                                            + format
+                                            + "\",\"tiles\":[")
+                                    .getBytes(StandardCharsets.UTF_8));
+                OutputStream out = os;
+                int[] numWritten = {0};
+                TileCache.TileResponseConsumer consumer =
+                        (tile, resp) -> {
+                            intersectingRows[0] += resp.getNumRows();
+                            if (!isBinary && numWritten[0] > 0) out.write(',');
+                            writeTile(out, resp, isBinary);
+                            numWritten[0]++;
+                        };
+                if (Config.tileCacheMode == Config.TileCacheMode.RESPONSE)
+                    TileCache.getTileResponses(
+                            c,
+                            tiles,
+                            predicates,
+                            format,
+                            (tileData, x, y) ->
+                                    TileRequestHandler.encodeResponse(
+                                            gson, tileData, c, x, y, format),
+                            consumer);
+                else {
+                    ArrayList<ArrayList<TypedRows>> data = TileCache.getTiles(c, tiles, predicates);
+                    for (int i = 0; i < tiles.size(); i++) {
+                        int[] tile = tiles.get(i);
+                        int numRows = 0;
+                        for (TypedRows layer : data.get(i)) numRows += layer.size();
+                        byte[] body =
+                                TileRequestHandler.encodeResponse(
+                                        gson, data.get(i), c, tile[0], tile[1], format);
+                        consumer.accept(tile, new CachedResponse(body, false, numRows));
+                    }
+                }
+                if (!isBinary) os.write("]}".getBytes(StandardCharsets.UTF_8));
+            } finally {
+                os.close();
+                httpExchange.close();
+            }
+
+            double fetchTime = System.currentTimeMillis() - st;
+            Log.debug(
+                    "Fetch and send time: {}ms, {} intersecting rows.",
+                    fetchTime,
+                    intersectingRows[0]);
+            Server.sendStats(
+                    Main.getProject().getName(),
+                    c.getId(),
+                    isJumping ? "jump" : "pan",
+                    fetchTime,
+                    intersectingRows[0]);
+            Metrics.request("tiles", canvasId)
+                    .record(
+                            System.nanoTime() - startNanos,
+                            intersectingRows[0],
+                            responseBody.getCount());
+            timer.record("tiles");
+        } catch (Exception e) {
+            Log.error("Error while serving /tiles: {}", e.getMessage(), e);
+            Server.printServingErrorMessage();
+        } finally {
+            PhaseTimer.stop();
+        }
+    }
+
+    // write one tile response, uncompressed since the whole stream may be compressed
+    private static void writeTile(OutputStream os, CachedResponse resp, boolean isBinary)
+            throws IOException {
+
+        try {
+            byte[] body = (resp.isGzipped() ? resp.getUncompressedBody() : null);
+            int length = (body != null ? body.length : resp.getLength());
+            if (isBinary) {
+                byte[] header = new byte[8];
+                for (int i = 0; i < 4; i++) header[i] = (byte) (length >>> (8 * i));
+                os.write(header);
+            }
+            if (body != null) os.write(body);
+            else resp.writeTo(os);
+            if (isBinary) os.write(new byte[(8 - length % 8) % 8]);
+        } finally {
+            resp.close();
+        }
+    }
+
+    // "x1,y1;x2,y2;..." -> {{x1, y1}, {x2, y2}, ...}
+    private static ArrayList<int[]> parseTiles(String tilesStr) {
+
+        ArrayList<int[]> tiles = new ArrayList<>();
+        for (String tileStr : tilesStr.split(";")) {
+            if (tileStr.trim().isEmpty()) continue;
+            String[] xy = tileStr.split(",");
+            if (xy.length != 2) throw new NumberFormatException("Bad tile " + tileStr + ".");
+            tiles.add(new int[] {Integer.valueOf(xy[0].trim()), Integer.valueOf(xy[1].trim())});
+        }
+        return tiles;
+    }
+
+    // check paramters
+    private String checkParameters(Map<String, String> queryMap) {
+
+        // check fields
+        if (!queryMap.containsKey("id")) return "canvas id missing.";
+        if (!queryMap.containsKey("tiles")) return "tiles missing.";
+
+        // check whether this canvas exists
+        String canvasId = queryMap.get("id");
+        if (Main.getProject().getCanvas(canvasId) == null)
+            return "Canvas " + canvasId + " does not exist!";
+
+        // check whether every tile is given by the top-left corner of a tile
+        ArrayList<int[]> tiles;
+        try {
+            tiles = parseTiles(queryMap.get("tiles"));
+        } catch (NumberFormatException e) {
+            return "tiles must be a list of x,y separated by semicolons.";
+        }
+        if (tiles.isEmpty()) return "tiles missing.";
+        if (tiles.size() > Config.maxTilesPerBatch)
+            return "At most " + Config.maxTilesPerBatch + " tiles can be requested at once.";
+        for (int[] tile : tiles)
+            if (tile[0] % Config.tileW != 0 || tile[1] % Config.tileH != 0)
+                return "x and y must be a multiple of tile size!";
+
+        // check render data format
+        if (queryMap.containsKey("format")
+                && !queryMap.get("format").equals("json")
+                && !queryMap.get("format").equals("columnar")
+                && !queryMap.get("format").equals("binary"))
+            return "Unknown format " + queryMap.get("format") + ".";
+
+        // check passed
+        return "";
+    }
+}
@@ -14,6 +14,7 @@ import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import main.Config;
 import main.DbConnector;
+import main.Log;
 import main.Main;
 import project.Canvas;
 
@@ -30,8 +31,7 @@ public class ViewportRequestHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange httpExchange) throws IOException {
 
-        // TODO: this method should be thread safe, allowing concurrent requests
-        System.out.println("Serving /viewport");
+        Log.debug("Serving /viewport");
 
         try {
             // variable definitions
@@ -50,8 +50,8 @@ public class ViewportRequestHandler implements HttpHandler {
             String query = httpExchange.getRequestURI().getQuery();
             Map<String, String> queryMap = Server.queryToMap(query);
             // print
-            for (String s : queryMap.keySet()) System.out.println(s + " : " + queryMap.get(s));
-            System.out.println();
+            if (Log.isDebugEnabled())
+                for (String s : queryMap.keySet()) Log.debug("{} : {}", s, queryMap.get(s));
 
             // check parameters, if not pass, send a bad request response
             response = checkParameters(queryMap);
@@ -82,8 +82,7 @@ public class ViewportRequestHandler implements HttpHandler {
             // send back response
             Server.sendResponse(httpExchange, HttpsURLConnection.HTTP_OK, response);
         } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println("\n\n" + e.getMessage() + "\n");
+            Log.error("Error while serving /viewport: {}", e.getMessage(), e);
             Server.printServingErrorMessage();
         }
     }
@@ -149,9 +148,13 @@ public class ViewportRequestHandler implements HttpHandler {
                 cy = rs.getString(2);
             }
 
-            System.out.println(rowCount);
+            rs.close();
+            Log.trace("{} matching rows", rowCount);
             // not a predicate that uniquely determines a tuple
-            if (rowCount != 1) return null;
+            if (rowCount != 1) {
+                stmt.close();
+                return null;
+            }
 
             // return cx & cy
             data.add(cx);
@@ -0,0 +1,329 @@
+package box;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import main.TypedRows;
+import org.junit.Test;
+import project.Canvas;
+
+/**
+ * Round trips of BinaryRenderData.encode through a decoder that mirrors
+ * front-end/js/binaryRenderData.js.
+ */
+public class BinaryRenderDataTest {
+
+    private static final byte STRING = 0, FLOAT32 = 1, FLOAT64 = 2;
+    private static final String META = "{\"minx\":0,\"miny\":256,\"canvasId\":\"c\"}";
+
+    @Test
+    public void roundTripsPlainRows() {
+
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("name", "value"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(row("a", "1", "10", "20", "5", "15", "15", "25"));
+        rows.add(row("b", "2", "30", "40", "25", "35", "35", "45"));
+        rows.add(row("a", "3", "50", "60", "45", "55", "55", "65"));
+
+        Decoded d = decode(BinaryRenderData.encode(data(TypedRows.plain(rows)), c, META));
+        assertEquals(META, d.meta);
+        assertEquals(1, d.layers.size());
+        DecodedLayer layer = d.layers.get(0);
+        assertEquals(
+                Arrays.asList("name", "value", "cx", "cy", "minx", "miny", "maxx", "maxy"),
+                layer.fields);
+        assertEquals(3, layer.rows.size());
+        for (int j = 0; j < rows.size(); j++) {
+            assertEquals(rows.get(j).get(0), layer.rows.get(j).get("name"));
+            assertEquals(rows.get(j).get(1), layer.rows.get(j).get("value"));
+            for (int k = 0; k < BoxandData.BBOX_FIELDS.length; k++)
+                assertEquals(
+                        Double.parseDouble(rows.get(j).get(2 + k)),
+                        (Double) layer.rows.get(j).get(BoxandData.BBOX_FIELDS[k]),
+                        0);
+        }
+        // two distinct names, one byte per code
+        assertEquals(2, layer.dictSizes[0]);
+        assertEquals(1, layer.codeWidths[0]);
+    }
+
+    @Test
+    public void usesFloat32OnlyForColumnsOfExactFloats() {
+
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("id"));
+        TypedRows rows = new TypedRows();
+        rows.add(row("0"), new double[] {0.5, 0.1, 16777216, 1e6, -2.25, Double.NaN}, 0);
+        rows.add(row("1"), new double[] {1e6, 0.25, 16777217, 3, 7, 8}, 0);
+
+        DecodedLayer layer = decode(BinaryRenderData.encode(data(rows), c, META)).layers.get(0);
+        assertArrayEquals(
+                new byte[] {STRING, FLOAT32, FLOAT64, FLOAT64, FLOAT32, FLOAT32, FLOAT32},
+                layer.types);
+        for (int j = 0; j < rows.size(); j++)
+            for (int k = 0; k < BoxandData.BBOX_FIELDS.length; k++)
+                assertEquals(
+                        rows.getBbox(j, k),
+                        (Double) layer.rows.get(j).get(BoxandData.BBOX_FIELDS[k]),
+                        0);
+    }
+
+    @Test
+    public void roundTripsNullsAndNaN() {
+
+        Canvas c =
+                canvas(
+                        "PsqlNativeBoxIndexer",
+                        Arrays.asList("name", "note"),
+                        Arrays.asList("name", "note"));
+        TypedRows typed = new TypedRows();
+        typed.add(row(null, "x"), new double[] {Double.NaN, 1, 2, 3, 4, 5}, 0);
+        typed.add(row("a", null), new double[] {0, Double.NaN, 2, 3, 4, 5}, 0);
+        typed.add(row(null, null), new double[] {0, 1, 2, 3, 4, Double.NaN}, 0);
+        ArrayList<ArrayList<String>> plain = new ArrayList<>();
+        plain.add(row(null, "y", null, "1", "2", "3", "4", "5"));
+
+        Decoded d = decode(BinaryRenderData.encode(data(typed, TypedRows.plain(plain)), c, META));
+
+        DecodedLayer layer = d.layers.get(0);
+        assertNull(layer.rows.get(0).get("name"));
+        assertEquals("x", layer.rows.get(0).get("note"));
+        assertTrue(((Double) layer.rows.get(0).get("cx")).isNaN());
+        assertEquals("a", layer.rows.get(1).get("name"));
+        assertNull(layer.rows.get(1).get("note"));
+        assertTrue(((Double) layer.rows.get(1).get("cy")).isNaN());
+        assertNull(layer.rows.get(2).get("name"));
+        assertTrue(((Double) layer.rows.get(2).get("maxy")).isNaN());
+        // null has a single dictionary entry
+        assertEquals(2, layer.dictSizes[0]);
+
+        layer = d.layers.get(1);
+        assertNull(layer.rows.get(0).get("name"));
+        assertTrue(((Double) layer.rows.get(0).get("cx")).isNaN());
+        assertEquals(5, (Double) layer.rows.get(0).get("maxy"), 0);
+    }
+
+    @Test
+    public void picksDictionaryCodeWidths() {
+
+        // {number of distinct values, whether a null is added, expected code width}
+        int[][] cases = {
+            {1, 0, 1}, {256, 0, 1}, {255, 1, 1}, {256, 1, 2}, {257, 0, 2}, {65536, 0, 2},
+            {65535, 1, 2}, {65536, 1, 4}, {65537, 0, 4}
+        };
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("v"));
+        for (int[] cs : cases) {
+            TypedRows rows = new TypedRows(cs[0] + 2);
+            double[] bbox = {1, 2, 3, 4, 5, 6};
+            for (int i = 0; i < cs[0]; i++) rows.add(row("v" + i), bbox, 0);
+            if (cs[1] == 1) rows.add(row((String) null), bbox, 0);
+            // a repeated value does not grow the dictionary
+            rows.add(row("v0"), bbox, 0);
+
+            DecodedLayer layer = decode(BinaryRenderData.encode(data(rows), c, META)).layers.get(0);
+            String label = cs[0] + " values" + (cs[1] == 1 ? " and null" : "");
+            assertEquals(label, cs[0] + cs[1], layer.dictSizes[0]);
+            assertEquals(label, cs[2], layer.codeWidths[0]);
+            assertEquals(label, rows.size(), layer.rows.size());
+            for (int j = 0; j < rows.size(); j++)
+                assertEquals(label, rows.get(j).get(0), layer.rows.get(j).get("v"));
+        }
+    }
+
+    @Test
+    public void roundTripsEmptyLayers() {
+
+        Canvas c =
+                canvas("PsqlNativeBoxIndexer", Arrays.asList("a"), Arrays.asList("b", "c"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(row("x", "y", "1", "2", "3", "4", "5", "6"));
+
+        byte[] bytes =
+                BinaryRenderData.encode(data(new TypedRows(), TypedRows.plain(rows)), c, META);
+        Decoded d = decode(bytes);
+        assertEquals(2, d.layers.size());
+        assertEquals(0, d.layers.get(0).rows.size());
+        assertEquals(
+                Arrays.asList("a", "cx", "cy", "minx", "miny", "maxx", "maxy"),
+                d.layers.get(0).fields);
+        assertEquals(0, d.layers.get(0).dictSizes[0]);
+        assertEquals(1, d.layers.get(1).rows.size());
+        assertEquals("y", d.layers.get(1).rows.get(0).get("c"));
+
+        // no layers at all
+        d = decode(BinaryRenderData.encode(new ArrayList<>(), canvas("none"), META));
+        assertEquals(META, d.meta);
+        assertEquals(0, d.layers.size());
+    }
+
+    @Test
+    public void roundTripsNonAsciiStrings() {
+
+        String meta = "{\"canvasId\":\"küche\"}";
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("名前", "emoji"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(row("héllo", "😀", "1", "2", "3", "4", "5", "6"));
+        rows.add(row("東京", "", "1", "2", "3", "4", "5", "6"));
+
+        Decoded d = decode(BinaryRenderData.encode(data(TypedRows.plain(rows)), c, meta));
+        assertEquals(meta, d.meta);
+        DecodedLayer layer = d.layers.get(0);
+        assertEquals("名前", layer.fields.get(0));
+        assertEquals("héllo", layer.rows.get(0).get("名前"));
+        assertEquals("😀", layer.rows.get(0).get("emoji"));
+        assertEquals("東京", layer.rows.get(1).get("名前"));
+        assertEquals("", layer.rows.get(1).get("emoji"));
+    }
+
+    @Test
+    public void addsClusterAggFieldOfSsvLayers() {
+
+        Canvas c = canvas("SSVInMemoryIndexer", Arrays.asList("name"));
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(row("a", "{\"count\":3}", "1", "2", "3", "4", "5", "6"));
+
+        DecodedLayer layer =
+                decode(BinaryRenderData.encode(data(TypedRows.plain(rows)), c, META)).layers.get(0);
+        assertEquals("name", layer.fields.get(0));
+        assertEquals("clusterAgg", layer.fields.get(1));
+        assertEquals(STRING, layer.types[1]);
+        assertEquals("{\"count\":3}", layer.rows.get(0).get("clusterAgg"));
+        assertEquals(1, (Double) layer.rows.get(0).get("cx"), 0);
+    }
+
+    // decoded response, values are strings or doubles
+    private static final class Decoded {
+        String meta;
+        final ArrayList<DecodedLayer> layers = new ArrayList<>();
+    }
+
+    private static final class DecodedLayer {
+        final ArrayList<String> fields = new ArrayList<>();
+        byte[] types;
+        // per field, 0 for number columns
+        int[] codeWidths, dictSizes;
+        final ArrayList<HashMap<String, Object>> rows = new ArrayList<>();
+    }
+
+    // same steps as decodeBinaryRenderData in binaryRenderData.js, checking alignment on the way
+    private static Decoded decode(byte[] bytes) {
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        Decoded d = new Decoded();
+
+        // header
+        assertEquals(0x4259524b, buf.getInt());
+        assertEquals(1, buf.getShort());
+        int numLayers = buf.getShort() & 0xffff;
+        d.meta = readString(buf, buf.getInt());
+        align(buf);
+
+        for (int i = 0; i < numLayers; i++) {
+            DecodedLayer layer = new DecodedLayer();
+
+            // schema
+            int numRows = buf.getInt();
+            int numFields = buf.getInt();
+            layer.types = new byte[numFields];
+            layer.codeWidths = new int[numFields];
+            layer.dictSizes = new int[numFields];
+            for (int k = 0; k < numFields; k++) {
+                layer.types[k] = buf.get();
+                layer.fields.add(readString(buf, buf.getShort() & 0xffff));
+            }
+            align(buf);
+
+            // columns
+            ArrayList<Object[]> columns = new ArrayList<>();
+            for (int k = 0; k < numFields; k++) {
+                assertEquals("columns start at multiples of 8", 0, buf.position() % 8);
+                Object[] column = new Object[numRows];
+                if (layer.types[k] == STRING) {
+                    int width = buf.get();
+                    int dictSize = buf.getInt();
+                    String[] dict = new String[dictSize];
+                    for (int e = 0; e < dictSize; e++) {
+                        int length = buf.getInt();
+                        dict[e] = (length < 0 ? null : readString(buf, length));
+                    }
+                    align(buf);
+                    for (int j = 0; j < numRows; j++) {
+                        int code =
+                                (width == 1
+                                        ? buf.get() & 0xff
+                                        : width == 2 ? buf.getShort() & 0xffff : buf.getInt());
+                        column[j] = dict[code];
+                    }
+                    layer.codeWidths[k] = width;
+                    layer.dictSizes[k] = dictSize;
+                } else if (layer.types[k] == FLOAT32)
+                    for (int j = 0; j < numRows; j++) column[j] = (double) buf.getFloat();
+                else {
+                    assertEquals(FLOAT64, layer.types[k]);
+                    for (int j = 0; j < numRows; j++) column[j] = buf.getDouble();
+                }
+                align(buf);
+                columns.add(column);
+            }
+
+            // rows
+            for (int j = 0; j < numRows; j++) {
+                HashMap<String, Object> row = new HashMap<>();
+                for (int k = 0; k < numFields; k++) row.put(layer.fields.get(k), columns.get(k)[j]);
+                layer.rows.add(row);
+            }
+            d.layers.add(layer);
+        }
+        assertFalse("trailing bytes", buf.hasRemaining());
+        return d;
+    }
+
+    private static String readString(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void align(ByteBuffer buf) {
+        buf.position((buf.position() + 7) / 8 * 8);
+    }
+
+    // a canvas with one layer per list of column names, also used by BoxandDataTest
+    @SafeVarargs
+    static Canvas canvas(String indexerType, List<String>... columnNames) {
+
+        ArrayList<HashMap<String, Object>> layers = new ArrayList<>();
+        for (List<String> names : columnNames) {
+            HashMap<String, Object> transform = new HashMap<>();
+            transform.put("columnNames", names);
+            transform.put("db", "");
+            HashMap<String, Object> layer = new HashMap<>();
+            layer.put("transform", transform);
+            layer.put("indexerType", indexerType);
+            layers.add(layer);
+        }
+        HashMap<String, Object> canvas = new HashMap<>();
+        canvas.put("id", "c");
+        canvas.put("layers", layers);
+        Gson gson = new Gson();
+        return gson.fromJson(gson.toJsonTree(canvas), Canvas.class);
+    }
+
+    static ArrayList<String> row(String... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+
+    private static ArrayList<TypedRows> data(TypedRows... layers) {
+        return new ArrayList<>(Arrays.asList(layers));
+    }
+}
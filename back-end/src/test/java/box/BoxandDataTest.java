@@ -0,0 +1,59 @@
+package box;
+
+import static box.BinaryRenderDataTest.canvas;
+import static box.BinaryRenderDataTest.row;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import main.TypedRows;
+import org.junit.Test;
+import project.Canvas;
+
+public class BoxandDataTest {
+
+    @Test
+    public void columnarDataWritesNullsAsNull() {
+
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("name"));
+        TypedRows rows = new TypedRows();
+        rows.add(row("a"), new double[] {Double.NaN, 1, 2, 3, 4.5, 5}, 0);
+        rows.add(row("b"), new double[] {0, 1, 2, 3, 4, 5}, 0);
+        ArrayList<TypedRows> data = new ArrayList<>(Arrays.asList(rows));
+
+        // gson refuses to write NaN
+        Gson gson = new Gson();
+        String json = gson.toJson(BoxandData.getColumnarFromData(data, c));
+        JsonObject layer = gson.fromJson(json, JsonArray.class).get(0).getAsJsonObject();
+        JsonArray columns = layer.getAsJsonArray("columns");
+        assertEquals("[\"a\",\"b\"]", columns.get(0).toString());
+        assertEquals("[null,0.0]", columns.get(1).toString());
+        assertEquals("[4.5,4.0]", columns.get(5).toString());
+        assertEquals(2, layer.get("numRows").getAsInt());
+    }
+
+    @Test
+    public void dictionaryDataKeepsTheTextOfPlainRows() {
+
+        Canvas c = canvas("PsqlNativeBoxIndexer", Arrays.asList("name"), Arrays.asList("name"));
+        ArrayList<ArrayList<String>> plain = new ArrayList<>();
+        plain.add(row("a", "12345678.50", null, "0", "0", "1e3", "1"));
+        TypedRows typed = new TypedRows();
+        typed.add(row("b"), new double[] {12345678.5, Double.NaN, 0, 0, 1000, 1}, 0);
+        ArrayList<TypedRows> data = new ArrayList<>(Arrays.asList(TypedRows.plain(plain), typed));
+
+        ArrayList<ArrayList<HashMap<String, String>>> dicts =
+                BoxandData.getDictionaryFromData(data, c);
+        assertEquals("12345678.50", dicts.get(0).get(0).get("cx"));
+        assertNull(dicts.get(0).get(0).get("cy"));
+        assertEquals("1e3", dicts.get(0).get(0).get("maxx"));
+        assertEquals("12345678.5", dicts.get(1).get(0).get("cx"));
+        assertNull(dicts.get(1).get(0).get("cy"));
+        assertEquals("1000", dicts.get(1).get(0).get("maxx"));
+    }
+}
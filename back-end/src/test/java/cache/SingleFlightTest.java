@@ -0,0 +1,87 @@
+package cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import main.Config;
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private final long savedTimeoutMs = Config.singleFlightWaitTimeoutMs;
+
+    @After
+    public void restoreConfig() {
+        Config.singleFlightWaitTimeoutMs = savedTimeoutMs;
+    }
+
+    @Test
+    public void errorOfLoaderReleasesWaiters() throws Exception {
+
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CountDownLatch loading = new CountDownLatch(1), release = new CountDownLatch(1);
+        AssertionError error = new AssertionError("boom");
+        Thread loader =
+                new Thread(
+                        () -> {
+                            try {
+                                flights.run(
+                                        "k",
+                                        () -> {
+                                            loading.countDown();
+                                            release.await();
+                                            throw error;
+                                        });
+                            } catch (Throwable e) {
+                                // expected
+                            }
+                        });
+        loader.start();
+        loading.await();
+
+        CompletableFuture<String> waiter =
+                CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return flights.run("k", () -> "second load");
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        while (flights.getCoalescedCount() == 0) Thread.sleep(1);
+        release.countDown();
+        loader.join();
+        try {
+            waiter.get();
+            fail("expected the error of the loader");
+        } catch (ExecutionException e) {
+            // RuntimeException of the waiter <- ExecutionException of await <- error
+            assertSame(error, e.getCause().getCause().getCause());
+        }
+        assertEquals(0, flights.getInFlightCount());
+        assertEquals("again", flights.run("k", () -> "again"));
+    }
+
+    @Test
+    public void waitersGiveUpAfterTimeout() throws Exception {
+
+        Config.singleFlightWaitTimeoutMs = 50;
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CompletableFuture<String> stuck = new CompletableFuture<>();
+        flights.join("k", stuck);
+        try {
+            flights.run("k", () -> "never");
+            fail("expected a timeout");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Gave up waiting"));
+        }
+        flights.complete("k", stuck, "done");
+        assertEquals(0, flights.getInFlightCount());
+    }
+}
@@ -0,0 +1,33 @@
+package index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import box.Box;
+import java.util.ArrayList;
+import org.junit.Test;
+
+public class IndexerTest {
+
+    @Test
+    public void testsEveryDeltaBoxOnItsOwn() {
+
+        ArrayList<Box> deltaBoxes = new Box(0, 0, 10, 10).subtract(new Box(2, 2, 8, 8));
+        assertEquals(4, deltaBoxes.size());
+        assertEquals(
+                "(f(?) or f(?) or f(?) or f(?))", Indexer.getWKTCondition("f(?)", deltaBoxes));
+        assertArrayEquals(
+                new Object[] {
+                    "POLYGON((0.0 0.0,0.0 2.0,10.0 2.0,10.0 0.0,0.0 0.0))",
+                    "POLYGON((0.0 8.0,0.0 10.0,10.0 10.0,10.0 8.0,0.0 8.0))",
+                    "POLYGON((0.0 2.0,0.0 8.0,2.0 8.0,2.0 2.0,0.0 2.0))",
+                    "POLYGON((8.0 2.0,8.0 8.0,10.0 8.0,10.0 2.0,8.0 2.0))"
+                },
+                Indexer.getWKTParams(deltaBoxes));
+
+        // nothing left of the new box
+        ArrayList<Box> none = new Box(2, 2, 8, 8).subtract(new Box(0, 0, 10, 10));
+        assertEquals("(false)", Indexer.getWKTCondition("f(?)", none));
+        assertEquals(0, Indexer.getWKTParams(none).length);
+    }
+}
@@ -0,0 +1,223 @@
+package index.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import main.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.postgresql.copy.CopyIn;
+
+public class BulkLoaderTest {
+
+    private static final int CHUNK_BYTES = 128;
+
+    // what the stub copy received
+    private final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+    private int largestWrite = 0;
+    private boolean active = true;
+    private boolean cancelled = false;
+    private boolean connectionClosed = false;
+
+    private int bufferBytes;
+
+    @Before
+    public void useSmallChunks() {
+        bufferBytes = Config.bulkLoadBufferBytes;
+        Config.bulkLoadBufferBytes = CHUNK_BYTES;
+    }
+
+    @After
+    public void restoreChunks() {
+        Config.bulkLoadBufferBytes = bufferBytes;
+    }
+
+    private BulkLoader loader(int numColumns, Config.BulkLoadMode mode) {
+
+        Connection conn =
+                (Connection)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {Connection.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("close")) connectionClosed = true;
+                                    return null;
+                                });
+        CopyIn copyIn =
+                (CopyIn)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {CopyIn.class},
+                                (proxy, method, args) -> {
+                                    switch (method.getName()) {
+                                        case "writeToCopy":
+                                            int length = (Integer) args[2];
+                                            synchronized (copied) {
+                                                copied.write((byte[]) args[0], 0, length);
+                                                largestWrite = Math.max(largestWrite, length);
+                                            }
+                                            return null;
+                                        case "endCopy":
+                                            active = false;
+                                            return 0L;
+                                        case "cancelCopy":
+                                            active = false;
+                                            cancelled = true;
+                                            return null;
+                                        case "isActive":
+                                            return active;
+                                        default:
+                                            return null;
+                                    }
+                                });
+        return new BulkLoader(conn, copyIn, numColumns, mode);
+    }
+
+    @Test
+    public void emptyStringsAtTheEndOfAChunk() throws Exception {
+
+        // every offset of the empty value in the chunk is hit by some row
+        List<List<String>> rows = new ArrayList<>();
+        for (int n = 0; n < 3 * CHUNK_BYTES; n++) rows.add(Arrays.asList(repeat('x', n), ""));
+        for (Config.BulkLoadMode mode :
+                new Config.BulkLoadMode[] {
+                    Config.BulkLoadMode.COPY_TEXT, Config.BulkLoadMode.COPY_BINARY
+                }) {
+            copied.reset();
+            BulkLoader loader = loader(2, mode);
+            for (List<String> row : rows) {
+                for (String value : row) loader.putString(value);
+                loader.endRow();
+            }
+            loader.close();
+            assertEquals(rows, decode(mode));
+        }
+    }
+
+    @Test
+    public void rowsLargerThanAChunk() throws Exception {
+
+        List<List<String>> rows = new ArrayList<>();
+        rows.add(Arrays.asList("a", "b"));
+        rows.add(Arrays.asList(repeat('y', 10 * CHUNK_BYTES), "c"));
+        rows.add(Arrays.asList("d", repeat('z', 3 * CHUNK_BYTES + 1)));
+        rows.add(Arrays.asList("e", "f"));
+        for (Config.BulkLoadMode mode :
+                new Config.BulkLoadMode[] {
+                    Config.BulkLoadMode.COPY_TEXT, Config.BulkLoadMode.COPY_BINARY
+                }) {
+            copied.reset();
+            BulkLoader loader = loader(2, mode);
+            for (List<String> row : rows) {
+                for (String value : row) loader.putString(value);
+                loader.endRow();
+            }
+            loader.close();
+            assertEquals(rows, decode(mode));
+        }
+    }
+
+    @Test
+    public void chunksDoNotGrowOnALongLoad() throws Exception {
+
+        BulkLoader loader = loader(3, Config.BulkLoadMode.COPY_TEXT);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            String value = repeat('v', i % 40);
+            loader.putInt(i);
+            loader.putString(value);
+            loader.putDouble(0.5);
+            loader.endRow();
+            expected.append(i).append('\t').append(value).append("\t0.5\n");
+        }
+        loader.close();
+        assertEquals(100000, loader.getRowCount());
+        assertEquals(expected.toString(), new String(copied.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(largestWrite <= CHUNK_BYTES);
+    }
+
+    @Test
+    public void textCopyEscapesSpecialCharacters() throws Exception {
+
+        BulkLoader loader = loader(5, Config.BulkLoadMode.COPY_TEXT);
+        loader.putString("a\tb");
+        loader.putString("c\nd");
+        loader.putString("e\\f");
+        loader.putString("g\rh");
+        loader.putString(null);
+        loader.endRow();
+        loader.close();
+        assertArrayEquals(
+                "a\\tb\tc\\nd\te\\\\f\tg\\rh\t\\N\n".getBytes(StandardCharsets.UTF_8),
+                copied.toByteArray());
+    }
+
+    @Test
+    public void abortCancelsTheCopyAndClosesTheConnection() throws Exception {
+
+        BulkLoader loader = loader(1, Config.BulkLoadMode.COPY_TEXT);
+        for (int i = 0; i < 1000; i++) {
+            loader.putString("row " + i);
+            loader.endRow();
+        }
+        loader.abort();
+        assertTrue(cancelled);
+        assertTrue(connectionClosed);
+        assertFalse(active);
+
+        // a closed loader is not aborted
+        cancelled = connectionClosed = false;
+        active = true;
+        loader = loader(1, Config.BulkLoadMode.COPY_TEXT);
+        loader.putString("row");
+        loader.endRow();
+        loader.close();
+        loader.abort();
+        assertFalse(cancelled);
+        assertTrue(connectionClosed);
+    }
+
+    // rows of strings, as the stub copy received them
+    private List<List<String>> decode(Config.BulkLoadMode mode) {
+
+        byte[] bytes = copied.toByteArray();
+        List<List<String>> rows = new ArrayList<>();
+        if (mode == Config.BulkLoadMode.COPY_TEXT) {
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            for (String line : text.split("\n"))
+                rows.add(Arrays.asList(line.split("\t", -1)));
+            return rows;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.position(19);
+        short numColumns;
+        while ((numColumns = in.getShort()) != -1) {
+            List<String> row = new ArrayList<>();
+            for (int i = 0; i < numColumns; i++) {
+                byte[] value = new byte[in.getInt()];
+                in.get(value);
+                row.add(new String(value, StandardCharsets.UTF_8));
+            }
+            rows.add(row);
+        }
+        assertFalse(in.hasRemaining());
+        return rows;
+    }
+
+    private static String repeat(char ch, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,118 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    // prepared statements of the fake connection count how often they were prepared
+    private final AtomicInteger prepared = new AtomicInteger();
+
+    private Connection fakeConnection() {
+        Connection[] self = new Connection[1];
+        self[0] =
+                (Connection)
+                        Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] {Connection.class},
+                                (proxy, method, args) -> {
+                                    switch (method.getName()) {
+                                        case "prepareStatement":
+                                            prepared.incrementAndGet();
+                                            return fakeStatement(self[0]);
+                                        case "createStatement":
+                                            return fakeStatement(self[0]);
+                                        case "isClosed":
+                                        case "getAutoCommit":
+                                            return false;
+                                        case "isValid":
+                                            return true;
+                                        case "hashCode":
+                                            return System.identityHashCode(proxy);
+                                        case "equals":
+                                            return proxy == args[0];
+                                        default:
+                                            return null;
+                                    }
+                                });
+        return self[0];
+    }
+
+    private PreparedStatement fakeStatement(Connection physical) {
+        return (PreparedStatement)
+                Proxy.newProxyInstance(
+                        getClass().getClassLoader(),
+                        new Class<?>[] {PreparedStatement.class},
+                        (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getConnection":
+                                    return physical;
+                                case "isClosed":
+                                    return false;
+                                default:
+                                    return null;
+                            }
+                        });
+    }
+
+    @Test
+    public void cachedStatementsHandOutThePooledConnection() throws Exception {
+
+        ConnectionPool pool = new ConnectionPool("test", true, this::fakeConnection, 4);
+        Connection conn = pool.borrow(0);
+        PreparedStatement stmt = conn.prepareStatement("select 1");
+        assertSame(conn, stmt.getConnection());
+        stmt.close();
+
+        // the same SQL reuses the open statement
+        stmt = conn.prepareStatement("select 1");
+        assertSame(conn, stmt.getConnection());
+        assertEquals(1, prepared.get());
+        stmt.close();
+        conn.close();
+
+        Connection again = pool.borrow(0);
+        assertNotSame(conn, again);
+        assertSame(again, again.prepareStatement("select 1").getConnection());
+        again.close();
+    }
+
+    @Test
+    public void uncachedStatementsHandOutThePooledConnection() throws Exception {
+
+        ConnectionPool pool = new ConnectionPool("test", true, this::fakeConnection, 4);
+        Connection conn = pool.borrow(0);
+
+        // the cached statement is still open, so the second one is prepared anew
+        PreparedStatement cached = conn.prepareStatement("select 1");
+        PreparedStatement uncached = conn.prepareStatement("select 1");
+        assertNotSame(cached, uncached);
+        assertEquals(2, prepared.get());
+        assertSame(conn, uncached.getConnection());
+        uncached.close();
+        cached.close();
+
+        Statement stmt = conn.createStatement();
+        assertSame(conn, stmt.getConnection());
+        stmt.close();
+        conn.close();
+    }
+
+    @Test
+    public void statementsOfAPoolWithoutCacheHandOutThePooledConnection() throws Exception {
+
+        ConnectionPool pool = new ConnectionPool("test", true, this::fakeConnection, 0);
+        Connection conn = pool.borrow(0);
+        assertSame(conn, conn.prepareStatement("select 1").getConnection());
+        assertSame(conn, conn.createStatement().getConnection());
+        conn.close();
+    }
+}
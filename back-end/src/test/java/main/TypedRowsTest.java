@@ -0,0 +1,54 @@
+package main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class TypedRowsTest {
+
+    @Test
+    public void formatsNumbersWithoutExponent() {
+
+        assertEquals("12345678.5", TypedRows.formatNumber(12345678.5));
+        assertEquals("0.0001", TypedRows.formatNumber(1e-4));
+        assertEquals("-3", TypedRows.formatNumber(-3.0));
+        assertEquals("1000000000000000000000", TypedRows.formatNumber(1e21));
+        assertEquals("Infinity", TypedRows.formatNumber(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void addsPlainRowsToPlainRowsAndTypedRowsToTypedRows() {
+
+        TypedRows typed = new TypedRows(1);
+        for (int j = 0; j < 3; j++)
+            typed.add(row("r" + j), new double[] {j, j, j, j, j + 0.5, j + 0.5}, 0);
+        TypedRows copy = new TypedRows(1);
+        copy.addAll(typed);
+        assertEquals(3, copy.size());
+        assertEquals(2.5, copy.getBbox(2, 5), 0);
+        assertEquals(Arrays.asList("r1", "1", "1", "1", "1", "1.5", "1.5"), copy.getPlainRow(1));
+
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(row("p", "1.50", null, "0", "0", "3", "3"));
+        TypedRows plain = TypedRows.plain(new ArrayList<>());
+        plain.add(TypedRows.plain(rows), 0);
+        assertEquals("1.50", plain.getBboxString(0, 0));
+        assertNull(plain.getBboxString(0, 1));
+        assertTrue(Double.isNaN(plain.getBbox(0, 1)));
+        assertEquals(rows.get(0), plain.getPlainRow(0));
+
+        try {
+            plain.add(typed, 0);
+            throw new AssertionError("mixed typed and plain rows");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static ArrayList<String> row(String... values) {
+        return new ArrayList<>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ResponseCompressorTest {
+
+    @Test
+    public void picksTheCodingWithTheHighestQ() {
+
+        assertEquals("gzip", ResponseCompressor.negotiate("gzip, deflate, br"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("gzip", ResponseCompressor.negotiate("deflate;q=0.8, GZIP;q=0.8"));
+        assertNull(ResponseCompressor.negotiate("br, identity"));
+        assertNull(ResponseCompressor.negotiate((String) null));
+    }
+
+    @Test
+    public void wildcardOnlyStandsForCodingsNotListed() {
+
+        assertEquals("gzip", ResponseCompressor.negotiate("*"));
+        assertEquals("deflate", ResponseCompressor.negotiate("gzip;q=0, *"));
+        assertEquals("deflate", ResponseCompressor.negotiate("*, gzip;q=0"));
+        assertEquals("gzip", ResponseCompressor.negotiate("deflate;q=0.1, *;q=0.5"));
+        assertNull(ResponseCompressor.negotiate("gzip;q=0, deflate;q=0, *"));
+        assertNull(ResponseCompressor.negotiate("*;q=0"));
+    }
+}
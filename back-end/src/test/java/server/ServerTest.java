@@ -0,0 +1,79 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import main.Config;
+import org.junit.Test;
+
+public class ServerTest {
+
+    @Test
+    public void requestsBeyondTheQueueGet503() throws Exception {
+
+        int numThread = Config.numThread, serverQueueSize = Config.serverQueueSize;
+        Config.numThread = 1;
+        Config.serverQueueSize = 1;
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(
+                        "/",
+                        httpExchange -> {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            httpExchange.sendResponseHeaders(200, -1);
+                            httpExchange.close();
+                        })
+                .getFilters()
+                .add(Server.REJECTION_FILTER);
+        ThreadPoolExecutor pool = Server.createPoolExecutor(Executors.defaultThreadFactory());
+        server.setExecutor(pool);
+        server.start();
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/";
+            // one request runs, one waits in the queue
+            ArrayList<Future<Integer>> accepted = new ArrayList<>();
+            accepted.add(clients.submit(() -> get(url)));
+            started.await();
+            accepted.add(clients.submit(() -> get(url)));
+            while (pool.getQueue().isEmpty()) Thread.sleep(1);
+
+            // the dispatcher doesn't run the third one, it is answered while the others wait
+            assertEquals(503, get(url));
+            release.countDown();
+            for (Future<Integer> f : accepted) assertEquals(200, (int) f.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            clients.shutdownNow();
+            server.stop(0);
+            pool.shutdownNow();
+            Config.numThread = numThread;
+            Config.serverQueueSize = serverQueueSize;
+        }
+    }
+
+    private static int get(String url) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setReadTimeout(10000);
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
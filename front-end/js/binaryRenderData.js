@@ -0,0 +1,93 @@
+// decoder of the binary render data format, see BinaryRenderData.java in the backend
+var binaryRenderDataContentType = "application/x-kyrix-render-data";
+
+// decode a binary /tile or /dbox response (an ArrayBuffer) into a response object
+// with renderData as an array of row dictionaries per layer
+function decodeBinaryRenderData(buffer) {
+    var view = new DataView(buffer);
+    var pos = 0;
+    var utf8 = new TextDecoder("utf-8");
+
+    function readString(length) {
+        var s = utf8.decode(new Uint8Array(buffer, pos, length));
+        pos += length;
+        return s;
+    }
+
+    function align(n) {
+        pos = Math.ceil(pos / n) * n;
+    }
+
+    // header
+    if (view.getUint32(pos, true) != 0x4259524b)
+        throw new Error("Not a binary render data response.");
+    var numLayers = view.getUint16(pos + 6, true);
+    var metaLength = view.getUint32(pos + 8, true);
+    pos += 12;
+    var response = JSON.parse(readString(metaLength));
+    align(8);
+
+    response.renderData = [];
+    for (var i = 0; i < numLayers; i++) {
+        // schema
+        var numRows = view.getUint32(pos, true);
+        var numFields = view.getUint32(pos + 4, true);
+        pos += 8;
+        var types = [],
+            fields = [];
+        for (var k = 0; k < numFields; k++) {
+            types.push(view.getUint8(pos));
+            var nameLength = view.getUint16(pos + 1, true);
+            pos += 3;
+            fields.push(readString(nameLength));
+        }
+        align(8);
+
+        // columns
+        var columns = [];
+        for (var k = 0; k < numFields; k++) {
+            var column;
+            if (types[k] == 0) {
+                // dictionary-encoded strings
+                var width = view.getUint8(pos);
+                var dictSize = view.getUint32(pos + 1, true);
+                pos += 5;
+                var dict = [];
+                for (var e = 0; e < dictSize; e++) {
+                    var length = view.getInt32(pos, true);
+                    pos += 4;
+                    dict.push(length < 0 ? null : readString(length));
+                }
+                align(8);
+                var codes =
+                    width == 1
+                        ? new Uint8Array(buffer, pos, numRows)
+                        : width == 2
+                        ? new Uint16Array(buffer, pos, numRows)
+                        : new Uint32Array(buffer, pos, numRows);
+                pos += width * numRows;
+                column = new Array(numRows);
+                for (var j = 0; j < numRows; j++) column[j] = dict[codes[j]];
+            } else if (types[k] == 1) {
+                column = new Float32Array(buffer, pos, numRows);
+                pos += 4 * numRows;
+            } else {
+                column = new Float64Array(buffer, pos, numRows);
+                pos += 8 * numRows;
+            }
+            align(8);
+            columns.push(column);
+        }
+
+        // rows
+        var rows = new Array(numRows);
+        for (var j = 0; j < numRows; j++) {
+            var row = {};
+            for (var k = 0; k < numFields; k++) row[fields[k]] = columns[k][j];
+            rows[j] = row;
+        }
+        response.renderData.push(rows);
+    }
+
+    return response;
+}
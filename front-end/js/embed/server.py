@@ -4,7 +4,7 @@ import os
 @route('/update', method = 'POST')
 def hello():
     print "hello"
-    os.system('cd /home/ubuntu/Kyrix/front-end/js && git pull && cat embed/API.js globalVar.js jump.js parameter.js staticLayers.js zoom.js zoomButton.js pageOnLoad.js dynamicLayers.js > embed/all.js && cd embed/ && rollup -c')
+    os.system('cd /home/ubuntu/Kyrix/front-end/js && git pull && cat embed/API.js globalVar.js binaryRenderData.js jump.js parameter.js staticLayers.js zoom.js zoomButton.js pageOnLoad.js dynamicLayers.js > embed/all.js && cd embed/ && rollup -c')
 
 @route('/kyrix.js')
 def get():
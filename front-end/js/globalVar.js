@@ -20,6 +20,19 @@ globalVar.views = {};
 // globalVar project
 globalVar.project = null;
 
+// format in which the backend sends render data of dynamic layers
+// "columnar" is smaller and faster to decode than "json" (dictionaries),
+// "binary" is the most compact (see binaryRenderData.js)
+// with "columnar" and "binary", the bounding box fields of rows
+// (cx, cy, minx, miny, maxx, maxy) are numbers instead of strings,
+// check that rendering functions don't rely on strings (e.g. d.minx + 5)
+// before opting in
+globalVar.renderDataFormat = "json";
+
+// fetch the new tiles of a pan with one /tiles request,
+// instead of one /tile request per tile
+globalVar.batchTileRequests = true;
+
 if (typeof String.prototype.parseFunction != "function") {
     String.prototype.parseFunction = function() {
         var funcReg = /function *[^()]*\(([^()]*)\)[ \n\t]*\{([\s\S]*)\}/gim;
@@ -30,6 +43,55 @@ if (typeof String.prototype.parseFunction != "function") {
 }
 
 /****************** common functions ******************/
+// add settings needed by the render data format to the ajax settings of a /tile or /dbox request
+function withRenderDataFormat(ajaxSettings) {
+    ajaxSettings.data += "&format=" + globalVar.renderDataFormat;
+    if (globalVar.renderDataFormat == "binary") {
+        ajaxSettings.headers = {Accept: binaryRenderDataContentType};
+        ajaxSettings.dataType = "binary";
+        ajaxSettings.xhrFields = {responseType: "arraybuffer"};
+    }
+    return ajaxSettings;
+}
+
+// parse a /tile or /dbox response, render data becomes an array of row dictionaries per layer
+function parseRenderDataResponse(data) {
+    if (data instanceof ArrayBuffer) return decodeBinaryRenderData(data);
+    return convertColumnarRenderData(JSON.parse(data));
+}
+
+// parse a /tiles response into an array of /tile responses
+// binary tile responses are framed by their length (u32) and padded to 8 bytes
+function parseTilesResponse(data) {
+    if (!(data instanceof ArrayBuffer))
+        return JSON.parse(data).tiles.map(convertColumnarRenderData);
+    var view = new DataView(data);
+    var responses = [];
+    for (var pos = 0; pos < data.byteLength; ) {
+        var length = view.getUint32(pos, true);
+        responses.push(
+            decodeBinaryRenderData(data.slice(pos + 8, pos + 8 + length))
+        );
+        pos += 8 + Math.ceil(length / 8) * 8;
+    }
+    return responses;
+}
+
+function convertColumnarRenderData(response) {
+    if (response.format != "columnar") return response;
+    response.renderData = response.renderData.map(function(layer) {
+        var rows = new Array(layer.numRows);
+        for (var j = 0; j < layer.numRows; j++) {
+            var row = {};
+            for (var k = 0; k < layer.fields.length; k++)
+                row[layer.fields[k]] = layer.columns[k][j];
+            rows[j] = row;
+        }
+        return rows;
+    });
+    return response;
+}
+
 function getOptionalArgs(viewId) {
     var gvd = globalVar.views[viewId];
     var predicateDict = {};